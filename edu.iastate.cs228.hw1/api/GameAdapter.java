@@ -0,0 +1,38 @@
+package api;
+
+/**
+ * IGameListener whose methods all do nothing, to be extended by 
+ * listeners that only need some of the events.
+ */
+public abstract class GameAdapter implements IGameListener
+{
+  @Override
+  public void polyominoSpawned(IGame game, IPolyomino polyomino)
+  {
+  }
+
+  @Override
+  public void polyominoLocked(IGame game, IPolyomino polyomino)
+  {
+  }
+
+  @Override
+  public void cellsCollapsing(IGame game, int[] cols, int[] rows, int count)
+  {
+  }
+
+  @Override
+  public void rowsCleared(IGame game, int[] rows, int count)
+  {
+  }
+
+  @Override
+  public void scoreChanged(IGame game, int oldScore, int newScore)
+  {
+  }
+
+  @Override
+  public void gameOver(IGame game)
+  {
+  }
+}
@@ -1,6 +1,7 @@
 package api;
 
 import java.awt.Point;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for a Tetris-like game. Implementations of instances of this 
@@ -15,6 +16,17 @@ import java.awt.Point;
  */
 public interface IGame
 {
+  /**
+   * Bit set in the export code of every occupied cell; see exportRows().
+   */
+  int CELL_OCCUPIED = 1 << 24;
+  
+  /**
+   * Bit set in the export code of a cell whose icon is magic; see 
+   * exportRows().
+   */
+  int CELL_MAGIC = 1 << 25;
+  
   /**
    * Transition the game through one discrete step.  A step may consist of
    * <ul>
@@ -67,6 +79,26 @@ public interface IGame
    */   
   boolean shiftRight();
   
+  /**
+   * Returns the number of cells the current polyomino can be shifted
+   * down before it would extend beyond the bottom of the grid or collide
+   * with occupied cells.  Does not modify the game state.
+   * 
+   * @return the distance the current polyomino can fall
+   * @throws IllegalStateException if the game status is COLLAPSING or GAME_OVER
+   */
+  int dropDistance();
+  
+  /**
+   * Shifts the current polyomino down as far as it can go without 
+   * extending beyond the bottom of the grid or colliding with occupied
+   * cells.  The next invocation of step() will then stop it.
+   * 
+   * @return the number of cells the current polyomino was shifted down
+   * @throws IllegalStateException if the game status is COLLAPSING or GAME_OVER
+   */
+  int hardDrop();
+  
   /**
    * Returns the block associated with the given cell, or null if
    * the cell is unoccupied. 
@@ -78,6 +110,70 @@ public interface IGame
    */
   IGameIcon getCell(int row, int col);
   
+  /**
+   * Returns the current version of the grid.  The version can later be
+   * passed to getFirstRowChangedSince() and getLastRowChangedSince() to 
+   * find which rows have been modified after this call.
+   * @return the current version of the grid
+   */
+  long getGridVersion();
+  
+  /**
+   * Returns the smallest y-coordinate of the rows of the grid that may
+   * have been modified since the given version was returned by 
+   * getGridVersion().  If the version is too old for the modifications
+   * to be known, every row is assumed to have been modified.
+   * @param version a version returned by getGridVersion()
+   * @return y-coordinate of the first modified row, or getHeight() if 
+   *   no row has been modified
+   */
+  int getFirstRowChangedSince(long version);
+  
+  /**
+   * Returns the largest y-coordinate of the rows of the grid that may
+   * have been modified since the given version was returned by 
+   * getGridVersion().  If the version is too old for the modifications
+   * to be known, every row is assumed to have been modified.
+   * @param version a version returned by getGridVersion()
+   * @return y-coordinate of the last modified row, or -1 if no row has
+   *   been modified
+   */
+  int getLastRowChangedSince(long version);
+  
+  /**
+   * Writes a code for each cell of the given rows of the grid into the
+   * given array, row by row, so that the code for (row, col) is at index
+   * <code>offset + (row - firstRow) * getWidth() + col</code>.  The code
+   * of an unoccupied cell is 0.  The code of an occupied cell has the 
+   * CELL_OCCUPIED bit set, the CELL_MAGIC bit set if its icon is magic,
+   * and the RGB value of its icon's color hint in the low 24 bits.
+   * The current polyomino is not included.  Nothing is written if
+   * lastRow is less than firstRow.
+   * @param firstRow y-coordinate of the first row to write
+   * @param lastRow y-coordinate of the last row to write
+   * @param buffer array for the codes
+   * @param offset index in the array of the code for the first cell
+   * @throws ArrayIndexOutOfBoundsException if the rows are invalid for
+   *   the grid or the array is too small
+   */
+  void exportRows(int firstRow, int lastRow, int[] buffer, int offset);
+  
+  /**
+   * Puts a code for each cell of the given rows of the grid into the 
+   * given buffer, row by row, starting at the buffer's position and 
+   * advancing it.  The codes are as described for 
+   * exportRows(int, int, int[], int), each written with 
+   * ByteBuffer.putInt() in the buffer's byte order.
+   * @param firstRow y-coordinate of the first row to write
+   * @param lastRow y-coordinate of the last row to write
+   * @param buffer buffer for the codes
+   * @throws ArrayIndexOutOfBoundsException if the rows are invalid for
+   *   the grid
+   * @throws java.nio.BufferOverflowException if the buffer does not have 
+   *   room for the codes
+   */
+  void exportRows(int firstRow, int lastRow, ByteBuffer buffer);
+  
   /**
    * Returns the current polyomino.
    * @return the current polyomino.
@@ -85,6 +181,27 @@ public interface IGame
    */
   IPolyomino getCurrent();
   
+  /**
+   * Returns the polyomino that will follow the current one after n
+   * others, so that getPreview(0) is the next polyomino to appear.
+   * The returned polyomino must not be modified.
+   * @param n number of upcoming polyominoes to look past
+   * @return an upcoming polyomino
+   * @throws UnsupportedOperationException if the game does not show
+   *   upcoming polyominoes, that is, getPreviewDepth() is 0
+   * @throws IllegalArgumentException if n is negative or not less than
+   *   getPreviewDepth()
+   */
+  IPolyomino getPreview(int n);
+  
+  /**
+   * Returns the number of upcoming polyominoes that can be seen with
+   * getPreview(), which is 0 if the game does not show upcoming 
+   * polyominoes.
+   * @return the number of upcoming polyominoes that can be seen
+   */
+  int getPreviewDepth();
+  
   /**
    * Returns the width of the grid.
    * @return the width of the grid.
@@ -125,4 +242,19 @@ public interface IGame
    * @return true if the game is over, false otherwise
    */
   boolean gameOver();
+
+  /**
+   * Adds a listener to be told of the events of this game as they 
+   * happen.  Sending an event does not create any objects.
+   * @param listener the listener
+   * @throws UnsupportedOperationException if this game never changes
+   */
+  void addGameListener(IGameListener listener);
+
+  /**
+   * Removes a listener added with addGameListener().  Does nothing if
+   * the listener was not added.
+   * @param listener the listener
+   */
+  void removeGameListener(IGameListener listener);
 }
@@ -0,0 +1,19 @@
+package api;
+
+/**
+ * Factory interface for creating games, for example so that a batch
+ * of games can be played without reference to a particular 
+ * implementation.
+ */
+public interface IGameFactory
+{
+  /**
+   * Returns a new game in its initial state.  This method may be 
+   * invoked concurrently from several threads.
+   * @param index the number of the game within its batch
+   * @param generator generator to be used for the game's polyominoes;
+   *   it is not shared with any other game
+   * @return a new game
+   */
+  IGame createGame(long index, IPolyominoGenerator generator);
+}
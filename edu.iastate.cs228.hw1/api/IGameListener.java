@@ -0,0 +1,65 @@
+package api;
+
+/**
+ * Receives the events of a Tetris-like game as they happen, so that a
+ * client does not have to compare the state of the game after every 
+ * step to find out what changed.  The methods are invoked by the 
+ * thread that changes the game, in the middle of the call that changes
+ * it, so they should return quickly and must not modify the game.
+ * <p>
+ * The arrays passed to the methods are reused by the game for the next
+ * event, so their contents must be copied if they are needed after the
+ * method returns.  GameAdapter implements every method to do nothing.
+ */
+public interface IGameListener
+{
+  /**
+   * Invoked when a new polyomino has appeared at the top of the grid
+   * and is the current polyomino.
+   * @param game the game
+   * @param polyomino the new polyomino
+   */
+  void polyominoSpawned(IGame game, IPolyomino polyomino);
+
+  /**
+   * Invoked when the current polyomino can no longer move and its 
+   * cells have become part of the grid.
+   * @param game the game
+   * @param polyomino the polyomino, in its final position
+   */
+  void polyominoLocked(IGame game, IPolyomino polyomino);
+
+  /**
+   * Invoked when the status becomes COLLAPSING or stays COLLAPSING, 
+   * with the cells that getCellsToCollapse() would return.
+   * @param game the game
+   * @param cols x-coordinates of the cells
+   * @param rows y-coordinates of the cells
+   * @param count number of cells, which may include duplicates
+   */
+  void cellsCollapsing(IGame game, int[] cols, int[] rows, int count);
+
+  /**
+   * Invoked when whole rows have been deleted from the grid and the 
+   * rows above them moved down.  When the cells collapsed do not make
+   * up whole rows, only cellsCollapsing() is invoked.
+   * @param game the game
+   * @param rows y-coordinates the deleted rows had, in increasing order
+   * @param count number of rows
+   */
+  void rowsCleared(IGame game, int[] rows, int count);
+
+  /**
+   * Invoked when the score has changed.
+   * @param game the game
+   * @param oldScore the previous score
+   * @param newScore the new score
+   */
+  void scoreChanged(IGame game, int oldScore, int newScore);
+
+  /**
+   * Invoked when the game is over.
+   * @param game the game
+   */
+  void gameOver(IGame game);
+}
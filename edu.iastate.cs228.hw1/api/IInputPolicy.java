@@ -0,0 +1,26 @@
+package api;
+
+/**
+ * Abstraction of a player that supplies input to a Tetris-like game
+ * when there is no user interface, for example when many games are
+ * simulated in a batch.  A single instance may be shared by games
+ * running concurrently on different threads, so implementations 
+ * should not keep any per-game state, except that a thread may keep
+ * state for the game it last moved, such as the rest of the moves it
+ * planned.  That state must be checked against the game before it is
+ * used, since the thread may have moved other games or the game may
+ * have changed in between, and it must not keep the game from being
+ * garbage collected.
+ */
+public interface IInputPolicy
+{
+  /**
+   * Performs any moves (transform(), cycle(), shiftLeft(), shiftRight(),
+   * hardDrop()) on the given game before its next step.  This method is 
+   * only invoked when the status is NEW_POLYOMINO, FALLING, or STOPPED.
+   * @param game the game to be played
+   * @param status the status returned by the previous step, or
+   *   NEW_POLYOMINO before the first step
+   */
+  void move(IGame game, GameStatus status);
+}
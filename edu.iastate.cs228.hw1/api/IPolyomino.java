@@ -9,6 +9,11 @@ package api;
  * cells in this ordering, and the cycle() method always uses this ordering.
  * No bounds checking is done in implementations of this interface; 
  * therefore, the position and the cells can have negative coordinates.  
+ * <p>
+ * The methods that report single cells and the change a transform would
+ * make have default implementations in terms of getCells() and clone(),
+ * so an implementation only needs to override them to avoid creating
+ * objects.
  */
 public interface IPolyomino extends Cloneable
 {
@@ -21,12 +26,91 @@ public interface IPolyomino extends Cloneable
    */
   Cell[] getCells();
   
+  /**
+   * Returns the number of cells in this polyomino.  The default
+   * implementation calls getCells().
+   * @return the number of cells in this polyomino
+   */
+  default int getCellCount()
+  {
+    return getCells().length;
+  }
+  
+  /**
+   * Returns the absolute x-coordinate of the cell at the given index
+   * in the ordering fixed by the constructor.  The default
+   * implementation calls getCells(); implementations may override it
+   * so that it does not create any objects.
+   * @param index index of the cell
+   * @return the x-coordinate of the cell
+   */
+  default int getCellX(int index)
+  {
+    return getCells()[index].getX();
+  }
+  
+  /**
+   * Returns the absolute y-coordinate of the cell at the given index
+   * in the ordering fixed by the constructor.  The default
+   * implementation calls getCells(); implementations may override it
+   * so that it does not create any objects.
+   * @param index index of the cell
+   * @return the y-coordinate of the cell
+   */
+  default int getCellY(int index)
+  {
+    return getCells()[index].getY();
+  }
+  
+  /**
+   * Returns the amount by which the next transform() would change the
+   * x-coordinate of the cell at the given index.  This polyomino is
+   * not modified.  The default implementation transforms a clone.
+   * @param index index of the cell
+   * @return change in the x-coordinate of the cell
+   */
+  default int getTransformDeltaX(int index)
+  {
+    IPolyomino p = (IPolyomino) clone();
+    p.transform();
+    return p.getCells()[index].getX() - getCells()[index].getX();
+  }
+  
+  /**
+   * Returns the amount by which the next transform() would change the
+   * y-coordinate of the cell at the given index.  This polyomino is
+   * not modified.  The default implementation transforms a clone.
+   * @param index index of the cell
+   * @return change in the y-coordinate of the cell
+   */
+  default int getTransformDeltaY(int index)
+  {
+    IPolyomino p = (IPolyomino) clone();
+    p.transform();
+    return p.getCells()[index].getY() - getCells()[index].getY();
+  }
+  
   /**
    * Shifts the position of this polyomino down (increasing the y-coordinate) 
    * by one.  No bounds checking is done.
    */
   void shiftDown();
   
+  /**
+   * Shifts the position of this polyomino down (increasing the y-coordinate) 
+   * by the given distance, as if by that many calls to shiftDown().  No
+   * bounds checking is done.  The default implementation calls
+   * shiftDown() that many times.
+   * @param distance number of cells to shift down
+   */
+  default void shiftDown(int distance)
+  {
+    for (int i = 0; i < distance; ++i)
+    {
+      shiftDown();
+    }
+  }
+  
   /**
    * Shifts the position of this polyomino left (decreasing the x-coordinate) 
    * by one.  No bounds checking is done.
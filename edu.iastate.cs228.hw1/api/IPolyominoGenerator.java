@@ -1,8 +1,13 @@
 package api;
 
+import java.nio.ByteBuffer;
+
 /**
  * Abstraction of a generator for game pieces in a Tetris-like
- * video game.  
+ * video game.  Only getNext() must be implemented; a generator that
+ * cannot be split or saved can leave split(), writeState() and 
+ * readState() to their default implementations, which throw
+ * UnsupportedOperationException.
  */
 public interface IPolyominoGenerator
 {
@@ -12,4 +17,44 @@ public interface IPolyominoGenerator
    * @return a new IPolyomino 
    */
   IPolyomino getNext();
+  
+  /**
+   * Returns a new generator of the same kind whose sequence of 
+   * polyominoes is independent of this one's.  The new generator's
+   * sequence is determined entirely by the state of this generator,
+   * so splitting generators with the same seed in the same order
+   * always gives the same sequences.  This generator's state is advanced.
+   * @return a new generator
+   * @throws UnsupportedOperationException if this generator cannot be
+   *   split
+   */
+  default IPolyominoGenerator split()
+  {
+    throw new UnsupportedOperationException("split");
+  }
+  
+  /**
+   * Writes the state of this generator to the given buffer, so that 
+   * readState() can later put a generator of the same kind, constructed
+   * with the same parameters, in the same state.
+   * @param buffer buffer to write to, starting at its position
+   * @throws UnsupportedOperationException if the state of this 
+   *   generator cannot be saved
+   */
+  default void writeState(ByteBuffer buffer)
+  {
+    throw new UnsupportedOperationException("writeState");
+  }
+  
+  /**
+   * Puts this generator in the state written by writeState(), so that
+   * it goes on to create the same sequence of polyominoes.
+   * @param buffer buffer to read from, starting at its position
+   * @throws UnsupportedOperationException if the state of this 
+   *   generator cannot be restored
+   */
+  default void readState(ByteBuffer buffer)
+  {
+    throw new UnsupportedOperationException("readState");
+  }
 }
@@ -0,0 +1,28 @@
+package api;
+
+/**
+ * A generator for game pieces that can also show the pieces it will
+ * return next, for example so that a user interface can display the
+ * upcoming pieces or a player can plan ahead.
+ */
+public interface IPreviewGenerator extends IPolyominoGenerator
+{
+  /**
+   * Returns the polyomino that will be returned by the (n + 1)th 
+   * following call to getNext(), without removing it; peek(0) is the 
+   * polyomino the next call to getNext() will return.  The returned 
+   * polyomino must not be modified.
+   * @param n number of polyominoes to look past
+   * @return an upcoming polyomino
+   * @throws IllegalArgumentException if n is negative or not less than
+   *   getDepth()
+   */
+  IPolyomino peek(int n);
+  
+  /**
+   * Returns the number of upcoming polyominoes that can be seen
+   * with peek().
+   * @return the lookahead depth
+   */
+  int getDepth();
+}
@@ -13,23 +13,42 @@ public class Tetromino
 {
 	/**
 	 * This method is called by the specific Tetromino class in order to 
-	 * transform the Tetromino.
+	 * move each cell to its place for the Tetromino's rotation.
 	 * @param an array of cells representing the Tetromino.
-	 * @param an integer denoting which spot in the cells array to change.
-	 * @param an integer denoting how much to increment the X value of the cell. 
-	 * May be positive or negative.
-	 * @param an integer denoting how much to increment the Y value of the cell. 
-	 * May be positive or negative.
+	 * @param a Point that the offsets are measured from.
+	 * @param an array of the X offset of each cell from the point.
+	 * @param an array of the Y offset of each cell from the point.
 	 * @return the parameter cell array with the changed values.
 	 */
-	public Cell[] transform(Cell[] cells, int arraySpot, int incrementX, int incrementY)
+	public Cell[] place(Cell[] cells, Point position, int[] offsetX, int[] offsetY)
 	{
-		cells[arraySpot].setX(cells[arraySpot].getX() + incrementX);
-		cells[arraySpot].setY(cells[arraySpot].getY() + incrementY);
+		for(int i = 0; i <= cells.length-1; i++)
+		{
+			cells[i].setX(position.x + offsetX[i]);
+			cells[i].setY(position.y + offsetY[i]);
+		}
 		
 		return cells;
 	}
 	
+	/**
+	 * This method is called by the specific Tetromino class in order to 
+	 * make a deep copy of its cells.
+	 * @param an array of cells representing the Tetromino.
+	 * @return a new array of copies of the cells.
+	 */
+	public Cell[] copy(Cell[] cells)
+	{
+		Cell[] copy = new Cell[cells.length];
+		
+		for(int i = 0; i <= cells.length-1; i++)
+		{
+			copy[i] = new Cell(cells[i]);
+		}
+		
+		return copy;
+	}
+	
 	/**
 	 * This method is called by the specific Tetromino class in order to 
 	 * cycle the Tetromino's magic block.
@@ -76,27 +95,28 @@ public class Tetromino
 	 */
 	public boolean equals(Cell[] cellsOriginal, Cell[] cellsOther)
 	{
-		boolean b = false;
+		if(cellsOriginal.length != cellsOther.length)
+		{
+			return false;
+		}
 		
-		for(int i = 0; i <= cellsOriginal.length; i++)
+		for(int i = 0; i <= cellsOriginal.length-1; i++)
 		{
-			
-			// Compares the X and Y values for each cell.
-			if(cellsOriginal[i].getX() == cellsOther[i].getX() && cellsOriginal[i].getY() == cellsOther[i].getY())
+			// Compares the X and Y values, the magic state and the color
+			// of each cell.
+			if(cellsOriginal[i].getX() != cellsOther[i].getX() || cellsOriginal[i].getY() != cellsOther[i].getY())
 			{
-				
-				// Compares the magic state for each cell.
-				if(cellsOriginal[i].getIcon().isMagic() == cellsOther[i].getIcon().isMagic())
-				{
-					
-					// Compares the color of each Tetromino.
-					if(cellsOriginal[i].getIcon().getColorHint().equals(cellsOther[i].getIcon().getColorHint()))
-					{
-						b = true;
-					}
-				}
+				return false;
 			}
-		}	
-		return b;
+			if(cellsOriginal[i].getIcon().isMagic() != cellsOther[i].getIcon().isMagic())
+			{
+				return false;
+			}
+			if(!cellsOriginal[i].getIcon().getColorHint().equals(cellsOther[i].getIcon().getColorHint()))
+			{
+				return false;
+			}
+		}
+		return true;
 	}
 }
@@ -0,0 +1,447 @@
+package bot;
+
+import java.util.Arrays;
+
+import api.IGame;
+import api.IPolyomino;
+
+/**
+ * Copy of the grid of a game as one bit per cell, on which polyominoes
+ * can be locked and the result measured without touching the game.
+ * Each cell has a bit telling whether it is occupied and a bit telling
+ * whether its block is magic; the icons themselves are not kept.
+ * <p>
+ * Locking follows the rules of CS228Tetris: every full row is cleared,
+ * a group of adjacent full rows scores one point for its first row, two
+ * for its second and so on, and a group with three or more magic blocks
+ * also fills every hole by letting the blocks of each column fall.
+ * Clearing repeats as long as it leaves full rows.
+ */
+public class Board
+{
+  /**
+   * Width of the grid.
+   */
+  private int width;
+
+  /**
+   * Height of the grid.
+   */
+  private int height;
+
+  /**
+   * Number of words per row.
+   */
+  private int words;
+
+  /**
+   * Occupied cells; bit <code>col % 64</code> of word
+   * <code>row * words + col / 64</code> is set if the cell is occupied.
+   */
+  private long[] occupied = new long[0];
+
+  /**
+   * Cells holding magic blocks, laid out like occupied.
+   */
+  private long[] magic = new long[0];
+
+  /**
+   * Export codes of the grid, read to fill the bits.
+   */
+  private int[] codes = new int[0];
+
+  /**
+   * Rows found full while locking.
+   */
+  private boolean[] full = new boolean[0];
+
+  /**
+   * Heights of the columns that are not empty, computed by
+   * computeFeatures().
+   */
+  private int[] heights = new int[0];
+
+  /**
+   * Columns with an occupied cell above the row being scanned by
+   * computeFeatures().
+   */
+  private long[] covered = new long[0];
+
+  /**
+   * Bits of the last word of a row that are columns of the grid.
+   */
+  private long lastWordMask;
+
+  /**
+   * Constructs an empty board of no size; read() or copy() gives it
+   * a size.
+   */
+  public Board()
+  {
+  }
+
+  /**
+   * Constructs an empty board of the given size.
+   * @param width width of the grid
+   * @param height height of the grid
+   */
+  public Board(int width, int height)
+  {
+    resize(width, height, true);
+  }
+
+  /**
+   * Returns the width of the grid.
+   * @return the width
+   */
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /**
+   * Returns the height of the grid.
+   * @return the height
+   */
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /**
+   * Makes this board a copy of the grid of the given game, without its
+   * current polyomino.
+   * @param game the game
+   */
+  public void read(IGame game)
+  {
+    resize(game.getWidth(), game.getHeight(), true);
+    if (codes.length < width * height)
+    {
+      codes = new int[width * height];
+    }
+    game.exportRows(0, height - 1, codes, 0);
+    for (int row = 0; row < height; ++row)
+    {
+      for (int col = 0; col < width; ++col)
+      {
+        int code = codes[row * width + col];
+        if (code != 0)
+        {
+          occupied[row * words + (col >>> 6)] |= 1L << col;
+        }
+        if ((code & IGame.CELL_MAGIC) != 0)
+        {
+          magic[row * words + (col >>> 6)] |= 1L << col;
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes this board a copy of another.
+   * @param other the board to copy
+   */
+  public void copy(Board other)
+  {
+    resize(other.width, other.height, false);
+    System.arraycopy(other.occupied, 0, occupied, 0, words * height);
+    System.arraycopy(other.magic, 0, magic, 0, words * height);
+  }
+
+  /**
+   * Determines whether the given cell is occupied.
+   * @param row y-coordinate of the cell
+   * @param col x-coordinate of the cell
+   * @return true if the cell is occupied
+   */
+  public boolean isOccupied(int row, int col)
+  {
+    return (occupied[row * words + (col >>> 6)] & (1L << col)) != 0;
+  }
+
+  /**
+   * Returns a word of the occupancy bits of a row.
+   * @param row y-coordinate of the row
+   * @param word index of the word, for columns 64 * word and up
+   * @return bit <code>col % 64</code> set for each occupied cell
+   */
+  long getWord(int row, int word)
+  {
+    return occupied[row * words + word];
+  }
+
+  /**
+   * Determines whether the given cell holds a magic block.
+   * @param row y-coordinate of the cell
+   * @param col x-coordinate of the cell
+   * @return true if the block is magic
+   */
+  public boolean isMagic(int row, int col)
+  {
+    return (magic[row * words + (col >>> 6)] & (1L << col)) != 0;
+  }
+
+  /**
+   * Determines whether the given polyomino, where it is, extends past
+   * the sides or bottom of the grid or overlaps an occupied cell, as a
+   * game tests a new polyomino to decide whether it is over.
+   * @param p the polyomino
+   * @return true if it collides
+   */
+  public boolean collides(IPolyomino p)
+  {
+    for (int i = 0; i < p.getCellCount(); ++i)
+    {
+      int x = p.getCellX(i);
+      int y = p.getCellY(i);
+      if (x < 0 || x >= width || y >= height || y >= 0 && isOccupied(y, x))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Locks a polyomino into the grid at a placement found by the given
+   * finder for this board, and clears the rows it completes.  Cells
+   * above the top of the grid are lost, as in the game.
+   * @param finder the finder
+   * @param i index of the placement
+   * @return the points scored
+   */
+  public int lock(PlacementFinder finder, int i)
+  {
+    for (int cell = 0; cell < finder.getCellCount(); ++cell)
+    {
+      int x = finder.getCellX(i, cell);
+      int y = finder.getCellY(i, cell);
+      if (y >= 0)
+      {
+        occupied[y * words + (x >>> 6)] |= 1L << x;
+        if (finder.isMagic(i, cell))
+        {
+          magic[y * words + (x >>> 6)] |= 1L << x;
+        }
+      }
+    }
+
+    int points = 0;
+    while (true)
+    {
+      boolean any = false;
+      boolean gravity = false;
+      int run = 0;
+      int magicRun = 0;
+      for (int row = height - 1; row >= 0; --row)
+      {
+        full[row] = count(occupied, row) == width;
+        if (!full[row])
+        {
+          run = 0;
+          magicRun = 0;
+          continue;
+        }
+        any = true;
+        run += 1;
+        magicRun += count(magic, row);
+        if (magicRun >= 3)
+        {
+          gravity = true;
+        }
+        points += run;
+      }
+      if (!any)
+      {
+        return points;
+      }
+      if (gravity)
+      {
+        fall();
+      }
+      else
+      {
+        clearRows();
+      }
+    }
+  }
+
+  /**
+   * Computes the features of the grid other than the score and stores
+   * them in the given array at the indices given by the constants of
+   * Weights.
+   * @param features array of at least Weights.FEATURE_COUNT elements
+   */
+  public void computeFeatures(int[] features)
+  {
+    // the rows are scanned from the top, keeping the columns that have
+    // an occupied cell above the current row, so that each column's top
+    // and holes are found a word at a time
+    Arrays.fill(covered, 0, words, 0);
+    int holes = 0;
+    int aggregate = 0;
+    int maxHeight = 0;
+    int transitions = 0;
+    int magicPotential = 0;
+    for (int row = 0; row < height; ++row)
+    {
+      int filled = 0;
+      int rowTransitions = 0;
+      long carry = 1;
+      for (int w = 0; w < words; ++w)
+      {
+        int i = row * words + w;
+        long bits = occupied[i];
+        long valid = w == words - 1 ? lastWordMask : -1L;
+        holes += Long.bitCount(~bits & covered[w] & valid);
+        for (long tops = bits & ~covered[w]; tops != 0; tops &= tops - 1)
+        {
+          heights[w * 64 + Long.numberOfTrailingZeros(tops)] = height - row;
+          aggregate += height - row;
+        }
+        covered[w] |= bits;
+        filled += Long.bitCount(bits);
+
+        // the walls count as occupied
+        rowTransitions += Long.bitCount((bits ^ (bits << 1 | carry)) & valid);
+        carry = bits >>> 63;
+      }
+      if (maxHeight == 0)
+      {
+        if (filled == 0)
+        {
+          // above the highest block
+          continue;
+        }
+        maxHeight = height - row;
+      }
+      transitions += isOccupied(row, width - 1) ? rowTransitions : rowTransitions + 1;
+      if (width - filled <= 2)
+      {
+        magicPotential += count(magic, row);
+      }
+    }
+    int bumpiness = 0;
+    for (int col = 0; col + 1 < width; ++col)
+    {
+      int a = (covered[col >>> 6] & 1L << col) != 0 ? heights[col] : 0;
+      int b = (covered[col + 1 >>> 6] & 1L << col + 1) != 0 ? heights[col + 1] : 0;
+      bumpiness += Math.abs(a - b);
+    }
+
+    features[Weights.HOLES] = holes;
+    features[Weights.AGGREGATE_HEIGHT] = aggregate;
+    features[Weights.BUMPINESS] = bumpiness;
+    features[Weights.ROW_TRANSITIONS] = transitions;
+    features[Weights.MAX_HEIGHT] = maxHeight;
+    features[Weights.MAGIC_POTENTIAL] = magicPotential;
+  }
+
+  /**
+   * Deletes the rows marked full and moves the rows above them down.
+   */
+  private void clearRows()
+  {
+    int to = height - 1;
+    for (int row = height - 1; row >= 0; --row)
+    {
+      if (!full[row])
+      {
+        if (to != row)
+        {
+          System.arraycopy(occupied, row * words, occupied, to * words, words);
+          System.arraycopy(magic, row * words, magic, to * words, words);
+        }
+        --to;
+      }
+    }
+    Arrays.fill(occupied, 0, (to + 1) * words, 0);
+    Arrays.fill(magic, 0, (to + 1) * words, 0);
+  }
+
+  /**
+   * Deletes the rows marked full and the empty cells below the top of
+   * each column, so that the blocks of each column fall to the bottom.
+   */
+  private void fall()
+  {
+    for (int col = 0; col < width; ++col)
+    {
+      int word = col >>> 6;
+      long bit = 1L << col;
+      int to = height - 1;
+      for (int row = height - 1; row >= 0; --row)
+      {
+        int i = row * words + word;
+        if ((occupied[i] & bit) != 0 && !full[row])
+        {
+          long m = magic[i] & bit;
+          occupied[i] &= ~bit;
+          magic[i] &= ~bit;
+          occupied[to * words + word] |= bit;
+          magic[to * words + word] |= m;
+          --to;
+        }
+        else
+        {
+          occupied[i] &= ~bit;
+          magic[i] &= ~bit;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bits set in a row of the given bits.
+   * @param bits occupied or magic
+   * @param row y-coordinate of the row
+   * @return the number of bits set
+   */
+  private int count(long[] bits, int row)
+  {
+    int n = 0;
+    for (int i = row * words; i < (row + 1) * words; ++i)
+    {
+      n += Long.bitCount(bits[i]);
+    }
+    return n;
+  }
+
+  /**
+   * Gives this board the given size.
+   * @param width width of the grid
+   * @param height height of the grid
+   * @param clear true to clear the cells, false if they are about to
+   *   be overwritten
+   */
+  private void resize(int width, int height, boolean clear)
+  {
+    this.width = width;
+    this.height = height;
+    words = (width + 63) >>> 6;
+    if (occupied.length < words * height)
+    {
+      occupied = new long[words * height];
+      magic = new long[words * height];
+    }
+    else if (clear)
+    {
+      Arrays.fill(occupied, 0, words * height, 0);
+      Arrays.fill(magic, 0, words * height, 0);
+    }
+    if (full.length < height)
+    {
+      full = new boolean[height];
+    }
+    if (heights.length < width)
+    {
+      heights = new int[width];
+    }
+    if (covered.length < words)
+    {
+      covered = new long[words];
+    }
+    lastWordMask = width % 64 == 0 ? -1L : (1L << width % 64) - 1;
+  }
+}
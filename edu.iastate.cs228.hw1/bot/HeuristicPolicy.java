@@ -0,0 +1,559 @@
+package bot;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.concurrent.RecursiveAction;
+
+import api.GameStatus;
+import api.IGame;
+import api.IInputPolicy;
+import api.IPolyomino;
+
+/**
+ * Input policy that plays CS228Tetris by rating every placement of the
+ * current polyomino.  Each placement is locked on a Board, and if there
+ * are upcoming polyominoes to look ahead to, every placement of the next
+ * one is tried on the result, and so on; the rating of a placement is
+ * the best rating of the grids it leads to, given by Weights.  A
+ * placement after which the next polyomino could not start, ending the
+ * game, is rated lowest.
+ * <p>
+ * When the placements of the next polyomino are tried on each
+ * placement of the current one, the placements of the current one are
+ * rated in parallel by fork/join tasks, in the pool of the calling
+ * thread if it is a fork/join worker, as in the BatchSimulator, and
+ * otherwise in the common pool.  Without lookahead, rating a placement
+ * only means rating one grid, which costs less than forking a task, so
+ * the placements are rated in turn.  Ties go to the placement found
+ * first, so the moves do not depend on the number of threads.
+ * <p>
+ * The policy holds no state for any particular game other than the
+ * per-thread plan IInputPolicy allows, so one instance can play any
+ * number of games on any number of threads.  The moves
+ * toward the chosen placement are made up to the first that needs a
+ * step; if nothing but steps remains, the polyomino is hard dropped,
+ * and otherwise the rest of the moves are made after the step.  Each
+ * thread remembers the rest of the moves only for the polyomino it last
+ * moved, and only uses them if the step moved it as expected; otherwise
+ * the placements are rated again.  Nothing is done when the polyomino
+ * is stopped, since it only stops where it was taken.
+ */
+public class HeuristicPolicy implements IInputPolicy
+{
+  /**
+   * Number of upcoming polyominoes looked ahead to by default.
+   */
+  public static final int DEFAULT_LOOKAHEAD = 1;
+
+  /**
+   * Weights rating the grids.
+   */
+  private final Weights weights;
+
+  /**
+   * Number of upcoming polyominoes whose placements are tried.
+   */
+  private final int lookahead;
+
+  /**
+   * True if the placements are rated in parallel.
+   */
+  private final boolean parallel;
+
+  /**
+   * Searches not in use by each thread.  A thread may need more than
+   * one, since while it waits for the tasks rating one game's
+   * placements it may run tasks of another game.
+   */
+  private final ThreadLocal<ArrayDeque<Search>> idle = new ThreadLocal<ArrayDeque<Search>>()
+  {
+    @Override
+    protected ArrayDeque<Search> initialValue()
+    {
+      return new ArrayDeque<Search>();
+    }
+  };
+
+  /**
+   * Moves toward the placement chosen for the polyomino each thread
+   * last moved, which refer to its game only weakly.
+   */
+  private final ThreadLocal<Plan> plans = new ThreadLocal<Plan>()
+  {
+    @Override
+    protected Plan initialValue()
+    {
+      return new Plan();
+    }
+  };
+
+  /**
+   * Constructs a policy with the default weights and lookahead, rating
+   * placements in parallel.
+   */
+  public HeuristicPolicy()
+  {
+    this(Weights.DEFAULT, DEFAULT_LOOKAHEAD, true);
+  }
+
+  /**
+   * Constructs a policy with the given weights and the default
+   * lookahead, rating placements in parallel.
+   * @param weights weights rating the grids
+   */
+  public HeuristicPolicy(Weights weights)
+  {
+    this(weights, DEFAULT_LOOKAHEAD, true);
+  }
+
+  /**
+   * Constructs a policy.
+   * @param weights weights rating the grids
+   * @param lookahead number of upcoming polyominoes whose placements
+   *   are tried, limited by the preview depth of each game
+   * @param parallel true to rate the placements of the current
+   *   polyomino in parallel
+   */
+  public HeuristicPolicy(Weights weights, int lookahead, boolean parallel)
+  {
+    if (lookahead < 0)
+    {
+      throw new IllegalArgumentException("lookahead " + lookahead);
+    }
+    this.weights = weights;
+    this.lookahead = lookahead;
+    this.parallel = parallel;
+  }
+
+  /**
+   * Returns the weights rating the grids.
+   * @return the weights
+   */
+  public Weights getWeights()
+  {
+    return weights;
+  }
+
+  /**
+   * Returns the number of upcoming polyominoes whose placements are
+   * tried.
+   * @return the lookahead
+   */
+  public int getLookahead()
+  {
+    return lookahead;
+  }
+
+  @Override
+  public void move(IGame game, GameStatus status)
+  {
+    if (status == GameStatus.STOPPED)
+    {
+      return;
+    }
+    Plan plan = plans.get();
+    if (status != GameStatus.FALLING || !plan.resumes(game))
+    {
+      Search search = acquire();
+      try
+      {
+        int best = search.choose(game);
+        if (best < 0)
+        {
+          plan.clear();
+          return;
+        }
+        plan.start(game, search.finders[0], best);
+      }
+      finally
+      {
+        release(search);
+      }
+    }
+    plan.follow(game);
+  }
+
+  /**
+   * Takes a search not in use by the calling thread.
+   * @return the search
+   */
+  private Search acquire()
+  {
+    Search search = idle.get().poll();
+    return search != null ? search : new Search();
+  }
+
+  /**
+   * Gives back a search taken by acquire() on the same thread.
+   * @param search the search
+   */
+  private void release(Search search)
+  {
+    idle.get().push(search);
+  }
+
+  /**
+   * Boards, finders and other arrays for choosing one placement, or
+   * for rating some of the placements of the current polyomino on
+   * behalf of another search.
+   */
+  private final class Search
+  {
+    /**
+     * Grid of the game.
+     */
+    private final Board root = new Board();
+
+    /**
+     * Finder for each polyomino, the current one first.
+     */
+    private final PlacementFinder[] finders = new PlacementFinder[lookahead + 1];
+
+    /**
+     * Board for each polyomino, on which it has been locked.
+     */
+    private final Board[] boards = new Board[lookahead + 1];
+
+    /**
+     * The current polyomino followed by the upcoming ones looked at.
+     */
+    private final IPolyomino[] pieces = new IPolyomino[lookahead + 2];
+
+    /**
+     * Number of polyominoes in pieces.
+     */
+    private int pieceCount;
+
+    /**
+     * Rating of each placement of the current polyomino.
+     */
+    private double[] ratings = new double[0];
+
+    /**
+     * Features of the grid being rated.
+     */
+    private final int[] features = new int[Weights.FEATURE_COUNT];
+
+    /**
+     * Constructs a search.
+     */
+    private Search()
+    {
+      for (int i = 0; i <= lookahead; ++i)
+      {
+        finders[i] = new PlacementFinder();
+        boards[i] = new Board();
+      }
+    }
+
+    /**
+     * Rates the placements of the current polyomino of the given game.
+     * @param game the game
+     * @return the index of the best placement, or -1 if there are none
+     */
+    private int choose(IGame game)
+    {
+      root.read(game);
+      pieceCount = 1 + Math.min(lookahead + 1, game.getPreviewDepth());
+      for (int i = 0; i < pieceCount; ++i)
+      {
+        pieces[i] = i == 0 ? game.getCurrent() : game.getPreview(i - 1);
+      }
+      int n = finders[0].find(root, pieces[0]);
+      if (ratings.length < n)
+      {
+        ratings = new double[Math.max(n, ratings.length * 2)];
+      }
+      if (parallel && n > 1 && lookahead > 0 && pieceCount > 1)
+      {
+        new Rate(this, 0, n).invoke();
+      }
+      else
+      {
+        for (int i = 0; i < n; ++i)
+        {
+          ratings[i] = rate(this, i);
+        }
+      }
+
+      int best = -1;
+      for (int i = 0; i < n; ++i)
+      {
+        if (best < 0 || ratings[i] > ratings[best])
+        {
+          best = i;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Rates a placement of the current polyomino of another search,
+     * using this search's boards and finders past the first.
+     * @param owner the search that found the placement
+     * @param i index of the placement
+     * @return the rating
+     */
+    private double rate(Search owner, int i)
+    {
+      pieceCount = owner.pieceCount;
+      System.arraycopy(owner.pieces, 0, pieces, 0, pieceCount);
+      boards[0].copy(owner.root);
+      int points = boards[0].lock(owner.finders[0], i);
+      return rate(0, points);
+    }
+
+    /**
+     * Rates the grid on which a polyomino has just been locked.
+     * @param ply index of the polyomino in pieces
+     * @param points points scored by it and the ones before it
+     * @return the rating, the best of the grids after the next
+     *   polyomino if it is looked ahead to
+     */
+    private double rate(int ply, int points)
+    {
+      Board board = boards[ply];
+      if (ply + 1 < pieceCount)
+      {
+        if (board.collides(pieces[ply + 1]))
+        {
+          return Double.NEGATIVE_INFINITY;
+        }
+        if (ply + 1 <= lookahead)
+        {
+          PlacementFinder finder = finders[ply + 1];
+          int n = finder.find(board, pieces[ply + 1]);
+          double best = Double.NEGATIVE_INFINITY;
+          for (int i = 0; i < n; ++i)
+          {
+            boards[ply + 1].copy(board);
+            int more = boards[ply + 1].lock(finder, i);
+            best = Math.max(best, rate(ply + 1, points + more));
+          }
+          return best;
+        }
+      }
+      board.computeFeatures(features);
+      features[Weights.SCORE] = points;
+      return weights.evaluate(features);
+    }
+  }
+
+  /**
+   * Moves toward a chosen placement.  When the moves continue after a
+   * step, the plan remembers where the step should put the polyomino,
+   * so that the moves need not be found again as long as the game is
+   * the same and nothing else has changed it.
+   */
+  private static final class Plan
+  {
+    /**
+     * The game, or null if the plan is finished.  It is only weakly
+     * referred to, so that a plan left unfinished when the game ends
+     * does not keep the game alive.
+     */
+    private WeakReference<IGame> game;
+
+    /**
+     * Version of the grid of the game when the plan was last followed.
+     */
+    private long gridVersion;
+
+    /**
+     * The moves.
+     */
+    private int[] moves = new int[0];
+
+    /**
+     * Number of moves.
+     */
+    private int length;
+
+    /**
+     * Index of the next move.
+     */
+    private int next;
+
+    /**
+     * x-coordinates of the cells of the polyomino expected after the
+     * next step.
+     */
+    private int[] cellX = new int[0];
+
+    /**
+     * y-coordinates of the cells of the polyomino expected after the
+     * next step.
+     */
+    private int[] cellY = new int[0];
+
+    /**
+     * Starts a plan for moving the current polyomino of a game to a
+     * placement.
+     * @param game the game
+     * @param finder the finder that found the placement
+     * @param i index of the placement
+     */
+    private void start(IGame game, PlacementFinder finder, int i)
+    {
+      this.game = new WeakReference<IGame>(game);
+      length = finder.getPathLength(i);
+      if (moves.length < length)
+      {
+        moves = new int[Math.max(length, moves.length * 2)];
+      }
+      finder.getPath(i, moves);
+      next = 0;
+    }
+
+    /**
+     * Determines whether this plan is for the given game and the last
+     * step moved its polyomino down as expected.
+     * @param game the game
+     * @return true if the plan can be followed
+     */
+    private boolean resumes(IGame game)
+    {
+      if (this.game == null || this.game.get() != game
+          || game.getGridVersion() != gridVersion)
+      {
+        return false;
+      }
+      IPolyomino p = game.getCurrent();
+      for (int i = 0; i < cellX.length; ++i)
+      {
+        if (p.getCellX(i) != cellX[i] || p.getCellY(i) != cellY[i])
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Makes the moves up to the first that needs a step, or hard drops
+     * the polyomino if nothing but steps remains.
+     * @param game the game
+     */
+    private void follow(IGame game)
+    {
+      while (next < length)
+      {
+        switch (moves[next])
+        {
+          case PlacementFinder.SHIFT_LEFT:
+            game.shiftLeft();
+            break;
+          case PlacementFinder.SHIFT_RIGHT:
+            game.shiftRight();
+            break;
+          case PlacementFinder.TRANSFORM:
+            game.transform();
+            break;
+          default:
+            int j = next;
+            while (j < length && moves[j] == PlacementFinder.DOWN)
+            {
+              ++j;
+            }
+            if (j == length)
+            {
+              game.hardDrop();
+              clear();
+              return;
+            }
+            // the next step moves it down
+            next += 1;
+            expect(game.getCurrent());
+            gridVersion = game.getGridVersion();
+            return;
+        }
+        next += 1;
+      }
+      clear();
+    }
+
+    /**
+     * Finishes the plan.
+     */
+    private void clear()
+    {
+      game = null;
+    }
+
+    /**
+     * Records where the given polyomino will be after moving down one
+     * row.
+     * @param p the polyomino
+     */
+    private void expect(IPolyomino p)
+    {
+      if (cellX.length != p.getCellCount())
+      {
+        cellX = new int[p.getCellCount()];
+        cellY = new int[p.getCellCount()];
+      }
+      for (int i = 0; i < cellX.length; ++i)
+      {
+        cellX[i] = p.getCellX(i);
+        cellY[i] = p.getCellY(i) + 1;
+      }
+    }
+  }
+
+  /**
+   * Task rating the placements of the current polyomino of a search
+   * from start up to, but not including, end.
+   */
+  private final class Rate extends RecursiveAction
+  {
+    /**
+     * Version of the serialized form, which is never used.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The search whose placements are rated.
+     */
+    private final Search owner;
+
+    /**
+     * Index of the first placement.
+     */
+    private final int start;
+
+    /**
+     * One more than the index of the last placement.
+     */
+    private final int end;
+
+    /**
+     * Constructs a task for the given range of placements.
+     */
+    private Rate(Search owner, int start, int end)
+    {
+      this.owner = owner;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (end - start == 1)
+      {
+        Search search = acquire();
+        try
+        {
+          owner.ratings[start] = search.rate(owner, start);
+        }
+        finally
+        {
+          release(search);
+        }
+        return;
+      }
+      int mid = (start + end) >>> 1;
+      invokeAll(new Rate(owner, start, mid), new Rate(owner, mid, end));
+    }
+  }
+}
@@ -0,0 +1,817 @@
+package bot;
+
+import java.util.Arrays;
+
+import api.Cell;
+import api.IGame;
+import api.IPolyomino;
+
+/**
+ * Finds every place the current polyomino of a game can come to rest.
+ * A search starts from the polyomino where it is and follows the moves
+ * the game allows: shiftLeft(), shiftRight() and transform() at any
+ * time, and a shift down by step() while the cells below are free.  A
+ * placement is a position reached this way from which the polyomino
+ * cannot move down, so that the next steps would lock it there.
+ * Placements reached only by moving sideways or transforming under an
+ * overhang (tucks and spins) are found as well as those reached by
+ * dropping straight down.
+ * <p>
+ * The search is breadth-first over states made of the number of
+ * transforms and the offsets from the starting position, on a Board
+ * holding the occupied cells of the grid as one bit per cell.
+ * Collisions are tested as the game tests them: the polyomino may not go past the
+ * sides or bottom of the grid or overlap an occupied cell, but may
+ * extend above the top.  Placements that cover the same cells, with
+ * magic blocks in the same places, are reported once, even if they are
+ * reached in different orientations, and the sequence of moves reaching
+ * each one can be retrieved with getPath().  cycle() is not part of the
+ * search, although transform() may move the magic block as well as the
+ * cells.
+ * <p>
+ * Besides the current polyomino of a game, a finder can search for the
+ * placements of any polyomino on a Board, for example for an upcoming
+ * polyomino on a board where the current one has been locked.
+ * <p>
+ * A finder reuses its arrays from one search to the next and allocates
+ * nothing once they are large enough, except for one copy of the
+ * polyomino per search.  A finder is not thread-safe; a thread that
+ * searches should have its own.
+ */
+public class PlacementFinder
+{
+  /**
+   * Move code for shiftLeft().
+   */
+  public static final int SHIFT_LEFT = 0;
+
+  /**
+   * Move code for shiftRight().
+   */
+  public static final int SHIFT_RIGHT = 1;
+
+  /**
+   * Move code for transform().
+   */
+  public static final int TRANSFORM = 2;
+
+  /**
+   * Move code for a step() that shifts the polyomino down one row.
+   */
+  public static final int DOWN = 3;
+
+  /**
+   * Number of orientations recorded to find how they repeat.
+   */
+  private static final int MAX_ORIENTATIONS = 12;
+
+  /**
+   * Board searched by the last search.
+   */
+  private Board board;
+
+  /**
+   * Copy of the grid of the game searched by find(IGame).
+   */
+  private final Board gameBoard = new Board();
+
+  /**
+   * Width of the grid searched.
+   */
+  private int width;
+
+  /**
+   * Height of the grid searched.
+   */
+  private int height;
+
+  /**
+   * Number of cells of the polyomino.
+   */
+  private int cellCount;
+
+  /**
+   * Number of distinct orientations, in the order the transforms reach
+   * them.
+   */
+  private int orientations;
+
+  /**
+   * Orientation reached by transforming the polyomino in the last one,
+   * or -1 if the orientations did not repeat within MAX_ORIENTATIONS.
+   */
+  private int loopStart;
+
+  /**
+   * x-coordinates of the cells in each orientation at the starting
+   * position, indexed by orientation * cellCount + cell.
+   */
+  private int[] shapeX = new int[0];
+
+  /**
+   * y-coordinates of the cells in each orientation at the starting
+   * position, indexed like shapeX.
+   */
+  private int[] shapeY = new int[0];
+
+  /**
+   * For each orientation, bit i set if cell i holds a magic block.
+   * Transforming may move the magic block, so it is recorded for each
+   * orientation rather than once.
+   */
+  private final int[] shapeMagic = new int[MAX_ORIENTATIONS];
+
+  /**
+   * For each orientation, the first orientation covering the same
+   * cells, with the same magic blocks, up to a translation.
+   */
+  private final int[] canonical = new int[MAX_ORIENTATIONS];
+
+  /**
+   * For each orientation, the x-offset to add to give the same cells
+   * in its canonical orientation.
+   */
+  private final int[] canonicalX = new int[MAX_ORIENTATIONS];
+
+  /**
+   * For each orientation, the y-offset to add to give the same cells
+   * in its canonical orientation.
+   */
+  private final int[] canonicalY = new int[MAX_ORIENTATIONS];
+
+  /**
+   * Smallest x-offset from the starting position that any orientation
+   * can have inside the grid.
+   */
+  private int minDx;
+
+  /**
+   * Smallest y-offset in the search space.  It is negative when an
+   * orientation covers the same cells as an earlier one placed higher,
+   * so that the placements can be indexed by their earlier orientation.
+   */
+  private int minDy;
+
+  /**
+   * Number of x-offsets in the search space.
+   */
+  private int spanX;
+
+  /**
+   * Number of y-offsets in the search space.
+   */
+  private int spanY;
+
+  /**
+   * Number of the current search, used to mark visited states without
+   * clearing the arrays.
+   */
+  private int stamp;
+
+  /**
+   * Search number at which each state was visited.
+   */
+  private int[] visited = new int[0];
+
+  /**
+   * Search number at which each placement, indexed like the state of
+   * its canonical orientation, was found.
+   */
+  private int[] found = new int[0];
+
+  /**
+   * State from which each visited state was first reached.
+   */
+  private int[] parent = new int[0];
+
+  /**
+   * Move by which each visited state was first reached.
+   */
+  private byte[] parentMove = new byte[0];
+
+  /**
+   * States waiting to be expanded, all in the same row.
+   */
+  private int[] queue = new int[0];
+
+  /**
+   * States reached by moving down from the row being expanded, which
+   * are expanded after it.
+   */
+  private int[] below = new int[0];
+
+  /**
+   * Search number at which each mask in freeMasks was made.
+   */
+  private int[] maskStamps = new int[0];
+
+  /**
+   * Masks made by freeOffsets(), indexed by orientation and row.
+   */
+  private long[] freeMasks = new long[0];
+
+  /**
+   * States of the placements found.
+   */
+  private int[] placements = new int[0];
+
+  /**
+   * Number of placements found.
+   */
+  private int count;
+
+  /**
+   * Finds the placements of the current polyomino of the given game.
+   * @param game the game
+   * @return the number of placements found, 0 if the polyomino already
+   *   overlaps the grid
+   * @throws IllegalStateException if the game has no current polyomino
+   */
+  public int find(IGame game)
+  {
+    gameBoard.read(game);
+    return find(gameBoard, game.getCurrent());
+  }
+
+  /**
+   * Finds the placements of the given polyomino on the given board,
+   * starting from where the polyomino is.  The board must not be
+   * modified until the results of the search are no longer needed.
+   * @param board the board
+   * @param p the polyomino, which is not modified
+   * @return the number of placements found, 0 if the polyomino already
+   *   overlaps the board
+   */
+  public int find(Board board, IPolyomino p)
+  {
+    this.board = board;
+    width = board.getWidth();
+    height = board.getHeight();
+    readShapes(p);
+    allocate();
+    stamp += 1;
+    if (stamp == 0)
+    {
+      // the stamps wrapped around; start again with clean arrays
+      Arrays.fill(visited, 0);
+      Arrays.fill(found, 0);
+      Arrays.fill(maskStamps, 0);
+      stamp = 1;
+    }
+    count = 0;
+
+    int start = index(0, 0, 0);
+    if (collides(0, 0, 0))
+    {
+      return 0;
+    }
+    visited[start] = stamp;
+    parent[start] = -1;
+
+    // every state of a row is expanded before the states below it, so
+    // that the polyomino is moved down only once it has been moved and
+    // transformed as far as it can be in the rows above
+    int head = 0;
+    int tail = 0;
+    int down = 0;
+    int nextDy = nextRow(0);
+    queue[tail++] = start;
+    while (head < tail)
+    {
+      int state = queue[head++];
+      int dy = state / spanX % spanY + minDy;
+      int k = state / spanX / spanY;
+      int dx = state % spanX + minDx;
+      tail = visit(k, dx - 1, dy, state, SHIFT_LEFT, queue, tail);
+      tail = visit(k, dx + 1, dy, state, SHIFT_RIGHT, queue, tail);
+      int next = k + 1 < orientations ? k + 1 : loopStart;
+      if (next >= 0 && next != k)
+      {
+        tail = visit(next, dx, dy, state, TRANSFORM, queue, tail);
+      }
+      if (collides(k, dx, dy + 1))
+      {
+        // comes to rest here
+        int key = index(canonical[k], dx + canonicalX[k], dy + canonicalY[k]);
+        if (found[key] != stamp)
+        {
+          found[key] = stamp;
+          placements[count++] = state;
+        }
+      }
+      else
+      {
+        down = visit(k, dx, nextDy, state, DOWN, below, down);
+      }
+      if (head == tail)
+      {
+        int[] temp = queue;
+        queue = below;
+        below = temp;
+        head = 0;
+        tail = down;
+        down = 0;
+        nextDy = nextRow(nextDy);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of placements found by the last search.
+   * @return the number of placements
+   */
+  public int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Returns the number of cells of the polyomino searched.
+   * @return the number of cells
+   */
+  public int getCellCount()
+  {
+    return cellCount;
+  }
+
+  /**
+   * Returns the orientation of the polyomino at a placement, as the
+   * smallest number of transforms that brings it there from its
+   * starting orientation.
+   * @param i index of the placement
+   * @return the orientation
+   */
+  public int getOrientation(int i)
+  {
+    return placements[i] / spanX / spanY;
+  }
+
+  /**
+   * Returns the number of columns a placement is to the right of the
+   * starting position, negative if it is to the left.
+   * @param i index of the placement
+   * @return the horizontal offset
+   */
+  public int getOffsetX(int i)
+  {
+    return placements[i] % spanX + minDx;
+  }
+
+  /**
+   * Returns the number of rows a placement is below the starting
+   * position.
+   * @param i index of the placement
+   * @return the vertical offset
+   */
+  public int getOffsetY(int i)
+  {
+    return placements[i] / spanX % spanY + minDy;
+  }
+
+  /**
+   * Returns the x-coordinate of a cell of the polyomino at a placement.
+   * @param i index of the placement
+   * @param cell index of the cell, as for IPolyomino.getCellX()
+   * @return the x-coordinate of the cell
+   */
+  public int getCellX(int i, int cell)
+  {
+    return shapeX[getOrientation(i) * cellCount + cell] + getOffsetX(i);
+  }
+
+  /**
+   * Returns the y-coordinate of a cell of the polyomino at a placement.
+   * @param i index of the placement
+   * @param cell index of the cell, as for IPolyomino.getCellY()
+   * @return the y-coordinate of the cell
+   */
+  public int getCellY(int i, int cell)
+  {
+    return shapeY[getOrientation(i) * cellCount + cell] + getOffsetY(i);
+  }
+
+  /**
+   * Returns the number of moves getPath() writes for a placement.
+   * @param i index of the placement
+   * @return the number of moves
+   */
+  public int getPathLength(int i)
+  {
+    int n = 0;
+    for (int state = placements[i]; parent[state] >= 0; state = parent[state])
+    {
+      n += moveCount(state);
+    }
+    return n;
+  }
+
+  /**
+   * Determines whether a cell of the polyomino holds a magic block at a
+   * placement.
+   * @param i index of the placement
+   * @param cell index of the cell, as for IPolyomino.getCellX()
+   * @return true if the block is magic
+   */
+  public boolean isMagic(int i, int cell)
+  {
+    return (shapeMagic[getOrientation(i)] & 1 << cell) != 0;
+  }
+
+  /**
+   * Writes a sequence of moves that brings the polyomino from its
+   * starting position to a placement.  Each shift and transform is
+   * made in the highest row it can be, so when the placement can be
+   * reached by dropping the polyomino straight down, the moves end with
+   * nothing but DOWN.  Making the moves on the game, with step() for
+   * DOWN, puts the polyomino at the placement; the steps after that
+   * lock it.
+   * @param i index of the placement
+   * @param moves array for the move codes, of at least
+   *   getPathLength(i) elements
+   * @return the number of moves
+   */
+  public int getPath(int i, int[] moves)
+  {
+    int n = getPathLength(i);
+    int j = n;
+    for (int state = placements[i]; parent[state] >= 0; state = parent[state])
+    {
+      for (int m = moveCount(state); m > 0; --m)
+      {
+        moves[--j] = parentMove[state];
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Returns the number of moves by which a state was first reached,
+   * which is more than one when it was reached by moving down past
+   * rows that are all alike.
+   * @param state a state other than the starting one
+   * @return the number of moves
+   */
+  private int moveCount(int state)
+  {
+    if (parentMove[state] != DOWN)
+    {
+      return 1;
+    }
+    return state / spanX % spanY - parent[state] / spanX % spanY;
+  }
+
+  /**
+   * Returns the row that the polyomino reaches by moving down from the
+   * given row.  Usually this is the next row, but when the polyomino
+   * would not collide at the same x-offsets in the next rows as in the
+   * given row, in any orientation, those rows have no placements and
+   * lead to no moves that the given row does not, so the polyomino is
+   * moved down past all of them at once.  On a grid with few blocks
+   * this skips most of the rows.
+   * @param dy y-offset of the row
+   * @return y-offset of the row reached
+   */
+  private int nextRow(int dy)
+  {
+    int row = dy - minDy;
+    if (spanX > 64 || row + 1 >= spanY || !sameRow(row + 1, row))
+    {
+      return dy + 1;
+    }
+    int last = row + 1;
+    while (last + 1 < spanY && sameRow(last + 1, row))
+    {
+      ++last;
+    }
+    return last + minDy;
+  }
+
+  /**
+   * Determines whether the polyomino would collide at the same
+   * x-offsets in two rows, in every orientation.
+   * @param a one row, as a y-offset less minDy
+   * @param b the other row, as a y-offset less minDy
+   * @return true if the rows are alike
+   */
+  private boolean sameRow(int a, int b)
+  {
+    for (int k = 0; k < orientations; ++k)
+    {
+      if (freeOffsets(k, a) != freeOffsets(k, b))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Marks a state as reached and queues it, unless it has been reached
+   * already or the polyomino would collide there.
+   * @param k orientation
+   * @param dx x-offset
+   * @param dy y-offset
+   * @param from the state it is reached from
+   * @param move the move that reaches it
+   * @param q the queue to add it to
+   * @param tail index in the queue of the next free entry
+   * @return the new index of the next free entry
+   */
+  private int visit(int k, int dx, int dy, int from, int move, int[] q, int tail)
+  {
+    if (collides(k, dx, dy))
+    {
+      return tail;
+    }
+    int state = index(k, dx, dy);
+    if (visited[state] == stamp)
+    {
+      return tail;
+    }
+    visited[state] = stamp;
+    parent[state] = from;
+    parentMove[state] = (byte) move;
+    q[tail] = state;
+    return tail + 1;
+  }
+
+  /**
+   * Determines whether the polyomino, in the given orientation and at
+   * the given offsets, would extend past the sides or bottom of the
+   * grid or overlap an occupied cell.
+   * @param k orientation
+   * @param dx x-offset
+   * @param dy y-offset
+   * @return true if it would collide
+   */
+  private boolean collides(int k, int dx, int dy)
+  {
+    if (spanX <= 64)
+    {
+      int row = dy - minDy;
+      int i = dx - minDx;
+      if (row < 0 || row >= spanY || i < 0 || i >= spanX)
+      {
+        return true;
+      }
+      return (freeOffsets(k, row) & 1L << i) == 0;
+    }
+    int base = k * cellCount;
+    for (int i = base; i < base + cellCount; ++i)
+    {
+      int x = shapeX[i] + dx;
+      int y = shapeY[i] + dy;
+      if (x < 0 || x >= width || y >= height)
+      {
+        return true;
+      }
+      if (y >= 0 && board.isOccupied(y, x))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the x-offsets, within the search space, at which the
+   * polyomino in the given orientation and row would not collide, as a
+   * mask with bit <code>dx - minDx</code> set for each.  The mask is
+   * made from a word of the board per cell and kept for the rest of
+   * the search.  Used only when spanX is at most 64, so the grid fits
+   * in one word per row.
+   * @param k orientation
+   * @param row y-offset less minDy
+   * @return the mask
+   */
+  private long freeOffsets(int k, int row)
+  {
+    int index = k * spanY + row;
+    if (maskStamps[index] == stamp)
+    {
+      return freeMasks[index];
+    }
+    long valid = width == 64 ? -1L : (1L << width) - 1;
+    long free = -1L;
+    for (int i = k * cellCount; i < (k + 1) * cellCount && free != 0; ++i)
+    {
+      int y = shapeY[i] + row + minDy;
+      long cells = y < 0 ? valid : y >= height ? 0 : ~board.getWord(y, 0) & valid;
+      // cell i is at column shapeX[i] + dx, which is never to the
+      // right of bit dx - minDx
+      free &= cells << -(shapeX[i] + minDx);
+    }
+    maskStamps[index] = stamp;
+    freeMasks[index] = free;
+    return free;
+  }
+
+  /**
+   * Returns the index of a state.
+   * @param k orientation
+   * @param dx x-offset, within the search space
+   * @param dy y-offset, within the search space
+   * @return the index
+   */
+  private int index(int k, int dx, int dy)
+  {
+    return (k * spanY + dy - minDy) * spanX + dx - minDx;
+  }
+
+  /**
+   * Records the cells and magic blocks of each orientation of the given
+   * polyomino, how the orientations repeat, and which of them cover the
+   * same cells.
+   * @param p the polyomino, which is not modified
+   */
+  private void readShapes(IPolyomino p)
+  {
+    cellCount = p.getCellCount();
+    if (shapeX.length < MAX_ORIENTATIONS * cellCount)
+    {
+      shapeX = new int[MAX_ORIENTATIONS * cellCount];
+      shapeY = new int[MAX_ORIENTATIONS * cellCount];
+    }
+    IPolyomino q = (IPolyomino) p.clone();
+    for (int k = 0; k < MAX_ORIENTATIONS; ++k)
+    {
+      for (int i = 0; i < cellCount; ++i)
+      {
+        shapeX[k * cellCount + i] = q.getCellX(i);
+        shapeY[k * cellCount + i] = q.getCellY(i);
+      }
+      Cell[] cells = q.getCells();
+      shapeMagic[k] = 0;
+      for (int i = 0; i < cellCount; ++i)
+      {
+        if (cells[i].getIcon().isMagic())
+        {
+          shapeMagic[k] |= 1 << i;
+        }
+      }
+      q.transform();
+    }
+
+    // the first orientation equal to an earlier one, such that all
+    // those recorded after it follow the same loop, closes the loop;
+    // transforming may change the icons, so the orientations need not
+    // come back to the first one
+    orientations = MAX_ORIENTATIONS;
+    loopStart = -1;
+    for (int k = 1; k < MAX_ORIENTATIONS && loopStart < 0; ++k)
+    {
+      for (int j = 0; j < k && loopStart < 0; ++j)
+      {
+        boolean repeats = true;
+        for (int m = k; m < MAX_ORIENTATIONS && repeats; ++m)
+        {
+          repeats = sameOrientation(m, j + (m - j) % (k - j));
+        }
+        if (repeats)
+        {
+          orientations = k;
+          loopStart = j;
+        }
+      }
+    }
+
+    int minX = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE;
+    int minY = Integer.MAX_VALUE;
+    for (int i = 0; i < orientations * cellCount; ++i)
+    {
+      minX = Math.min(minX, shapeX[i]);
+      maxX = Math.max(maxX, shapeX[i]);
+      minY = Math.min(minY, shapeY[i]);
+    }
+    minDx = -maxX;
+    spanX = width - minX + maxX;
+
+    minDy = 0;
+    for (int k = 0; k < orientations; ++k)
+    {
+      canonical[k] = k;
+      canonicalX[k] = 0;
+      canonicalY[k] = 0;
+      for (int j = 0; j < k; ++j)
+      {
+        int ox = minimum(shapeX, k) - minimum(shapeX, j);
+        int oy = minimum(shapeY, k) - minimum(shapeY, j);
+        if (sameCells(k, j, ox, oy))
+        {
+          canonical[k] = canonical[j];
+          canonicalX[k] = ox + canonicalX[j];
+          canonicalY[k] = oy + canonicalY[j];
+          break;
+        }
+      }
+      minDy = Math.min(minDy, canonicalY[k]);
+    }
+    spanY = Math.max(height - minY, 1) - minDy;
+  }
+
+  /**
+   * Determines whether two orientations have the same cells, in the
+   * same order, with the same magic blocks.
+   * @param k one orientation
+   * @param j the other orientation
+   * @return true if they are the same
+   */
+  private boolean sameOrientation(int k, int j)
+  {
+    if (shapeMagic[k] != shapeMagic[j])
+    {
+      return false;
+    }
+    for (int i = 0; i < cellCount; ++i)
+    {
+      if (shapeX[k * cellCount + i] != shapeX[j * cellCount + i] || shapeY[k * cellCount + i] != shapeY[j * cellCount + i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the smallest coordinate of the cells of an orientation.
+   * @param shape shapeX or shapeY
+   * @param k the orientation
+   * @return the smallest coordinate
+   */
+  private int minimum(int[] shape, int k)
+  {
+    int min = Integer.MAX_VALUE;
+    for (int i = k * cellCount; i < (k + 1) * cellCount; ++i)
+    {
+      min = Math.min(min, shape[i]);
+    }
+    return min;
+  }
+
+  /**
+   * Determines whether orientation k covers the same cells as
+   * orientation j moved by the given offsets, with magic blocks in the
+   * same places.
+   * @param k one orientation
+   * @param j the other orientation
+   * @param ox x-offset
+   * @param oy y-offset
+   * @return true if the cells are the same
+   */
+  private boolean sameCells(int k, int j, int ox, int oy)
+  {
+    for (int a = k * cellCount; a < (k + 1) * cellCount; ++a)
+    {
+      boolean matched = false;
+      for (int b = j * cellCount; b < (j + 1) * cellCount && !matched; ++b)
+      {
+        matched = shapeX[a] == shapeX[b] + ox && shapeY[a] == shapeY[b] + oy
+            && (shapeMagic[k] >>> a - k * cellCount & 1) == (shapeMagic[j] >>> b - j * cellCount & 1);
+      }
+      if (!matched)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Makes sure the arrays indexed by state cover the search space.  If
+   * any stamped array is replaced, the stamps start again, so the ones
+   * kept are cleared as well.
+   */
+  private void allocate()
+  {
+    boolean grown = false;
+    int states = orientations * spanX * spanY;
+    if (visited.length < states)
+    {
+      int n = Math.max(states, visited.length * 2);
+      visited = new int[n];
+      found = new int[n];
+      parent = new int[n];
+      parentMove = new byte[n];
+      queue = new int[n];
+      below = new int[n];
+      placements = new int[n];
+      grown = true;
+    }
+    if (maskStamps.length < orientations * spanY)
+    {
+      int n = Math.max(orientations * spanY, maskStamps.length * 2);
+      maskStamps = new int[n];
+      freeMasks = new long[n];
+      grown = true;
+    }
+    if (grown)
+    {
+      Arrays.fill(visited, 0);
+      Arrays.fill(found, 0);
+      Arrays.fill(maskStamps, 0);
+      stamp = 0;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package bot;
+
+import java.util.Arrays;
+
+/**
+ * Immutable weights of the features a HeuristicPolicy uses to rate a
+ * grid.  The rating of a grid is the sum of each feature multiplied by
+ * its weight, and the policy prefers higher ratings, so the weights of
+ * bad features such as holes are negative.
+ * <p>
+ * The weights can be written as a list of numbers separated by commas,
+ * in the order of the feature constants, so that a tuner can pass them
+ * to SimulationMain and read them back from toString().
+ */
+public final class Weights
+{
+  /**
+   * Feature for the points scored by the placements.
+   */
+  public static final int SCORE = 0;
+
+  /**
+   * Feature for the number of empty cells below the top of their
+   * column.
+   */
+  public static final int HOLES = 1;
+
+  /**
+   * Feature for the sum of the heights of the columns.
+   */
+  public static final int AGGREGATE_HEIGHT = 2;
+
+  /**
+   * Feature for the sum of the differences in height of adjacent
+   * columns.
+   */
+  public static final int BUMPINESS = 3;
+
+  /**
+   * Feature for the number of changes between occupied and empty cells
+   * along the rows, counting the walls as occupied.
+   */
+  public static final int ROW_TRANSITIONS = 4;
+
+  /**
+   * Feature for the height of the highest column.
+   */
+  public static final int MAX_HEIGHT = 5;
+
+  /**
+   * Feature for the number of magic blocks in rows missing at most two
+   * blocks, which may soon make up a group that lets the blocks fall
+   * into the holes.
+   */
+  public static final int MAGIC_POTENTIAL = 6;
+
+  /**
+   * Number of features.
+   */
+  public static final int FEATURE_COUNT = 7;
+
+  /**
+   * Weights that play a reasonable game on the default grid.
+   */
+  public static final Weights DEFAULT = new Weights(0.76, -0.36, -0.51, -0.18, -0.10, -0.05, 0.10);
+
+  /**
+   * Names of the features, for toString() and error messages.
+   */
+  private static final String[] NAMES = {
+    "score", "holes", "aggregateHeight", "bumpiness", "rowTransitions", "maxHeight", "magicPotential"
+  };
+
+  /**
+   * The weights, indexed by feature.
+   */
+  private final double[] values;
+
+  /**
+   * Constructs weights from the given values.
+   * @param values the weight of each feature, in the order of the
+   *   feature constants
+   * @throws IllegalArgumentException if there is not one value per
+   *   feature
+   */
+  public Weights(double... values)
+  {
+    if (values.length != FEATURE_COUNT)
+    {
+      throw new IllegalArgumentException("Expected " + FEATURE_COUNT + " weights, got " + values.length);
+    }
+    this.values = values.clone();
+  }
+
+  /**
+   * Parses weights written as numbers separated by commas.
+   * @param s the weights
+   * @return the weights
+   * @throws IllegalArgumentException if s is not a list of one number
+   *   per feature
+   */
+  public static Weights parse(String s)
+  {
+    String[] parts = s.split(",");
+    double[] values = new double[parts.length];
+    for (int i = 0; i < parts.length; ++i)
+    {
+      values[i] = Double.parseDouble(parts[i].trim());
+    }
+    return new Weights(values);
+  }
+
+  /**
+   * Returns the name of a feature.
+   * @param feature one of the feature constants
+   * @return the name
+   */
+  public static String getName(int feature)
+  {
+    return NAMES[feature];
+  }
+
+  /**
+   * Returns the weight of a feature.
+   * @param feature one of the feature constants
+   * @return the weight
+   */
+  public double get(int feature)
+  {
+    return values[feature];
+  }
+
+  /**
+   * Returns a copy of these weights with the weight of one feature
+   * changed.
+   * @param feature one of the feature constants
+   * @param value the new weight
+   * @return the new weights
+   */
+  public Weights with(int feature, double value)
+  {
+    double[] copy = values.clone();
+    copy[feature] = value;
+    return new Weights(copy);
+  }
+
+  /**
+   * Returns the weights as an array, in the order of the feature
+   * constants.
+   * @return a new array of the weights
+   */
+  public double[] toArray()
+  {
+    return values.clone();
+  }
+
+  /**
+   * Rates a grid with the given features.
+   * @param features the value of each feature
+   * @return the sum of the features multiplied by their weights
+   */
+  public double evaluate(int[] features)
+  {
+    double sum = 0;
+    for (int i = 0; i < FEATURE_COUNT; ++i)
+    {
+      sum += values[i] * features[i];
+    }
+    return sum;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    return obj instanceof Weights && Arrays.equals(values, ((Weights) obj).values);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Arrays.hashCode(values);
+  }
+
+  /**
+   * Returns the weights as numbers separated by commas, which parse()
+   * reads back.
+   */
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < FEATURE_COUNT; ++i)
+    {
+      if (i > 0)
+      {
+        sb.append(',');
+      }
+      sb.append(values[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -1,14 +1,20 @@
 package impl;
 
 import java.awt.Point;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import api.Cell;
 import api.GameStatus;
 import api.IGame;
 import api.IGameIcon;
+import api.IGameListener;
 import api.IPolyomino;
 import api.IPolyominoGenerator;
+import api.IPreviewGenerator;
 
 /**
  * A partial implementation of the IGame interface for 
@@ -17,15 +23,55 @@ import api.IPolyominoGenerator;
  */
 public abstract class AbstractBlockGame implements IGame
 {
+  /**
+   * Operation code for step() in the history.
+   */
+  private static final int STEP = 0;
+
+  /**
+   * Operation code for transform() in the history.
+   */
+  private static final int TRANSFORM = 1;
+
+  /**
+   * Operation code for cycle() in the history.
+   */
+  private static final int CYCLE = 2;
+
+  /**
+   * Operation code for shiftLeft() in the history.
+   */
+  private static final int SHIFT_LEFT = 3;
+
+  /**
+   * Operation code for shiftRight() in the history.
+   */
+  private static final int SHIFT_RIGHT = 4;
+
+  /**
+   * Operation code for hardDrop() in the history.
+   */
+  private static final int HARD_DROP = 5;
+
+  /**
+   * Default width of the game grid.
+   */
+  protected static final int DEFAULT_WIDTH = 12;
+
+  /**
+   * Default height of the game grid.
+   */
+  protected static final int DEFAULT_HEIGHT = 24;
+
   /**
    * Width of the game grid.
    */
-  protected static final int WIDTH = 12;
+  private final int width;
 
   /**
    * Height of the game grid.
    */
-  protected static final int HEIGHT = 24;
+  private final int height;
 
   /**
    * The polyomino that is subject to motion during the step() method
@@ -34,11 +80,12 @@ public abstract class AbstractBlockGame implements IGame
   protected IPolyomino current;
 
   /**
-   * A WIDTH x HEIGHT grid of cells that may be occupied by either
+   * A width x height grid of cells that may be occupied by either
    * the current polyomino or by frozen polyominoes (that can no longer
-   * be moved).  Unoccupied cells are null.
+   * be moved).  Unoccupied cells are null.  Occupancy is also kept
+   * as one bit per cell so that collision checks are mask tests.
    */
-  protected IGameIcon[][] grid;
+  protected BitBoard grid;
 
   /**
    * Status of the game after each invocation of step(), as described
@@ -48,7 +95,9 @@ public abstract class AbstractBlockGame implements IGame
 
   /**
    * Generator for new polyominoes.  The BasicGenerator implementation
-   * will uniformly select one of the seven tetromino types.
+   * will uniformly select one of the seven tetromino types.  If it is 
+   * an IPreviewGenerator, the upcoming polyominoes can be seen with 
+   * getPreview().
    */
   private IPolyominoGenerator generator;
 
@@ -60,11 +109,163 @@ public abstract class AbstractBlockGame implements IGame
   private List<Point> cellsToCollapse;
 
   /**
-   * Constructs a new AbstractBlockGame.
+   * Smallest y-coordinate of the rows of the grid that have been modified
+   * since the last call to determineCellsToCollapse().  Greater than
+   * lastChangedRow if no rows have been modified.
+   */
+  private int firstChangedRow;
+
+  /**
+   * Largest y-coordinate of the rows of the grid that have been modified
+   * since the last call to determineCellsToCollapse().
+   */
+  private int lastChangedRow;
+
+  /**
+   * Scratch space for collapseCells(): a bit mask of the cells to be
+   * collapsed in each row from markedTop down, laid out like the
+   * occupancy words of the grid.  All zero between calls, and grown
+   * as needed.
+   */
+  private long[] marked;
+
+  /**
+   * The y-coordinate of the first row covered by <code>marked</code>;
+   * no cells above it are marked.
+   */
+  private int markedTop;
+
+  /**
+   * Scratch space for collapseCells(): the rows to be deleted.
+   */
+  private int[] deletedRows;
+
+  /**
+   * Scratch space for saving the state of the subclass and the 
+   * generator.  Grown as needed.
+   */
+  private ByteBuffer extraState;
+
+  /**
+   * Changes made by recent calls, so that they can be undone, or null
+   * if they are not recorded.
+   */
+  private History history;
+
+  /**
+   * True while redo() is making a call again.
+   */
+  private boolean redoing;
+
+  /**
+   * Listeners for the events of this game.  The array is replaced, 
+   * never modified, when a listener is added or removed, so the thread
+   * sending an event can go through it without locking.
+   */
+  private volatile IGameListener[] listeners = new IGameListener[0];
+
+  /**
+   * The score as last reported to the listeners.
+   */
+  private int reportedScore;
+
+  /**
+   * Scratch space for the x-coordinates of the cells sent with 
+   * cellsCollapsing().
+   */
+  private int[] eventCols = new int[0];
+
+  /**
+   * Scratch space for the y-coordinates of the cells sent with
+   * cellsCollapsing().
+   */
+  private int[] eventRows = new int[0];
+
+  /**
+   * Saved state of a game, made by snapshot() and put back by 
+   * restore().  Immutable; a state may be restored any number of 
+   * times, into any game of the same kind.
+   */
+  public static final class State
+  {
+    /**
+     * The grid.
+     */
+    private final BitBoard.State grid;
+
+    /**
+     * A copy of the current polyomino.
+     */
+    private final IPolyomino current;
+
+    /**
+     * The status.
+     */
+    private final GameStatus gameStatus;
+
+    /**
+     * The cells about to be collapsed, shared with the game; the game
+     * replaces the list rather than modifying it.
+     */
+    private final List<Point> cellsToCollapse;
+
+    /**
+     * Smallest y-coordinate of the modified rows.
+     */
+    private final int firstChangedRow;
+
+    /**
+     * Largest y-coordinate of the modified rows.
+     */
+    private final int lastChangedRow;
+
+    /**
+     * State of the subclass, followed by the state of the generator.
+     */
+    private final byte[] extra;
+
+    /**
+     * Constructs a saved state.
+     */
+    private State(BitBoard.State grid, IPolyomino current, GameStatus gameStatus,
+        List<Point> cellsToCollapse, int firstChangedRow, int lastChangedRow, byte[] extra)
+    {
+      this.grid = grid;
+      this.current = current;
+      this.gameStatus = gameStatus;
+      this.cellsToCollapse = cellsToCollapse;
+      this.firstChangedRow = firstChangedRow;
+      this.lastChangedRow = lastChangedRow;
+      this.extra = extra;
+    }
+  }
+
+  /**
+   * Constructs a new AbstractBlockGame with a grid of the default size.
+   * @param generator generator for new polyominoes
    */
   protected AbstractBlockGame(IPolyominoGenerator generator)
   {
-    grid = new IGameIcon[getHeight()][getWidth()];
+    this(generator, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+  }
+
+  /**
+   * Constructs a new AbstractBlockGame with a grid of the given size.
+   * @param generator generator for new polyominoes
+   * @param width width of the grid
+   * @param height height of the grid
+   * @throws IllegalArgumentException if the width or height is not
+   *   positive
+   */
+  protected AbstractBlockGame(IPolyominoGenerator generator, int width, int height)
+  {
+    grid = new BitBoard(width, height);
+    this.width = width;
+    this.height = height;
+    firstChangedRow = height;
+    lastChangedRow = -1;
+    marked = new long[0];
+    deletedRows = new int[0];
     this.generator = generator;
     current = generator.getNext();
     gameStatus = GameStatus.NEW_POLYOMINO;
@@ -83,16 +284,104 @@ public abstract class AbstractBlockGame implements IGame
    */
   protected abstract int determineScore();
 
+  /**
+   * Determines whether every cell in the given row of the grid is
+   * occupied.
+   * @param row the y-coordinate of the row
+   * @return true if the row is full, false otherwise
+   */
+  protected boolean isRowFull(int row)
+  {
+    return grid.isFull(row);
+  }
+
+  /**
+   * Returns the number of magic blocks in the given row of the grid.
+   * @param row the y-coordinate of the row
+   * @return the number of magic blocks in the row
+   */
+  protected int getRowMagicCount(int row)
+  {
+    return grid.getMagicCount(row);
+  }
+
+  /**
+   * Returns the y-coordinate of the highest occupied cell in the given
+   * column of the grid, or the height of the grid if the column is empty.
+   * @param col the x-coordinate of the column
+   * @return the y-coordinate of the top of the column
+   */
+  protected int getColumnTop(int col)
+  {
+    return grid.getTop(col);
+  }
+
+  /**
+   * Returns the smallest y-coordinate of the rows that have been modified
+   * since the last call to determineCellsToCollapse().  Rows outside the
+   * range from getFirstChangedRow() to getLastChangedRow() are unchanged,
+   * so they cannot have become part of a new collapsible group.  The 
+   * returned value is greater than getLastChangedRow() if no rows have
+   * been modified.
+   * @return smallest y-coordinate of the modified rows
+   */
+  protected int getFirstChangedRow()
+  {
+    return firstChangedRow;
+  }
+
+  /**
+   * Returns the largest y-coordinate of the rows that have been modified
+   * since the last call to determineCellsToCollapse().
+   * @return largest y-coordinate of the modified rows
+   */
+  protected int getLastChangedRow()
+  {
+    return lastChangedRow;
+  }
+
   @Override
   public int getHeight()
   {
-    return HEIGHT;
+    return height;
   }
 
   @Override
   public IGameIcon getCell(int row, int col)
   {
-    return grid[row][col];
+    return grid.get(row, col);
+  }
+
+  @Override
+  public long getGridVersion()
+  {
+    return grid.getVersion();
+  }
+
+  @Override
+  public int getFirstRowChangedSince(long version)
+  {
+    return grid.getFirstChangedRow(version);
+  }
+
+  @Override
+  public int getLastRowChangedSince(long version)
+  {
+    return grid.getLastChangedRow(version);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, int[] buffer, int offset)
+  {
+    checkRows(firstRow, lastRow);
+    grid.export(firstRow, lastRow, buffer, offset);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, ByteBuffer buffer)
+  {
+    checkRows(firstRow, lastRow);
+    grid.export(firstRow, lastRow, buffer);
   }
 
   @Override
@@ -105,10 +394,30 @@ public abstract class AbstractBlockGame implements IGame
     return current;
   }
 
+  @Override
+  public IPolyomino getPreview(int n)
+  {
+    if (getPreviewDepth() == 0)
+    {
+      throw new UnsupportedOperationException("no preview");
+    }
+    return ((IPreviewGenerator) generator).peek(n);
+  }
+
+  @Override
+  public int getPreviewDepth()
+  {
+    if (!(generator instanceof IPreviewGenerator))
+    {
+      return 0;
+    }
+    return ((IPreviewGenerator) generator).getDepth();
+  }
+
   @Override
   public int getWidth()
   {
-    return WIDTH;
+    return width;
   }
 
   @Override
@@ -127,6 +436,7 @@ public abstract class AbstractBlockGame implements IGame
     boolean ret = canTransform();
     if (ret)
     {
+      record(TRANSFORM);
       current.transform();
     }
     return ret;
@@ -135,6 +445,7 @@ public abstract class AbstractBlockGame implements IGame
   @Override
   public void cycle()
   {
+    record(CYCLE);
     current.cycle();
   }
   
@@ -144,6 +455,7 @@ public abstract class AbstractBlockGame implements IGame
     boolean ret = canShiftLeft();
     if (ret)
     {
+      record(SHIFT_LEFT);
       current.shiftLeft();
     }
     return ret;
@@ -155,11 +467,52 @@ public abstract class AbstractBlockGame implements IGame
     boolean ret = canShiftRight();
     if (ret)
     {
+      record(SHIFT_RIGHT);
       current.shiftRight();
     }
     return ret;
   }
 
+  @Override
+  public int dropDistance()
+  {
+    IPolyomino t = getCurrent();
+    int distance = Integer.MAX_VALUE;
+    for (int i = 0; i < t.getCellCount(); ++i)
+    {
+      int x = t.getCellX(i);
+      int y = t.getCellY(i);
+      int floor = grid.getTop(x);
+      if (floor <= y)
+      {
+        // cell is tucked under an overhang, so look down the column
+        // for the first occupied cell below it
+        floor = y + 1;
+        while (floor < height && !grid.isOccupied(floor, x))
+        {
+          ++floor;
+        }
+      }
+      distance = Math.min(distance, floor - y - 1);
+    }
+    return distance;
+  }
+
+  @Override
+  public int hardDrop()
+  {
+    int distance = dropDistance();
+    if (distance > 0)
+    {
+      record(HARD_DROP);
+      current.shiftDown(distance);
+      // as if it had been shifted down by step(), so that stopping it
+      // checks for collapsible groups
+      gameStatus = GameStatus.FALLING;
+    }
+    return distance;
+  }
+
   @Override
   public int getScore()
   {
@@ -172,9 +525,42 @@ public abstract class AbstractBlockGame implements IGame
     return gameStatus == GameStatus.GAME_OVER;
   }
 
+  /**
+   * Adds a listener.  It may be added from any thread; its methods are
+   * invoked by the thread that calls step().
+   */
+  @Override
+  public synchronized void addGameListener(IGameListener listener)
+  {
+    IGameListener[] l = Arrays.copyOf(listeners, listeners.length + 1);
+    l[l.length - 1] = listener;
+    listeners = l;
+  }
+
+  @Override
+  public synchronized void removeGameListener(IGameListener listener)
+  {
+    IGameListener[] l = listeners;
+    for (int i = 0; i < l.length; ++i)
+    {
+      if (l[i] == listener)
+      {
+        IGameListener[] rest = new IGameListener[l.length - 1];
+        System.arraycopy(l, 0, rest, 0, i);
+        System.arraycopy(l, i + 1, rest, i, l.length - i - 1);
+        listeners = rest;
+        return;
+      }
+    }
+  }
+
   @Override
   public GameStatus step()
   {
+    if (gameStatus != GameStatus.GAME_OVER)
+    {
+      record(STEP);
+    }
     switch (gameStatus)
     {
       case GAME_OVER:
@@ -199,17 +585,19 @@ public abstract class AbstractBlockGame implements IGame
           {
             int x = c.getX();
             int y = c.getY();
-            if (y >= 0 && y < HEIGHT && x >= 0 && x < WIDTH)
+            if (y >= 0 && y < height && x >= 0 && x < width)
             {
-              grid[y][x] = c.getIcon();
+              setCell(y, x, c.getIcon());
             }
           }
-          cellsToCollapse = determineCellsToCollapse();
+          cellsToCollapse = findCellsToCollapse();
           if (cellsToCollapse.size() != 0)
           {
             // current polyomino completes a collapsible group,
             // so prepare to collapse
             gameStatus = GameStatus.COLLAPSING;
+            firePolyominoLocked();
+            fireCellsCollapsing();
           }
           else
           {
@@ -220,9 +608,9 @@ public abstract class AbstractBlockGame implements IGame
             {
               int x = c.getX();
               int y = c.getY();
-              if (y >= 0 && y < HEIGHT && x >= 0 && x < WIDTH)
+              if (y >= 0 && y < height && x >= 0 && x < width)
               {
-                grid[y][x] = null;
+                setCell(y, x, null);
               }
             }
             gameStatus = GameStatus.STOPPED;
@@ -246,36 +634,47 @@ public abstract class AbstractBlockGame implements IGame
           {
             int x = c.getX();
             int y = c.getY();
-            if (y >= 0 && y < HEIGHT && x >= 0 && x < WIDTH)
+            if (y >= 0 && y < height && x >= 0 && x < width)
             {
-              grid[y][x] = c.getIcon();
+              setCell(y, x, c.getIcon());
             }
           }
+          firePolyominoLocked();
+          recordGenerator();
           current = generator.getNext();
           if (collides(current))
           {
             gameStatus = GameStatus.GAME_OVER;
+            fireGameOver();
           }
           else
           {
             gameStatus = GameStatus.NEW_POLYOMINO;
+            firePolyominoSpawned();
           }
         }
         break;
       case COLLAPSING:
         collapseCells(cellsToCollapse); 
-        cellsToCollapse = determineCellsToCollapse();       
-        if (cellsToCollapse.size() == 0)
+        cellsToCollapse = findCellsToCollapse();       
+        if (cellsToCollapse.size() != 0)
+        {
+          fireCellsCollapsing();
+        }
+        else
         {
           // done collapsing, try to start a new polyomino
+          recordGenerator();
           current = generator.getNext();
           if (collides(current))
           {
             gameStatus = GameStatus.GAME_OVER;
+            fireGameOver();
           }
           else
           {
             gameStatus = GameStatus.NEW_POLYOMINO;
+            firePolyominoSpawned();
           }
         }
         break;
@@ -284,119 +683,1030 @@ public abstract class AbstractBlockGame implements IGame
   }
 
   /**
-   * Determines whether the current polyomino can be shifted down. Does not
-   * modify the game state.
-   * @return true if the current polyomino can be shifted down, false otherwise
+   * Writes the complete state of this game to the given buffer: the
+   * grid, the current polyomino, the status, the cells about to be
+   * collapsed, any state of the subclass and the state of the
+   * generator.  readState() can then put a game of the same kind,
+   * constructed the same way, back in exactly this state, so that it
+   * goes on exactly as this one would.
+   * <p>
+   * The grid is written from its highest occupied row down, as a bit 
+   * mask of the occupied cells of each row followed by one byte per 
+   * occupied cell indexing a palette of the icons used.  The polyomino
+   * is written in the form given by PackedPolyomino, so it must be one
+   * of the tetrominoes of this package.
+   * @param buffer buffer to write to, starting at its position
+   * @throws IllegalArgumentException if the current polyomino cannot 
+   *   be packed or the grid uses more than 256 different icons
+   * @throws UnsupportedOperationException if the state of the 
+   *   generator cannot be saved
+   * @throws java.nio.BufferOverflowException if the buffer is too small
    */
-  private boolean canShiftDown()
+  public void writeState(ByteBuffer buffer)
   {
-    IPolyomino t = (IPolyomino) current.clone();
-    t.shiftDown();
-    return !collides(t);
+    buffer.putInt(width);
+    buffer.putInt(height);
+    buffer.put((byte) gameStatus.ordinal());
+    writeGrid(buffer);
+    buffer.putLong(PackedPolyomino.pack(current));
+    int n = cellsToCollapse == null ? 0 : cellsToCollapse.size();
+    buffer.putInt(n);
+    for (int i = 0; i < n; ++i)
+    {
+      Point p = cellsToCollapse.get(i);
+      buffer.putInt(p.x);
+      buffer.putInt(p.y);
+    }
+    buffer.putInt(firstChangedRow);
+    buffer.putInt(lastChangedRow);
+    writeExtraState(buffer);
+    generator.writeState(buffer);
   }
 
   /**
-   * Determines whether the current polyomino can be shifted right. Does not
-   * modify the game state.
-   * @return true if the current polyomino can be shifted right, false otherwise
+   * Puts this game in the state written by writeState().  The game 
+   * must be of the same kind as the one written, with a grid of the 
+   * same size and a generator of the same kind.  If the state is not
+   * valid for this game, the game is left as it was.
+   * @param buffer buffer to read from, starting at its position
+   * @throws IllegalArgumentException if the state is not valid for 
+   *   this game
+   * @throws UnsupportedOperationException if the state of the 
+   *   generator cannot be restored
+   * @throws java.nio.BufferUnderflowException if the state is truncated
    */
-  private boolean canShiftRight()
+  public void readState(ByteBuffer buffer)
   {
-    IPolyomino t = (IPolyomino) current.clone();
-    t.shiftRight();
-    return !collides(t);
+    readState(buffer, false);
   }
 
   /**
-   * Determines whether the current polyomino can be shifted left. Does not
-   * modify the game state.
-   * @return true if the current polyomino can be shifted left, false otherwise
+   * Puts this game in the state written by writeState(), leaving it as
+   * it was if the state is not valid for this game.
+   * @param buffer buffer to read from, starting at its position
+   * @param whole true if the state must take up the rest of the buffer
+   * @throws IllegalArgumentException if the state is not valid for 
+   *   this game, or whole is true and the buffer has bytes after it
+   * @throws UnsupportedOperationException if the state of the 
+   *   generator cannot be restored
+   * @throws java.nio.BufferUnderflowException if the state is truncated
    */
-  private boolean canShiftLeft()
+  void readState(ByteBuffer buffer, boolean whole)
+  {
+    if (buffer.getInt() != width || buffer.getInt() != height)
+    {
+      throw new IllegalArgumentException("Grid size does not match");
+    }
+
+    // the state is read straight into the game, and only found to be
+    // invalid part way through, so the game is put back if it fails
+    State before = snapshot();
+    try
+    {
+      int status = buffer.get();
+      if (status < 0 || status >= GameStatus.values().length)
+      {
+        throw new IllegalArgumentException("status " + status);
+      }
+      gameStatus = GameStatus.values()[status];
+      readGrid(buffer);
+      current = PackedPolyomino.unpack(buffer.getLong());
+      int n = buffer.getInt();
+      if (n < 0 || n > width * height)
+      {
+        throw new IllegalArgumentException("cells " + n);
+      }
+      if ((n != 0) != (gameStatus == GameStatus.COLLAPSING))
+      {
+        throw new IllegalArgumentException(n + " cells for status " + gameStatus);
+      }
+      cellsToCollapse = new ArrayList<Point>(n);
+      for (int i = 0; i < n; ++i)
+      {
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        if (x < 0 || x >= width || y < 0 || y >= height)
+        {
+          throw new IllegalArgumentException("cell (" + x + ", " + y + ")");
+        }
+        cellsToCollapse.add(new Point(x, y));
+      }
+      firstChangedRow = buffer.getInt();
+      lastChangedRow = buffer.getInt();
+      if (firstChangedRow < 0 || firstChangedRow > height 
+          || lastChangedRow < -1 || lastChangedRow >= height)
+      {
+        throw new IllegalArgumentException("changed rows " + firstChangedRow + " to " + lastChangedRow);
+      }
+      checkCurrent();
+      readExtraState(buffer);
+      generator.readState(buffer);
+      if (whole && buffer.hasRemaining())
+      {
+        throw new IllegalArgumentException("Data after end of state");
+      }
+    }
+    catch (RuntimeException e)
+    {
+      restore(before, false);
+      throw e;
+    }
+    if (history != null)
+    {
+      history.clear();
+    }
+    reportedScore = determineScore();
+  }
+
+  /**
+   * Checks that the current polyomino read by readState() is one this
+   * game could have with its status.  A falling or stopped polyomino 
+   * must lie within the sides and bottom of the grid without 
+   * overlapping it, and one whose blocks are being collapsed must lie 
+   * within them; the polyomino that could not be placed at the end of
+   * the game may be anywhere.
+   * @throws IllegalArgumentException if the polyomino is not valid
+   */
+  private void checkCurrent()
   {
-    IPolyomino t = (IPolyomino) current.clone();
-    t.shiftLeft();
-    return !collides(t);
+    if (gameStatus == GameStatus.GAME_OVER)
+    {
+      return;
+    }
+    for (int i = 0; i < current.getCellCount(); ++i)
+    {
+      int x = current.getCellX(i);
+      int y = current.getCellY(i);
+      if (x < 0 || x >= width || y >= height)
+      {
+        throw new IllegalArgumentException("polyomino outside the grid at (" + x + ", " + y + ")");
+      }
+    }
+    if (gameStatus != GameStatus.COLLAPSING && collides(current))
+    {
+      throw new IllegalArgumentException("polyomino overlaps the grid");
+    }
   }
 
   /**
-   * Determines whether the current polyomino can be transform. Does not
-   * modify the game state.
-   * @return true if the current polyomino can be transformed, false otherwise
+   * Saves the complete state of this game in memory, for a search that
+   * tries moves and then goes back.  Unlike writeState(), the grid is
+   * not copied: its rows are shared with the game until they are next
+   * modified, so saving a state costs a copy of the current polyomino
+   * and a few bytes for the subclass and generator, and each row that
+   * is later modified is copied once.
+   * @return the saved state
+   * @throws UnsupportedOperationException if the state of the 
+   *   generator cannot be saved
    */
-  private boolean canTransform()
+  public State snapshot()
   {
-    IPolyomino t = (IPolyomino) current.clone();
-    t.transform();
-    return !collides(t);
+    return new State(grid.snapshot(), (IPolyomino) current.clone(), gameStatus,
+        cellsToCollapse, firstChangedRow, lastChangedRow, saveExtraState(true, true));
   }
 
   /**
-   * Determines whether the given polyomino overlaps
-   * with the occupied cells of the grid, or extends beyond the sides
-   * or bottom of the grid.  (A polyomino in its initial position
-   * MAY extend above the grid.)
-   *
-   * @param t a polyomino
-   * @return true if the cells of the given polyomino extend beyond the
-   *   sides or bottom of the grid or overlap with any occupied cells of
-   *   the grid
+   * Puts this game back in a state saved by snapshot().  The game must
+   * be of the same kind as the one saved, with a grid of the same size
+   * and a generator of the same kind.  Takes constant time apart from
+   * copying the current polyomino and restoring the subclass and 
+   * generator.
+   * @param state the saved state
+   * @throws IllegalArgumentException if the grid is not the size of 
+   *   the saved one
    */
-  private boolean collides(IPolyomino t)
+  public void restore(State state)
   {
-    for (Cell c : t.getCells())
-    {
-      int x = c.getX();
-      int y = c.getY();
-      if (x < 0 || x > WIDTH - 1 || y > HEIGHT - 1)
-      {
-        return true;
-      }
+    restore(state, true);
+  }
 
-      // row, column
-      if (y >= 0 && grid[y][x] != null)
-      {
-        return true;
-      }
+  /**
+   * Puts this game back in a state saved by snapshot().
+   * @param state the saved state
+   * @param clearHistory true to forget the calls in the history, false
+   *   if the state is the one the game had when they were made
+   */
+  private void restore(State state, boolean clearHistory)
+  {
+    grid.restore(state.grid);
+    current = (IPolyomino) state.current.clone();
+    gameStatus = state.gameStatus;
+    cellsToCollapse = state.cellsToCollapse;
+    firstChangedRow = state.firstChangedRow;
+    lastChangedRow = state.lastChangedRow;
+    ByteBuffer buffer = ByteBuffer.wrap(state.extra);
+    readExtraState(buffer);
+    generator.readState(buffer);
+    if (history != null && clearHistory)
+    {
+      history.clear();
     }
-    return false;
+    reportedScore = determineScore();
   }
 
-
   /**
-   * Delete the blocks at the indicated positions and shift
-   * blocks above them down.  Only blocks lying within a column
-   * above a deleted block are shifted down.
-   * @param cellsToCollapse list of locations of cells to 
-   * collapse.  The list may contain duplicates.
+   * Starts or stops recording the changes made by calls to step(), 
+   * transform(), cycle(), shiftLeft(), shiftRight() and hardDrop() so
+   * that they can be undone.  Only calls that change the game are 
+   * recorded.  Each one is recorded as the few values it changes: the
+   * cells it sets, the rows it deletes, the previous position of the 
+   * polyomino, and the state of the subclass and of the generator when
+   * they may change.  Undoing or redoing a call therefore takes time 
+   * proportional to its changes rather than to the size of the grid.
+   * <p>
+   * At most the given number of calls are kept, and fewer if they make
+   * many changes, so the memory used is bounded however long the game
+   * runs.  Any calls recorded before are forgotten.
+   * @param capacity largest number of calls to keep, or 0 to stop 
+   *   recording
+   * @throws IllegalArgumentException if the capacity is negative
+   * @throws UnsupportedOperationException if the state of the 
+   *   generator cannot be saved
    */
-  private void collapseCells(List<Point> cellsToCollapse)
+  public void setHistoryCapacity(int capacity)
   {
-    boolean[][] marked = new boolean[getHeight()][getWidth()];
-    
-    for (Point p : cellsToCollapse)
+    if (capacity < 0)
     {
-      marked[p.y][p.x] = true;
+      throw new IllegalArgumentException("capacity " + capacity);
     }
-    for (int col = 0; col < WIDTH; ++col)
+    if (capacity == 0)
     {
-      int start = HEIGHT - 1;
+      history = null;
+      return;
+    }
+    // fails now, rather than in the middle of a call, if the
+    // generator cannot be saved
+    saveExtraState(false, true);
+    history = new History(capacity);
+  }
+
+  /**
+   * Returns the number of calls that can be undone.
+   * @return the number of calls in the history
+   */
+  public int getUndoCount()
+  {
+    return history == null ? 0 : history.getSize();
+  }
+
+  /**
+   * Returns the number of undone calls that can be redone.  Any call
+   * that changes the game, other than redo(), forgets them.
+   * @return the number of calls that can be redone
+   */
+  public int getRedoCount()
+  {
+    return history == null ? 0 : history.getRedoCount();
+  }
+
+  /**
+   * Puts the game back in the state it had before the most recent 
+   * call in the history.  No events are sent to the listeners; a call
+   * that is redone sends its events again.
+   * @return true if a call was undone, false if there was none
+   */
+  @SuppressWarnings("unchecked")
+  public boolean undo()
+  {
+    if (history == null || history.getSize() == 0)
+    {
+      return false;
+    }
+    long pos = history.getEnd();
+    while (true)
+    {
+      // records are undone from the last back to the header
+      int trailer = history.get(pos - 1);
+      int length = trailer >>> 4;
+      pos -= 1 + length;
+      switch (trailer & 0xf)
+      {
+        case History.CELL:
+          grid.set(history.get(pos), history.get(pos + 1), (IGameIcon) history.getRef(pos));
+          break;
+        case History.ROWS:
+          int[] rows = new int[length];
+          IGameIcon[][] contents = new IGameIcon[length][];
+          for (int i = 0; i < length; ++i)
+          {
+            rows[i] = history.get(pos + i);
+            contents[i] = (IGameIcon[]) history.getRef(pos + i);
+          }
+          grid.insertRows(rows, length, contents);
+          break;
+        case History.EXTRA:
+          readExtraState(ByteBuffer.wrap((byte[]) history.getRef(pos)));
+          break;
+        case History.GENERATOR:
+          generator.readState(ByteBuffer.wrap((byte[]) history.getRef(pos)));
+          break;
+        default:
+          int op = history.get(pos);
+          cellsToCollapse = (List<Point>) history.getRef(pos);
+          gameStatus = GameStatus.values()[history.get(pos + 1)];
+          current = (IPolyomino) history.getRef(pos + 1);
+          if (current == null)
+          {
+            current = PackedPolyomino.unpack(((long) history.get(pos + 4) << 32) 
+                | (history.get(pos + 5) & 0xffffffffL));
+          }
+          firstChangedRow = history.get(pos + 2);
+          lastChangedRow = history.get(pos + 3);
+          reportedScore = determineScore();
+          history.undone(op);
+          return true;
+      }
+    }
+  }
+
+  /**
+   * Makes the most recently undone call again.
+   * @return true if a call was redone, false if there was none
+   */
+  public boolean redo()
+  {
+    if (history == null || history.getRedoCount() == 0)
+    {
+      return false;
+    }
+    redoing = true;
+    try
+    {
+      switch (history.popRedo())
+      {
+        case STEP:
+          step();
+          break;
+        case TRANSFORM:
+          transform();
+          break;
+        case CYCLE:
+          cycle();
+          break;
+        case SHIFT_LEFT:
+          shiftLeft();
+          break;
+        case SHIFT_RIGHT:
+          shiftRight();
+          break;
+        default:
+          hardDrop();
+          break;
+      }
+    }
+    finally
+    {
+      redoing = false;
+    }
+    return true;
+  }
+
+  /**
+   * Tells the listeners that the current polyomino has appeared.
+   */
+  private void firePolyominoSpawned()
+  {
+    IGameListener[] l = listeners;
+    for (int i = 0; i < l.length; ++i)
+    {
+      l[i].polyominoSpawned(this, current);
+    }
+  }
+
+  /**
+   * Tells the listeners that the current polyomino has become part of
+   * the grid.
+   */
+  private void firePolyominoLocked()
+  {
+    IGameListener[] l = listeners;
+    for (int i = 0; i < l.length; ++i)
+    {
+      l[i].polyominoLocked(this, current);
+    }
+  }
+
+  /**
+   * Tells the listeners which cells are about to be collapsed.
+   */
+  private void fireCellsCollapsing()
+  {
+    IGameListener[] l = listeners;
+    if (l.length == 0)
+    {
+      return;
+    }
+    int n = cellsToCollapse.size();
+    if (eventCols.length < n)
+    {
+      eventCols = new int[Math.max(n, eventCols.length * 2)];
+      eventRows = new int[eventCols.length];
+    }
+    for (int i = 0; i < n; ++i)
+    {
+      Point p = cellsToCollapse.get(i);
+      eventCols[i] = p.x;
+      eventRows[i] = p.y;
+    }
+    for (int i = 0; i < l.length; ++i)
+    {
+      l[i].cellsCollapsing(this, eventCols, eventRows, n);
+    }
+  }
+
+  /**
+   * Tells the listeners that the first rows of deletedRows have been
+   * deleted.
+   * @param count number of rows deleted
+   */
+  private void fireRowsCleared(int count)
+  {
+    IGameListener[] l = listeners;
+    for (int i = 0; i < l.length; ++i)
+    {
+      l[i].rowsCleared(this, deletedRows, count);
+    }
+  }
+
+  /**
+   * Tells the listeners that the score has changed.
+   * @param oldScore the previous score
+   * @param newScore the new score
+   */
+  private void fireScoreChanged(int oldScore, int newScore)
+  {
+    IGameListener[] l = listeners;
+    for (int i = 0; i < l.length; ++i)
+    {
+      l[i].scoreChanged(this, oldScore, newScore);
+    }
+  }
+
+  /**
+   * Tells the listeners that the game is over.
+   */
+  private void fireGameOver()
+  {
+    IGameListener[] l = listeners;
+    for (int i = 0; i < l.length; ++i)
+    {
+      l[i].gameOver(this);
+    }
+  }
+
+  /**
+   * Starts the history entry for a call that is about to change the
+   * game, recording the status and the current polyomino.
+   * @param op operation code of the call
+   */
+  private void record(int op)
+  {
+    if (history == null)
+    {
+      return;
+    }
+    if (!redoing)
+    {
+      history.clearRedo();
+    }
+    history.begin();
+    boolean packed = PackedPolyomino.canPack(current);
+    long piece = packed ? PackedPolyomino.pack(current) : 0;
+    history.add(op, cellsToCollapse);
+    history.add(gameStatus.ordinal(), packed ? null : current.clone());
+    history.add(firstChangedRow);
+    history.add(lastChangedRow);
+    history.add((int) (piece >>> 32));
+    history.add((int) piece);
+    history.end(History.HEADER);
+  }
+
+  /**
+   * Records the state of the generator in the history, before it 
+   * changes.
+   */
+  private void recordGenerator()
+  {
+    if (history != null)
+    {
+      history.add(0, saveExtraState(false, true));
+      history.end(History.GENERATOR);
+    }
+  }
+
+  /**
+   * Returns the state of the subclass, the generator, or both, as 
+   * written by writeExtraState() and the generator's writeState().
+   * @param subclass true to include the state of the subclass
+   * @param ofGenerator true to include the state of the generator
+   * @return the state
+   */
+  private byte[] saveExtraState(boolean subclass, boolean ofGenerator)
+  {
+    if (extraState == null)
+    {
+      extraState = ByteBuffer.allocate(64);
+    }
+    while (true)
+    {
+      try
+      {
+        extraState.clear();
+        if (subclass)
+        {
+          writeExtraState(extraState);
+        }
+        if (ofGenerator)
+        {
+          generator.writeState(extraState);
+        }
+        break;
+      }
+      catch (BufferOverflowException e)
+      {
+        extraState = ByteBuffer.allocate(extraState.capacity() * 2);
+      }
+    }
+    return Arrays.copyOf(extraState.array(), extraState.position());
+  }
+
+  /**
+   * Writes any state kept by the subclass, such as the score, for
+   * writeState() and snapshot().  This implementation writes nothing.
+   * @param buffer buffer to write to
+   */
+  protected void writeExtraState(ByteBuffer buffer)
+  {
+  }
+
+  /**
+   * Reads the state written by writeExtraState(), for readState() and
+   * restore().
+   * This implementation reads nothing.
+   * @param buffer buffer to read from
+   */
+  protected void readExtraState(ByteBuffer buffer)
+  {
+  }
+
+  /**
+   * Writes the grid for writeState().
+   * @param buffer buffer to write to
+   */
+  private void writeGrid(ByteBuffer buffer)
+  {
+    int top = stackTop();
+    buffer.putInt(top);
+
+    // collect the distinct icons; there are only a few colours
+    int[] palette = new int[16];
+    int size = 0;
+    for (int row = top; row < height; ++row)
+    {
+      for (int col = 0; col < width; ++col)
+      {
+        IGameIcon icon = grid.get(row, col);
+        if (icon != null && indexOf(palette, size, code(icon)) < 0)
+        {
+          if (size == 256)
+          {
+            throw new IllegalArgumentException("Too many icons");
+          }
+          if (size == palette.length)
+          {
+            palette = Arrays.copyOf(palette, size * 2);
+          }
+          palette[size] = code(icon);
+          size += 1;
+        }
+      }
+    }
+    buffer.putShort((short) size);
+    for (int i = 0; i < size; ++i)
+    {
+      buffer.putInt(palette[i]);
+    }
+
+    int bytes = (width + 7) / 8;
+    for (int row = top; row < height; ++row)
+    {
+      for (int b = 0; b < bytes; ++b)
+      {
+        buffer.put((byte) (grid.getWord(row, b / 8) >>> (b % 8 * 8)));
+      }
+      for (int col = 0; col < width; ++col)
+      {
+        IGameIcon icon = grid.get(row, col);
+        if (icon != null)
+        {
+          buffer.put((byte) indexOf(palette, size, code(icon)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the grid written by writeGrid(), replacing the contents of
+   * the grid.  Cells with the same icon share one Block.
+   * @param buffer buffer to read from
+   */
+  private void readGrid(ByteBuffer buffer)
+  {
+    int top = buffer.getInt();
+    if (top < 0 || top > height)
+    {
+      throw new IllegalArgumentException("top " + top);
+    }
+    int size = buffer.getShort();
+    if (size < 0 || size > 256)
+    {
+      throw new IllegalArgumentException("palette " + size);
+    }
+    Block[] blocks = new Block[size];
+    for (int i = 0; i < size; ++i)
+    {
+      int code = buffer.getInt();
+      blocks[i] = new Block(PackedPolyomino.color(code & 0xffffff), (code & IGame.CELL_MAGIC) != 0);
+    }
+
+    for (int row = stackTop(); row < height; ++row)
+    {
+      for (int col = 0; col < width; ++col)
+      {
+        if (grid.isOccupied(row, col))
+        {
+          grid.set(row, col, null);
+        }
+      }
+    }
+    int bytes = (width + 7) / 8;
+    for (int row = top; row < height; ++row)
+    {
+      long[] bits = new long[grid.getWordCount()];
+      for (int b = 0; b < bytes; ++b)
+      {
+        bits[b / 8] |= (buffer.get() & 0xffL) << (b % 8 * 8);
+      }
+      for (int col = 0; col < width; ++col)
+      {
+        if ((bits[col / 64] & (1L << col)) != 0)
+        {
+          int index = buffer.get() & 0xff;
+          if (index >= size)
+          {
+            throw new IllegalArgumentException("icon " + index);
+          }
+          grid.set(row, col, blocks[index]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the y-coordinate of the highest occupied row of the grid.
+   * @return the highest occupied row, or the height if the grid is 
+   *   empty
+   */
+  private int stackTop()
+  {
+    int top = height;
+    for (int col = 0; col < width; ++col)
+    {
+      top = Math.min(top, grid.getTop(col));
+    }
+    return top;
+  }
+
+  /**
+   * Returns the index of a value among the first entries of an array.
+   * @return the index, or -1 if the value is not there
+   */
+  private static int indexOf(int[] values, int size, int value)
+  {
+    for (int i = 0; i < size; ++i)
+    {
+      if (values[i] == value)
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the export code for the given icon, as described for 
+   * IGame.exportRows().
+   * @param icon an icon
+   * @return the code for the icon
+   */
+  private static int code(IGameIcon icon)
+  {
+    int code = IGame.CELL_OCCUPIED | (icon.getColorHint().getRGB() & 0xffffff);
+    return icon.isMagic() ? code | IGame.CELL_MAGIC : code;
+  }
+
+  /**
+   * Invokes determineCellsToCollapse() and then starts a new range
+   * of modified rows.
+   * @return list of locations for cells to be collapsed
+   */
+  private List<Point> findCellsToCollapse()
+  {
+    if (history != null)
+    {
+      // the subclass may update the score
+      history.add(0, saveExtraState(true, false));
+      history.end(History.EXTRA);
+    }
+    List<Point> ret = determineCellsToCollapse();
+    firstChangedRow = height;
+    lastChangedRow = -1;
+    int score = determineScore();
+    if (score != reportedScore)
+    {
+      fireScoreChanged(reportedScore, score);
+      reportedScore = score;
+    }
+    return ret;
+  }
+
+  /**
+   * Sets the icon in the given cell of the grid and records that the
+   * row has been modified.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @param icon the new icon, or null to make the cell unoccupied
+   */
+  private void setCell(int row, int col, IGameIcon icon)
+  {
+    IGameIcon old = grid.get(row, col);
+    if (old == icon)
+    {
+      // collapsing rewrites every cell above the collapse, most of
+      // them empty, so unchanged cells are neither set nor recorded
+      return;
+    }
+    if (history != null)
+    {
+      history.add(row, old);
+      history.add(col);
+      history.end(History.CELL);
+    }
+    grid.set(row, col, icon);
+    if (row < firstChangedRow)
+    {
+      firstChangedRow = row;
+    }
+    if (row > lastChangedRow)
+    {
+      lastChangedRow = row;
+    }
+  }
+
+  /**
+   * Checks that the given range of rows is valid for the grid.  An
+   * empty range, with the last row above the first, is always valid.
+   * @param firstRow y-coordinate of the first row
+   * @param lastRow y-coordinate of the last row
+   * @throws ArrayIndexOutOfBoundsException if the range is not empty
+   *   and either row is invalid
+   */
+  private void checkRows(int firstRow, int lastRow)
+  {
+    if (lastRow < firstRow)
+    {
+      return;
+    }
+    if (firstRow < 0)
+    {
+      throw new ArrayIndexOutOfBoundsException(firstRow);
+    }
+    if (lastRow >= height)
+    {
+      throw new ArrayIndexOutOfBoundsException(lastRow);
+    }
+  }
+
+  /**
+   * Determines whether the current polyomino could be shifted by the
+   * given offset, after first being transformed if requested, without 
+   * extending beyond the sides or bottom of the grid and without colliding
+   * with occupied cells.  Does not modify the game state and does not
+   * create any objects.
+   * @param dx offset in the x-direction
+   * @param dy offset in the y-direction
+   * @param transformed true if the current polyomino should be tested
+   *   as it would be after a transform()
+   * @return true if the current polyomino can be moved, false otherwise
+   */
+  public boolean canMove(int dx, int dy, boolean transformed)
+  {
+    return !collides(current, dx, dy, transformed);
+  }
+
+  /**
+   * Determines whether the current polyomino can be shifted down. Does not
+   * modify the game state.
+   * @return true if the current polyomino can be shifted down, false otherwise
+   */
+  private boolean canShiftDown()
+  {
+    return canMove(0, 1, false);
+  }
+
+  /**
+   * Determines whether the current polyomino can be shifted right. Does not
+   * modify the game state.
+   * @return true if the current polyomino can be shifted right, false otherwise
+   */
+  private boolean canShiftRight()
+  {
+    return canMove(1, 0, false);
+  }
+
+  /**
+   * Determines whether the current polyomino can be shifted left. Does not
+   * modify the game state.
+   * @return true if the current polyomino can be shifted left, false otherwise
+   */
+  private boolean canShiftLeft()
+  {
+    return canMove(-1, 0, false);
+  }
+
+  /**
+   * Determines whether the current polyomino can be transform. Does not
+   * modify the game state.
+   * @return true if the current polyomino can be transformed, false otherwise
+   */
+  private boolean canTransform()
+  {
+    return canMove(0, 0, true);
+  }
+
+  /**
+   * Determines whether the given polyomino overlaps
+   * with the occupied cells of the grid, or extends beyond the sides
+   * or bottom of the grid.  (A polyomino in its initial position
+   * MAY extend above the grid.)
+   *
+   * @param t a polyomino
+   * @return true if the cells of the given polyomino extend beyond the
+   *   sides or bottom of the grid or overlap with any occupied cells of
+   *   the grid
+   */
+  private boolean collides(IPolyomino t)
+  {
+    return collides(t, 0, 0, false);
+  }
+
+  /**
+   * Determines whether the given polyomino, shifted by the given offset
+   * and optionally transformed, would overlap with the occupied cells of
+   * the grid or extend beyond the sides or bottom of the grid.  The
+   * polyomino itself is not modified.
+   *
+   * @param t a polyomino
+   * @param dx offset in the x-direction
+   * @param dy offset in the y-direction
+   * @param transformed true if the polyomino should be tested as it
+   *   would be after a transform()
+   * @return true if the moved cells of the given polyomino extend beyond
+   *   the sides or bottom of the grid or overlap with any occupied cells
+   *   of the grid
+   */
+  private boolean collides(IPolyomino t, int dx, int dy, boolean transformed)
+  {
+    for (int i = 0; i < t.getCellCount(); ++i)
+    {
+      int x = t.getCellX(i) + dx;
+      int y = t.getCellY(i) + dy;
+      if (transformed)
+      {
+        x += t.getTransformDeltaX(i);
+        y += t.getTransformDeltaY(i);
+      }
+      if (x < 0 || x > width - 1 || y > height - 1)
+      {
+        return true;
+      }
+
+      // row, column
+      if (y >= 0 && grid.isOccupied(y, x))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Delete the blocks at the indicated positions and shift
+   * blocks above them down.  Only blocks lying within a column
+   * above a deleted block are shifted down.
+   * @param cellsToCollapse list of locations of cells to 
+   * collapse.  The list may contain duplicates.
+   */
+  private void collapseCells(List<Point> cellsToCollapse)
+  {
+    int top = height;
+    int bottom = -1;
+    for (int i = 0; i < cellsToCollapse.size(); ++i)
+    {
+      Point p = cellsToCollapse.get(i);
+      top = Math.min(top, p.y);
+      bottom = Math.max(bottom, p.y);
+    }
+    int words = grid.getWordCount();
+    int rows = bottom - top + 1;
+    if (marked.length < rows * words)
+    {
+      marked = new long[Math.max(marked.length * 2, rows * words)];
+      deletedRows = new int[marked.length / words];
+    }
+    markedTop = top;
+    for (int i = 0; i < cellsToCollapse.size(); ++i)
+    {
+      Point p = cellsToCollapse.get(i);
+      setMarked(p.y, p.x, true);
+    }
+
+    // In the usual case the marked cells make up whole rows, and the
+    // grid can delete them without moving individual cells.  The rows
+    // are moved intact, so none of them can have become full and the
+    // range of modified rows does not change.
+    int count = 0;
+    boolean wholeRows = true;
+    for (int row = top; row <= bottom && wholeRows; ++row)
+    {
+      int n = 0;
+      for (int i = (row - top) * words; i < (row - top + 1) * words; ++i)
+      {
+        n += Long.bitCount(marked[i]);
+      }
+      if (n == width)
+      {
+        deletedRows[count] = row;
+        ++count;
+      }
+      else if (n != 0)
+      {
+        wholeRows = false;
+      }
+    }
+    if (wholeRows)
+    {
+      if (history != null)
+      {
+        for (int i = 0; i < count; ++i)
+        {
+          IGameIcon[] contents = new IGameIcon[width];
+          for (int col = 0; col < width; ++col)
+          {
+            contents[col] = grid.get(deletedRows[i], col);
+          }
+          history.add(deletedRows[i], contents);
+        }
+        history.end(History.ROWS);
+      }
+      grid.removeRows(deletedRows, count);
+      fireRowsCleared(count);
+    }
+    else
+    {
+      collapseColumns(bottom);
+    }
+    Arrays.fill(marked, 0, rows * words, 0);
+  }
+
+  /**
+   * Delete the blocks marked in <code>marked</code> and shift
+   * blocks above them down, one column at a time.  Only blocks lying
+   * within a column above a deleted block are shifted down.
+   * @param bottom the y-coordinate of the lowest marked row
+   */
+  private void collapseColumns(int bottom)
+  {
+    for (int col = 0; col < width; ++col)
+    {
+      int start = bottom;
       boolean done = false;
       while (!done)
       {
         // go up the column and find the first marked block
-        while (start > 0 && !marked[start][col])
+        while (start > 0 && !isMarked(start, col))
         {
           --start;
         }
-        if (marked[start][col])
+        if (isMarked(start, col))
         {
           // go past all the marked cells, setting them null
           int j = start;
-          while (j >= 0 && marked[j][col])
+          while (j >= 0 && isMarked(j, col))
           {
-            grid[j][col] = null;
-            marked[j][col] = false;
+            setCell(j, col, null);
+            setMarked(j, col, false);
             --j;
           }
           if (j >= 0)
@@ -406,8 +1716,15 @@ public abstract class AbstractBlockGame implements IGame
             int shift = start - j;
             for (int k = j; k >= 0; --k)
             {
-              grid[k + shift][col] = grid[k][col];
-              marked[k + shift][col] = marked[k][col];
+              setCell(k + shift, col, grid.get(k, col));
+              setMarked(k + shift, col, isMarked(k, col));
+            }
+            
+            // nothing is left above the shifted blocks
+            for (int k = 0; k < shift; ++k)
+            {
+              setCell(k, col, null);
+              setMarked(k, col, false);
             }
           }
           else 
@@ -424,4 +1741,44 @@ public abstract class AbstractBlockGame implements IGame
     }
   }
 
+  /**
+   * Determines whether the given cell is marked in <code>marked</code>.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @return true if the cell is marked, false otherwise
+   */
+  private boolean isMarked(int row, int col)
+  {
+    if (row < markedTop)
+    {
+      return false;
+    }
+    int i = (row - markedTop) * grid.getWordCount() + (col >>> 6);
+    return (marked[i] & (1L << col)) != 0;
+  }
+
+  /**
+   * Marks or unmarks the given cell in <code>marked</code>.  Cells
+   * above markedTop can only be unmarked, so they are ignored.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @param mark true to mark the cell, false to unmark it
+   */
+  private void setMarked(int row, int col, boolean mark)
+  {
+    if (row < markedTop)
+    {
+      return;
+    }
+    int i = (row - markedTop) * grid.getWordCount() + (col >>> 6);
+    if (mark)
+    {
+      marked[i] |= 1L << col;
+    }
+    else
+    {
+      marked[i] &= ~(1L << col);
+    }
+  }
+
 }
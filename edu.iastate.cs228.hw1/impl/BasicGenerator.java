@@ -1,7 +1,7 @@
 package impl;
 
 import java.awt.Point;
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 import api.IPolyomino;
 import api.IPolyominoGenerator;
@@ -13,17 +13,99 @@ import impl.SZTetromino;
 import impl.TTetromino;
 
 /**
- * A generator which creates Tetromino pieces at random.
+ * A generator which creates Tetromino pieces at random. A generator
+ * constructed with a seed always creates the same sequence of pieces.
  * @author Brock Rikkers
  */
 public class BasicGenerator implements IPolyominoGenerator
 {
+	/**
+	 * Amount added to the x-coordinate of each new Tetromino so that it
+	 * starts near the middle of the grid.
+	 */
+	private int offset;
+	
+	/**
+	 * Width of the grid the Tetrominoes are created for.
+	 */
+	private int width;
+	
+	/**
+	 * Source of the random choices for each Tetromino.
+	 */
+	private SplitMix random;
+	
+	/**
+	 * Constructs a BasicGenerator for a grid of the default width.
+	 */
+	public BasicGenerator()
+	{
+		this(12);
+	}
+	
+	/**
+	 * Constructs a BasicGenerator for a grid of the given width.
+	 * @param an integer representing the width of the grid.
+	 */
+	public BasicGenerator(int width)
+	{
+		this(width, SplitMix.create());
+	}
+	
+	/**
+	 * Constructs a BasicGenerator for a grid of the given width whose
+	 * sequence of pieces is determined by the given seed.
+	 * @param an integer representing the width of the grid.
+	 * @param a long representing the seed.
+	 */
+	public BasicGenerator(int width, long seed)
+	{
+		this(width, new SplitMix(seed));
+	}
+	
+	/**
+	 * Constructs a BasicGenerator for a grid of the given width which
+	 * uses the given source of random choices.
+	 * @param an integer representing the width of the grid.
+	 * @param a SplitMix that is not shared with anything else.
+	 */
+	private BasicGenerator(int width, SplitMix random)
+	{
+		this.width = width;
+		offset = (width - 12) / 2;
+		this.random = random;
+	}
+	
+	@Override
+	public IPolyominoGenerator split()
+	{
+		return new BasicGenerator(width, random.split());
+	}
+	
+	/**
+	 * Writes the state of the random choices, which is all that changes
+	 * as Tetrominoes are created.
+	 * @param a ByteBuffer to write the state to.
+	 */
+	@Override
+	public void writeState(ByteBuffer buffer)
+	{
+		buffer.putLong(random.getSeed());
+		buffer.putLong(random.getGamma());
+	}
+	
+	@Override
+	public void readState(ByteBuffer buffer)
+	{
+		long seed = buffer.getLong();
+		random.setState(seed, buffer.getLong());
+	}
+	
 	@Override
 	public IPolyomino getNext() 
 	{
-		Random r = new Random();
-		int i = r.nextInt(6);
-		int b = r.nextInt(10);
+		int i = random.nextInt(6);
+		int b = random.nextInt(10);
 		boolean magicState;
 		
 		// Depending on b, the Tetromino will be magic or it won't.
@@ -34,17 +116,17 @@ public class BasicGenerator implements IPolyominoGenerator
 		
 		// Depending on i, it decides which Tetromino to create.
 		if(i == 0)
-			return new LTetromino(new Point(7, -1), magicState);		
+			return new LTetromino(new Point(7 + offset, -1), magicState);		
 		if(i == 1)
-			return new JTetromino(new Point(6, -1), magicState);
+			return new JTetromino(new Point(6 + offset, -1), magicState);
 		if(i == 2)
-			return new ITetromino(new Point(6, -2), magicState);
+			return new ITetromino(new Point(6 + offset, -2), magicState);
 		if(i == 3)
-			return new OTetromino(new Point(5, -1), magicState);
+			return new OTetromino(new Point(5 + offset, -1), magicState);
 		if(i == 4)
-			return new TTetromino(new Point(6, 1), magicState);
+			return new TTetromino(new Point(6 + offset, 1), magicState);
 		if(i == 5)
-			return new SZTetromino(new Point(5, -2), magicState);
+			return new SZTetromino(new Point(5 + offset, -2), magicState);
 		
 		else
 			return null;
@@ -0,0 +1,1005 @@
+package impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import api.IGame;
+import api.IGameIcon;
+
+/**
+ * Grid storage for a Tetris-like game.  Occupancy is kept as one bit
+ * per cell, packed into long words (bit <code>col % 64</code> of word
+ * <code>col / 64</code> of a row is set when that cell is occupied), and
+ * the icons are kept in a parallel array.  A board up to 64 columns wide
+ * uses a single word per row.  Collision and full-row tests can then be
+ * done with mask operations on the row words instead of per-cell null
+ * checks.  The number of occupied cells and magic icons in each row is
+ * kept up to date as cells are set, as is the height of each column.
+ * <p>
+ * Only the rows from the highest occupied row down to the bottom (the
+ * "live" rows) are stored; every row above them is empty.  The live
+ * rows are kept in a ring of slots: each slot holds the occupancy words
+ * and counters of one row and a reference to its icon array, which is
+ * only allocated when the row is first occupied.  Removing rows moves
+ * whole rows by reference, shifting whichever side of the removed rows
+ * is shorter, and no individual cells are copied.  A board with few
+ * cells in total gets slots for every row up front; a very tall board
+ * starts with a few slots and grows as rows become live, so that its
+ * memory use is proportional to the height of the stack rather than
+ * the height of the board.
+ * <p>
+ * The board also keeps a version number and a short log of the range
+ * of rows modified in each version, so that a reader can ask which 
+ * rows have changed since it last looked.  Modifications only widen 
+ * the range of the current, open version; the version is closed when
+ * getVersion() is called, so the cost of the log does not depend on 
+ * the number of modifications.
+ * <p>
+ * snapshot() saves the contents of the board in constant time by 
+ * handing out its arrays and marking them shared.  The next 
+ * modification copies the per-row words and counters, which are a few
+ * hundred bytes for a 12x24 board, and a row's icon array is only 
+ * copied when a cell of that row is set; rows that are never modified
+ * again stay shared between the board and every saved state.  
+ * restore() puts a saved state back the same way.
+ */
+public class BitBoard
+{
+  /**
+   * Boards with at most this many occupancy words in total get slots for
+   * every row when constructed.
+   */
+  private static final int PACKED_WORDS = 1 << 16;
+
+  /**
+   * Number of slots initially given to a taller board.
+   */
+  private static final int INITIAL_SLOTS = 64;
+
+  /**
+   * Number of versions for which the range of modified rows is kept.
+   */
+  private static final int LOG_SIZE = 64;
+
+  /**
+   * Number of columns.
+   */
+  private final int width;
+
+  /**
+   * Number of rows.
+   */
+  private final int height;
+
+  /**
+   * Number of occupancy words per row.
+   */
+  private final int words;
+
+  /**
+   * Number of slots.
+   */
+  private int capacity;
+
+  /**
+   * Occupancy words for each slot; the words for slot s begin at
+   * index <code>s * words</code>.
+   */
+  private long[] rows;
+
+  /**
+   * Icons for each cell, indexed [slot][col].  An entry is non-null
+   * if and only if the corresponding occupancy bit is set.  The icon
+   * array for a slot is null until the slot is first occupied.
+   */
+  private IGameIcon[][] icons;
+
+  /**
+   * True for each slot whose icon array belongs to this board alone, 
+   * false if it may be shared with a saved State.
+   */
+  private boolean[] owned;
+
+  /**
+   * True if the arrays of this board may be shared with a saved State,
+   * so must be copied before the board is modified.
+   */
+  private boolean shared;
+
+  /**
+   * Number of occupied cells in each slot.
+   */
+  private int[] counts;
+
+  /**
+   * Number of magic icons in each slot.
+   */
+  private int[] magicCounts;
+
+  /**
+   * Slot holding the highest live row.
+   */
+  private int base;
+
+  /**
+   * Number of live rows.  Rows above <code>height - live</code> are empty
+   * and have no slot; every slot that does not hold a live row is empty.
+   */
+  private int live;
+
+  /**
+   * Skyline of the board: the y-coordinate of the highest occupied cell
+   * in each column, or the height of the board if the column is empty.
+   */
+  private int[] tops;
+
+  /**
+   * Number of closed versions.
+   */
+  private long version;
+
+  /**
+   * Smallest y-coordinate of the rows modified in each of the last
+   * LOG_SIZE closed versions, indexed by version modulo LOG_SIZE.
+   */
+  private final int[] logFirst;
+
+  /**
+   * Largest y-coordinate of the rows modified in each of the last
+   * LOG_SIZE closed versions, indexed by version modulo LOG_SIZE.
+   */
+  private final int[] logLast;
+
+  /**
+   * Smallest y-coordinate of the rows modified in the open version,
+   * or the height of the board if none have been.
+   */
+  private int openFirst;
+
+  /**
+   * Largest y-coordinate of the rows modified in the open version,
+   * or -1 if none have been.
+   */
+  private int openLast;
+
+  /**
+   * Constructs an empty board with the given dimensions.
+   * @param width number of columns
+   * @param height number of rows
+   * @throws IllegalArgumentException if the width or height is not
+   *   positive
+   */
+  public BitBoard(int width, int height)
+  {
+    if (width < 1 || height < 1)
+    {
+      throw new IllegalArgumentException();
+    }
+    this.width = width;
+    this.height = height;
+    words = (width + 63) >>> 6;
+    if ((long) height * words <= PACKED_WORDS)
+    {
+      capacity = height;
+      live = height;
+    }
+    else
+    {
+      capacity = Math.min(INITIAL_SLOTS, height);
+      live = 0;
+    }
+    rows = new long[capacity * words];
+    icons = new IGameIcon[capacity][];
+    owned = new boolean[capacity];
+    counts = new int[capacity];
+    magicCounts = new int[capacity];
+    tops = new int[width];
+    Arrays.fill(tops, height);
+    logFirst = new int[LOG_SIZE];
+    logLast = new int[LOG_SIZE];
+    openFirst = height;
+    openLast = -1;
+  }
+
+  /**
+   * Saved contents of a board, made by snapshot() and put back by
+   * restore().  The arrays it refers to are never modified again.
+   */
+  public static final class State
+  {
+    /**
+     * Number of columns of the board.
+     */
+    private final int width;
+
+    /**
+     * Number of rows of the board.
+     */
+    private final int height;
+
+    /**
+     * Number of slots.
+     */
+    private final int capacity;
+
+    /**
+     * Occupancy words for each slot.
+     */
+    private final long[] rows;
+
+    /**
+     * Icons for each slot.
+     */
+    private final IGameIcon[][] icons;
+
+    /**
+     * Number of occupied cells in each slot.
+     */
+    private final int[] counts;
+
+    /**
+     * Number of magic icons in each slot.
+     */
+    private final int[] magicCounts;
+
+    /**
+     * Slot holding the highest live row.
+     */
+    private final int base;
+
+    /**
+     * Number of live rows.
+     */
+    private final int live;
+
+    /**
+     * Height of each column.
+     */
+    private final int[] tops;
+
+    /**
+     * Saves the contents of the given board, sharing its arrays.
+     * @param board the board
+     */
+    private State(BitBoard board)
+    {
+      width = board.width;
+      height = board.height;
+      capacity = board.capacity;
+      rows = board.rows;
+      icons = board.icons;
+      counts = board.counts;
+      magicCounts = board.magicCounts;
+      base = board.base;
+      live = board.live;
+      tops = board.tops;
+    }
+  }
+
+  /**
+   * Saves the contents of this board.  Takes constant time; the board
+   * and the saved state share their arrays until the board is next 
+   * modified.  The version of the board is not saved.
+   * @return the saved state
+   */
+  public State snapshot()
+  {
+    shared = true;
+    return new State(this);
+  }
+
+  /**
+   * Replaces the contents of this board with a saved state.  Takes 
+   * constant time, sharing the arrays of the state.  The version of 
+   * the board is not restored; instead every row that may differ is 
+   * recorded as modified.
+   * @param state a state saved from a board of the same size
+   * @throws IllegalArgumentException if the state is from a board of
+   *   a different size
+   */
+  public void restore(State state)
+  {
+    if (state.width != width || state.height != height)
+    {
+      throw new IllegalArgumentException("Board size does not match");
+    }
+    int first = height - Math.max(live, state.live);
+    if (first < height)
+    {
+      modified(first, height - 1);
+    }
+    capacity = state.capacity;
+    rows = state.rows;
+    icons = state.icons;
+    counts = state.counts;
+    magicCounts = state.magicCounts;
+    base = state.base;
+    live = state.live;
+    tops = state.tops;
+    shared = true;
+  }
+
+  /**
+   * Returns the number of columns.
+   * @return the number of columns
+   */
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /**
+   * Returns the number of rows.
+   * @return the number of rows
+   */
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /**
+   * Returns the number of occupancy words in each row.
+   * @return the number of words per row
+   */
+  public int getWordCount()
+  {
+    return words;
+  }
+
+  /**
+   * Returns the icon in the given cell, or null if the cell is unoccupied.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @return the icon in the given cell
+   * @throws ArrayIndexOutOfBoundsException if the coordinates are
+   *   invalid for the board
+   */
+  public IGameIcon get(int row, int col)
+  {
+    if (row < 0 || row >= height)
+    {
+      throw new ArrayIndexOutOfBoundsException(row);
+    }
+    if (col < 0 || col >= width)
+    {
+      throw new ArrayIndexOutOfBoundsException(col);
+    }
+    if (row < height - live)
+    {
+      return null;
+    }
+    IGameIcon[] r = icons[slot(row)];
+    return r == null ? null : r[col];
+  }
+
+  /**
+   * Determines whether the given cell is occupied.  No bounds checking
+   * is done on the column.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @return true if the cell is occupied, false otherwise
+   */
+  public boolean isOccupied(int row, int col)
+  {
+    if (row < height - live)
+    {
+      return false;
+    }
+    return (rows[slot(row) * words + (col >>> 6)] & (1L << col)) != 0;
+  }
+
+  /**
+   * Sets the icon in the given cell.  A null icon makes the cell
+   * unoccupied.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @param icon the new icon, possibly null
+   */
+  public void set(int row, int col, IGameIcon icon)
+  {
+    if (icon == null && (row < height - live || icons[slot(row)] == null))
+    {
+      // already unoccupied
+      return;
+    }
+    if (shared)
+    {
+      unshare();
+    }
+    if (row < height - live)
+    {
+      extend(row);
+    }
+    int s = slot(row);
+    if (icons[s] == null)
+    {
+      icons[s] = new IGameIcon[width];
+      owned[s] = true;
+    }
+    else if (!owned[s])
+    {
+      icons[s] = icons[s].clone();
+      owned[s] = true;
+    }
+    modified(row, row);
+    IGameIcon old = icons[s][col];
+    if (old != null)
+    {
+      counts[s] -= 1;
+      if (old.isMagic())
+      {
+        magicCounts[s] -= 1;
+      }
+    }
+    icons[s][col] = icon;
+    int w = s * words + (col >>> 6);
+    if (icon != null)
+    {
+      rows[w] |= 1L << col;
+      counts[s] += 1;
+      if (icon.isMagic())
+      {
+        magicCounts[s] += 1;
+      }
+      if (row < tops[col])
+      {
+        tops[col] = row;
+      }
+    }
+    else
+    {
+      rows[w] &= ~(1L << col);
+      if (row == tops[col])
+      {
+        // the top of the column was removed, look further down
+        tops[col] = findTop(col, row + 1);
+      }
+    }
+  }
+
+  /**
+   * Deletes the given rows.  The rows above each deleted row move down
+   * to take its place, and empty rows are added at the top.
+   * @param deleted y-coordinates of the rows to delete, in increasing
+   *   order and without duplicates
+   * @param count number of entries of <code>deleted</code> to use
+   */
+  public void removeRows(int[] deleted, int count)
+  {
+    if (count == 0)
+    {
+      return;
+    }
+    if (shared)
+    {
+      unshare();
+    }
+    int first = deleted[0];
+    int last = deleted[count - 1];
+    if (first < height - live)
+    {
+      extend(first);
+    }
+
+    // every row from the top of the stack down to the last deleted
+    // row either moves or becomes empty
+    int stackTop = first;
+    for (int col = 0; col < width; ++col)
+    {
+      stackTop = Math.min(stackTop, tops[col]);
+    }
+    modified(stackTop, last);
+
+    int highest = height - live;
+    if (last - highest < height - first)
+    {
+      // fewer rows above the last deleted row: move them down, which
+      // pushes the deleted rows up to the top of the live rows
+      int next = count - 1;
+      int to = last;
+      for (int from = last; from >= highest; --from)
+      {
+        if (next >= 0 && deleted[next] == from)
+        {
+          --next;
+        }
+        else
+        {
+          swap(from, to);
+          --to;
+        }
+      }
+      for (int row = highest; row < highest + count; ++row)
+      {
+        clearSlot(slot(row));
+      }
+      base = slot(highest + count);
+    }
+    else
+    {
+      // fewer rows below the first deleted row: move them up, which
+      // pushes the deleted rows to the bottom of the live rows
+      int next = 0;
+      int to = first;
+      for (int from = first; from < height; ++from)
+      {
+        if (next < count && deleted[next] == from)
+        {
+          ++next;
+        }
+        else
+        {
+          swap(from, to);
+          ++to;
+        }
+      }
+      for (int row = height - count; row < height; ++row)
+      {
+        clearSlot(slot(row));
+      }
+    }
+
+    // the deleted rows are no longer live; the rows above them keep
+    // their slots
+    live -= count;
+
+    for (int col = 0; col < width; ++col)
+    {
+      if (tops[col] < first)
+      {
+        // every deleted row was below the top of the column
+        tops[col] += count;
+      }
+      else
+      {
+        tops[col] = findTop(col, height - live);
+      }
+    }
+  }
+
+  /**
+   * Puts back rows deleted by removeRows(), undoing it.  The rows above
+   * each of the given rows move up to make room for it, and the board
+   * must have as many empty rows at the top as there are rows to put
+   * back, as it does just after removeRows().
+   * @param deleted y-coordinates the rows had before they were deleted,
+   *   in increasing order and without duplicates
+   * @param count number of entries of <code>deleted</code> to use
+   * @param contents icons of each row, indexed [i][col]; the arrays 
+   *   become part of the board
+   * @throws IllegalStateException if the board does not have that many
+   *   empty rows at the top
+   */
+  public void insertRows(int[] deleted, int count, IGameIcon[][] contents)
+  {
+    if (count == 0)
+    {
+      return;
+    }
+
+    // live rows at the top may have been emptied since removeRows(), 
+    // for instance when the stack had reached the top of the board; 
+    // they stop being live so that the rows put back can use them
+    while (live > height - count && live > 0 && counts[slot(height - live)] == 0)
+    {
+      base = slot(height - live + 1);
+      --live;
+    }
+    if (live > height - count)
+    {
+      throw new IllegalStateException("no room for " + count + " rows");
+    }
+    if (shared)
+    {
+      unshare();
+    }
+    int first = deleted[0];
+    int last = deleted[count - 1];
+    int highest = height - live;
+    extend(highest - count);
+    modified(highest - count, last);
+
+    // move the rows that were above the last deleted row back up,
+    // leaving the empty rows in the places of the deleted ones
+    int next = 0;
+    int from = highest;
+    for (int to = highest - count; to <= last; ++to)
+    {
+      if (next < count && deleted[next] == to)
+      {
+        ++next;
+      }
+      else
+      {
+        swap(from, to);
+        ++from;
+      }
+    }
+
+    for (int i = 0; i < count; ++i)
+    {
+      int s = slot(deleted[i]);
+      icons[s] = contents[i];
+      owned[s] = true;
+      for (int col = 0; col < width; ++col)
+      {
+        IGameIcon icon = contents[i][col];
+        if (icon != null)
+        {
+          rows[s * words + (col >>> 6)] |= 1L << col;
+          counts[s] += 1;
+          if (icon.isMagic())
+          {
+            magicCounts[s] += 1;
+          }
+        }
+      }
+    }
+
+    for (int col = 0; col < width; ++col)
+    {
+      if (tops[col] < first + count)
+      {
+        // only rows from above the first deleted row end up this high
+        tops[col] -= count;
+      }
+      else
+      {
+        tops[col] = findTop(col, first);
+      }
+    }
+  }
+
+  /**
+   * Returns one of the occupancy words for the given row.  Bit
+   * <code>col % 64</code> of word <code>col / 64</code> is set if
+   * column <code>col</code> is occupied.
+   * @param row the y-coordinate of the row
+   * @param index index of the word, from 0 to getWordCount() - 1
+   * @return bit mask of the occupied columns covered by the word
+   */
+  public long getWord(int row, int index)
+  {
+    if (row < height - live)
+    {
+      return 0;
+    }
+    return rows[slot(row) * words + index];
+  }
+
+  /**
+   * Returns the number of occupied cells in the given row.
+   * @param row the y-coordinate of the row
+   * @return number of occupied cells in the row
+   */
+  public int getCount(int row)
+  {
+    return row < height - live ? 0 : counts[slot(row)];
+  }
+
+  /**
+   * Returns the number of magic icons in the given row.
+   * @param row the y-coordinate of the row
+   * @return number of magic icons in the row
+   */
+  public int getMagicCount(int row)
+  {
+    return row < height - live ? 0 : magicCounts[slot(row)];
+  }
+
+  /**
+   * Returns the y-coordinate of the highest occupied cell in the given
+   * column, or the height of the board if the column is empty.
+   * @param col the x-coordinate of the column
+   * @return the y-coordinate of the top of the column
+   */
+  public int getTop(int col)
+  {
+    return tops[col];
+  }
+
+  /**
+   * Determines whether every cell in the given row is occupied.
+   * @param row the y-coordinate of the row
+   * @return true if the row is full, false otherwise
+   */
+  public boolean isFull(int row)
+  {
+    return getCount(row) == width;
+  }
+
+  /**
+   * Returns the current version of the board.  Every later modification
+   * belongs to a later version.
+   * @return the current version
+   */
+  public long getVersion()
+  {
+    if (openFirst <= openLast)
+    {
+      int i = (int) (version % LOG_SIZE);
+      logFirst[i] = openFirst;
+      logLast[i] = openLast;
+      version += 1;
+      openFirst = height;
+      openLast = -1;
+    }
+    return version;
+  }
+
+  /**
+   * Returns the smallest y-coordinate of the rows that may have been
+   * modified since the given version.  If the version is too old for 
+   * its modifications to be known, every row is assumed to have been
+   * modified.
+   * @param since a version returned by getVersion()
+   * @return y-coordinate of the first modified row, or the height of
+   *   the board if no row has been modified
+   */
+  public int getFirstChangedRow(long since)
+  {
+    if (version - since > LOG_SIZE)
+    {
+      return 0;
+    }
+    int first = openFirst;
+    for (long v = Math.max(since, 0); v < version; ++v)
+    {
+      first = Math.min(first, logFirst[(int) (v % LOG_SIZE)]);
+    }
+    return first;
+  }
+
+  /**
+   * Returns the largest y-coordinate of the rows that may have been
+   * modified since the given version.  If the version is too old for 
+   * its modifications to be known, every row is assumed to have been
+   * modified.
+   * @param since a version returned by getVersion()
+   * @return y-coordinate of the last modified row, or -1 if no row
+   *   has been modified
+   */
+  public int getLastChangedRow(long since)
+  {
+    if (version - since > LOG_SIZE)
+    {
+      return height - 1;
+    }
+    int last = openLast;
+    for (long v = Math.max(since, 0); v < version; ++v)
+    {
+      last = Math.max(last, logLast[(int) (v % LOG_SIZE)]);
+    }
+    return last;
+  }
+
+  /**
+   * Writes a code for each cell of the given rows into the given 
+   * array, row by row, as described for IGame.exportRows().
+   * @param firstRow y-coordinate of the first row to write
+   * @param lastRow y-coordinate of the last row to write
+   * @param buffer array for the codes
+   * @param offset index in the array of the code for the first cell
+   */
+  public void export(int firstRow, int lastRow, int[] buffer, int offset)
+  {
+    for (int row = firstRow; row <= lastRow; ++row)
+    {
+      IGameIcon[] r = row < height - live ? null : icons[slot(row)];
+      if (r == null || counts[slot(row)] == 0)
+      {
+        Arrays.fill(buffer, offset, offset + width, 0);
+      }
+      else
+      {
+        for (int col = 0; col < width; ++col)
+        {
+          buffer[offset + col] = code(r[col]);
+        }
+      }
+      offset += width;
+    }
+  }
+
+  /**
+   * Puts a code for each cell of the given rows into the given buffer,
+   * row by row, as described for IGame.exportRows().
+   * @param firstRow y-coordinate of the first row to write
+   * @param lastRow y-coordinate of the last row to write
+   * @param buffer buffer for the codes, starting at its position
+   */
+  public void export(int firstRow, int lastRow, ByteBuffer buffer)
+  {
+    for (int row = firstRow; row <= lastRow; ++row)
+    {
+      IGameIcon[] r = row < height - live ? null : icons[slot(row)];
+      boolean empty = r == null || counts[slot(row)] == 0;
+      for (int col = 0; col < width; ++col)
+      {
+        buffer.putInt(empty ? 0 : code(r[col]));
+      }
+    }
+  }
+
+  /**
+   * Returns the export code for the given icon.
+   * @param icon an icon, possibly null
+   * @return the code for the icon
+   */
+  private static int code(IGameIcon icon)
+  {
+    if (icon == null)
+    {
+      return 0;
+    }
+    int code = IGame.CELL_OCCUPIED | (icon.getColorHint().getRGB() & 0xffffff);
+    return icon.isMagic() ? code | IGame.CELL_MAGIC : code;
+  }
+
+  /**
+   * Records that the given rows are modified in the open version.
+   * @param first y-coordinate of the first modified row
+   * @param last y-coordinate of the last modified row
+   */
+  private void modified(int first, int last)
+  {
+    if (first < openFirst)
+    {
+      openFirst = first;
+    }
+    if (last > openLast)
+    {
+      openLast = last;
+    }
+  }
+
+  /**
+   * Gives this board its own copies of the arrays it shares with saved
+   * states, except for the icon arrays of the rows, which are copied 
+   * as they are modified.
+   */
+  private void unshare()
+  {
+    rows = rows.clone();
+    icons = icons.clone();
+    owned = new boolean[capacity];
+    counts = counts.clone();
+    magicCounts = magicCounts.clone();
+    tops = tops.clone();
+    shared = false;
+  }
+
+  /**
+   * Returns the slot holding the given live row.
+   * @param row the y-coordinate of the row
+   * @return index of the slot holding the row
+   */
+  private int slot(int row)
+  {
+    int s = base + row - (height - live);
+    return s < capacity ? s : s - capacity;
+  }
+
+  /**
+   * Makes the given row and all rows below it live, adding slots if
+   * needed.
+   * @param row the y-coordinate of the new highest live row, which 
+   *   must be in the board and above the current one
+   */
+  private void extend(int row)
+  {
+    if (row < 0)
+    {
+      throw new ArrayIndexOutOfBoundsException(row);
+    }
+    int added = height - live - row;
+    if (live + added > capacity)
+    {
+      // copy the live rows, in order, to the end of larger arrays
+      int newCapacity = Math.min(Math.max(capacity * 2, live + added), height);
+      long[] newRows = new long[newCapacity * words];
+      IGameIcon[][] newIcons = new IGameIcon[newCapacity][];
+      boolean[] newOwned = new boolean[newCapacity];
+      int[] newCounts = new int[newCapacity];
+      int[] newMagicCounts = new int[newCapacity];
+      int to = newCapacity - live;
+      for (int r = height - live; r < height; ++r)
+      {
+        int s = slot(r);
+        System.arraycopy(rows, s * words, newRows, to * words, words);
+        newIcons[to] = icons[s];
+        newOwned[to] = owned[s];
+        newCounts[to] = counts[s];
+        newMagicCounts[to] = magicCounts[s];
+        ++to;
+      }
+      rows = newRows;
+      icons = newIcons;
+      owned = newOwned;
+      counts = newCounts;
+      magicCounts = newMagicCounts;
+      base = newCapacity - live;
+      capacity = newCapacity;
+    }
+    base -= added;
+    if (base < 0)
+    {
+      base += capacity;
+    }
+    live += added;
+  }
+
+  /**
+   * Exchanges the contents of two live rows.
+   * @param a the y-coordinate of one row
+   * @param b the y-coordinate of the other row
+   */
+  private void swap(int a, int b)
+  {
+    if (a == b)
+    {
+      return;
+    }
+    int sa = slot(a);
+    int sb = slot(b);
+    for (int i = 0; i < words; ++i)
+    {
+      long word = rows[sa * words + i];
+      rows[sa * words + i] = rows[sb * words + i];
+      rows[sb * words + i] = word;
+    }
+    IGameIcon[] row = icons[sa];
+    icons[sa] = icons[sb];
+    icons[sb] = row;
+    boolean own = owned[sa];
+    owned[sa] = owned[sb];
+    owned[sb] = own;
+    int n = counts[sa];
+    counts[sa] = counts[sb];
+    counts[sb] = n;
+    n = magicCounts[sa];
+    magicCounts[sa] = magicCounts[sb];
+    magicCounts[sb] = n;
+  }
+
+  /**
+   * Empties the given slot, keeping its icon array for reuse if it is
+   * not shared.
+   * @param s index of the slot
+   */
+  private void clearSlot(int s)
+  {
+    if (counts[s] != 0)
+    {
+      if (owned[s])
+      {
+        Arrays.fill(icons[s], null);
+      }
+      else
+      {
+        icons[s] = null;
+      }
+      Arrays.fill(rows, s * words, (s + 1) * words, 0);
+      counts[s] = 0;
+      magicCounts[s] = 0;
+    }
+  }
+
+  /**
+   * Returns the y-coordinate of the first occupied cell in the given
+   * column at or below the given row, or the height of the board if
+   * there is none.
+   * @param col the x-coordinate of the column
+   * @param row the y-coordinate at which to start looking
+   * @return the y-coordinate of the first occupied cell
+   */
+  private int findTop(int col, int row)
+  {
+    row = Math.max(row, height - live);
+    while (row < height && !isOccupied(row, col))
+    {
+      ++row;
+    }
+    return row;
+  }
+}
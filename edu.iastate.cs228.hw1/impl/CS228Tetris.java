@@ -1,9 +1,11 @@
 package impl;
 
 import java.awt.Point;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import api.IPolyominoGenerator;
 import impl.BasicGenerator;
 
 /**
@@ -18,51 +20,72 @@ public class CS228Tetris extends AbstractBlockGame
 	private int score = 0;
 	
 	/**
-	 * Constructs a CS228Tetris game using the BasicGenerator.
+	 * Number of upcoming pieces shown when the game makes its own generator.
+	 */
+	public static final int PREVIEW_DEPTH = 5;
+	
+	/**
+	 * Constructs a CS228Tetris game using the BasicGenerator, showing
+	 * PREVIEW_DEPTH upcoming pieces.
 	 */
 	public CS228Tetris() 
 	{
-		super(new BasicGenerator());
+		super(new PreviewGenerator(new BasicGenerator(), PREVIEW_DEPTH));
+	}
+	
+	/**
+	 * Constructs a CS228Tetris game with a grid of the given size using
+	 * the BasicGenerator, showing PREVIEW_DEPTH upcoming pieces.
+	 * @param an integer representing the width of the grid.
+	 * @param an integer representing the height of the grid.
+	 */
+	public CS228Tetris(int width, int height)
+	{
+		super(new PreviewGenerator(new BasicGenerator(width), PREVIEW_DEPTH), width, height);
+	}
+	
+	/**
+	 * Constructs a CS228Tetris game with a grid of the given size using
+	 * the given generator, for example a BasicGenerator with a seed so
+	 * that the game can be reproduced, or a PreviewGenerator so that
+	 * upcoming pieces can be seen.
+	 * @param an IPolyominoGenerator for the new pieces.
+	 * @param an integer representing the width of the grid.
+	 * @param an integer representing the height of the grid.
+	 */
+	public CS228Tetris(IPolyominoGenerator generator, int width, int height)
+	{
+		super(generator, width, height);
 	}
 	
 	/**
 	 * Method that determines which cells need to be collapsed by checking
-	 * if each cell is occupied. If it is, it constructs a point with the same
-	 * coordinates and adds the point to the list.
+	 * if each row is full. If it is, it constructs a point for each cell
+	 * in the row and adds the points to the list. Only the rows that 
+	 * changed since the last call are checked, since no other row can
+	 * have become full.
 	 * @return a list of Point objects.
 	 */
 	public List<Point> determineCellsToCollapse() 
 	{
 		List<Point> cellsToCollapse = new ArrayList<Point>();
-		List<Point> cellsToCollapse2 = new ArrayList<Point>();
 		int magicBlocks = 0;
 		int rowCount = 0;
 		
-		// Go through and determine if the cell is occupied and magic. 
-		// If it is occupied, add the point to the list.
-		for(int row = super.getHeight()-1; row >= 0; row--)
+		// Go through and determine if the row is full. A full row adds its
+		// magic blocks to the count, anything else resets the counts.
+		for(int row = super.getLastChangedRow(); row >= super.getFirstChangedRow(); row--)
 		{
-			for(int col = 0; col <= super.getWidth()-1; col++)
+			if(!super.isRowFull(row))
 			{
-				if(super.getCell(row, col) != null)
-				{
-					Point p = new Point(col, row);
-					cellsToCollapse2.add(p);
-					rowCount++;
-					
-					if(super.getCell(row, col).isMagic())
-					{
-						magicBlocks++;
-					}
-				}
-				else
-				{
-					magicBlocks = 0;
-					rowCount = 0;
-					break;
-				}
+				magicBlocks = 0;
+				rowCount = 0;
+				continue;
 			}
 			
+			magicBlocks = magicBlocks + super.getRowMagicCount(row);
+			rowCount = rowCount + super.getWidth();
+			
 			// If there's 3 or more magic blocks, turn gravity mode on.
 			if(magicBlocks >= 3)
 			{
@@ -74,23 +97,14 @@ public class CS228Tetris extends AbstractBlockGame
 				}
 			}
 			
-			// If the rowCount is 12 or more, then for every 12 add 1 to the score.
+			// For every full width in the rowCount add 1 to the score.
 			// Then add the cells from that row into the overall cellsToCollapse array.
-			if(rowCount >= 12)
-			{
-				int n = rowCount/12;
-				score = score + n;
-				
-				for(int i = 0; i <= cellsToCollapse2.size()-1; i++)
-				{
-					cellsToCollapse.add(cellsToCollapse2.get(i));
-				}
-			}
+			int n = rowCount/super.getWidth();
+			score = score + n;
 			
-			// Removes the cells from that row.
-			for(int i = cellsToCollapse2.size()-1; i >= 0; i--)
+			for(int col = 0; col <= super.getWidth()-1; col++)
 			{
-				cellsToCollapse2.remove(i);
+				cellsToCollapse.add(new Point(col, row));
 			}
 		}
 		
@@ -106,11 +120,33 @@ public class CS228Tetris extends AbstractBlockGame
 		return score;
 	}
 	
+	/**
+	 * Writes the score, which is the only state the game keeps besides
+	 * that of the AbstractBlockGame.
+	 * @param a ByteBuffer to write the score to.
+	 */
+	@Override
+	protected void writeExtraState(ByteBuffer buffer)
+	{
+		buffer.putInt(score);
+	}
+	
+	/**
+	 * Reads the score written by writeExtraState().
+	 * @param a ByteBuffer to read the score from.
+	 */
+	@Override
+	protected void readExtraState(ByteBuffer buffer)
+	{
+		score = buffer.getInt();
+	}
+	
 	/**
 	 * This is called if the previous call to determineCellsToCollapse found 
 	 * 3 or more magic blocks, then this method checks whether there are empty 
 	 * cells below any occupied cells. If there are, it adds a point with the 
-	 * same coordinates to a list. 
+	 * same coordinates to a list. Each column is checked from the highest
+	 * occupied cell down, so every empty cell is added once.
 	 * @return a list of points that will be added to the cellsToCollapse list
 	 * in the method determineCellsToCollapse.
 	 */
@@ -118,20 +154,14 @@ public class CS228Tetris extends AbstractBlockGame
 	{
 		List<Point> cellsToCollapseGravity = new ArrayList<Point>();
 		
-		for(int row = 0; row <= super.getHeight()-1; row++)
+		for(int col = 0; col <= super.getWidth()-1; col++)
 		{
-			for(int col = 0; col <= super.getWidth()-1; col++)
+			for(int row = super.getColumnTop(col)+1; row <= super.getHeight()-1; row++)
 			{
-				if(super.getCell(row, col) != null)
+				if(super.getCell(row, col) == null)
 				{
-					for(int i = row; i <= super.getHeight()-1; i++)
-					{
-						if(super.getCell(i, col) == null)
-						{
-							Point p = new Point(col, i);
-							cellsToCollapseGravity.add(p);
-						}
-					}
+					Point p = new Point(col, row);
+					cellsToCollapseGravity.add(p);
 				}
 			}
 		}
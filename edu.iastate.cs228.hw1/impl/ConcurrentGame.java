@@ -0,0 +1,492 @@
+package impl;
+
+import java.awt.Point;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import api.GameStatus;
+import api.IGame;
+import api.IGameIcon;
+import api.IGameListener;
+import api.IPolyomino;
+
+/**
+ * Thread-safe IGame wrapping a game that is not.  The wrapped game is
+ * only ever touched by one writer thread owned by this object.  Calls
+ * that modify the game, from any thread, are added as commands to a
+ * lock-free queue; the writer carries them out in order, publishes a
+ * new GameSnapshot after each batch, and only then lets the callers
+ * return, so a caller always sees the effect of its own command.
+ * <p>
+ * Calls that only read the game are answered from the latest snapshot
+ * and are wait-free.  Successive calls may see successive snapshots;
+ * a reader that needs several values that are consistent with each
+ * other should take one snapshot with getSnapshot() and read them all
+ * from it.
+ * <p>
+ * The writer thread should be stopped with close() when the game is no
+ * longer needed.  The wrapped game must not be used directly while it
+ * is wrapped.  If the writer thread fails other than in a call, for
+ * example while taking a snapshot, this object is closed as if by
+ * close(), and the calls waiting for the writer fail along with the
+ * later ones.
+ */
+public class ConcurrentGame implements IGame
+{
+  /**
+   * Operation code for step().
+   */
+  private static final int STEP = 0;
+
+  /**
+   * Operation code for transform().
+   */
+  private static final int TRANSFORM = 1;
+
+  /**
+   * Operation code for cycle().
+   */
+  private static final int CYCLE = 2;
+
+  /**
+   * Operation code for shiftLeft().
+   */
+  private static final int SHIFT_LEFT = 3;
+
+  /**
+   * Operation code for shiftRight().
+   */
+  private static final int SHIFT_RIGHT = 4;
+
+  /**
+   * Operation code for hardDrop().
+   */
+  private static final int HARD_DROP = 5;
+
+  /**
+   * The wrapped game, used only by the writer thread.
+   */
+  private final IGame game;
+
+  /**
+   * Commands waiting to be carried out.
+   */
+  private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<Command>();
+
+  /**
+   * The latest snapshot.
+   */
+  private volatile GameSnapshot snapshot;
+
+  /**
+   * False once close() has been called or the writer thread has failed.
+   */
+  private volatile boolean running = true;
+
+  /**
+   * What made the writer thread fail, or null if it has not.
+   */
+  private volatile Throwable writerFailure;
+
+  /**
+   * The writer thread.
+   */
+  private final Thread writer;
+
+  /**
+   * A call waiting to be carried out by the writer thread.
+   */
+  private static class Command
+  {
+    /**
+     * Operation code of the call.
+     */
+    final int op;
+
+    /**
+     * The thread waiting for the call to be carried out.
+     */
+    final Thread caller = Thread.currentThread();
+
+    /**
+     * Result of the call, if it returns an int or a boolean.
+     */
+    int result;
+
+    /**
+     * Result of the call, if it returns a status.
+     */
+    GameStatus status;
+
+    /**
+     * Exception thrown by the call, or null.
+     */
+    RuntimeException failure;
+
+    /**
+     * Set, after the other fields, once the call has been carried out.
+     */
+    volatile boolean done;
+
+    /**
+     * Constructs a command for a call made by the current thread.
+     * @param op operation code of the call
+     */
+    Command(int op)
+    {
+      this.op = op;
+    }
+  }
+
+  /**
+   * Wraps the given game and starts the writer thread.
+   * @param game the game to wrap
+   */
+  public ConcurrentGame(IGame game)
+  {
+    this.game = game;
+    snapshot = new GameSnapshot(game, null, 0);
+    writer = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        write();
+      }
+    }, "ConcurrentGame");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Returns the latest snapshot of the game.  It includes the effect
+   * of every call that has returned.
+   * @return the latest snapshot
+   */
+  public GameSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+  /**
+   * Stops the writer thread.  Calls that modify the game then throw
+   * IllegalStateException; calls that read it keep seeing the last
+   * snapshot.
+   */
+  public void close()
+  {
+    running = false;
+    LockSupport.unpark(writer);
+  }
+
+  @Override
+  public GameStatus step()
+  {
+    return call(STEP).status;
+  }
+
+  @Override
+  public boolean transform()
+  {
+    return call(TRANSFORM).result != 0;
+  }
+
+  @Override
+  public void cycle()
+  {
+    call(CYCLE);
+  }
+
+  @Override
+  public boolean shiftLeft()
+  {
+    return call(SHIFT_LEFT).result != 0;
+  }
+
+  @Override
+  public boolean shiftRight()
+  {
+    return call(SHIFT_RIGHT).result != 0;
+  }
+
+  @Override
+  public int hardDrop()
+  {
+    return call(HARD_DROP).result;
+  }
+
+  @Override
+  public int dropDistance()
+  {
+    return snapshot.dropDistance();
+  }
+
+  @Override
+  public IGameIcon getCell(int row, int col)
+  {
+    return snapshot.getCell(row, col);
+  }
+
+  @Override
+  public long getGridVersion()
+  {
+    return snapshot.getGridVersion();
+  }
+
+  @Override
+  public int getFirstRowChangedSince(long version)
+  {
+    return snapshot.getFirstRowChangedSince(version);
+  }
+
+  @Override
+  public int getLastRowChangedSince(long version)
+  {
+    return snapshot.getLastRowChangedSince(version);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, int[] buffer, int offset)
+  {
+    snapshot.exportRows(firstRow, lastRow, buffer, offset);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, ByteBuffer buffer)
+  {
+    snapshot.exportRows(firstRow, lastRow, buffer);
+  }
+
+  /**
+   * Returns a copy of the current polyomino; modifying it does not
+   * affect the game.
+   */
+  @Override
+  public IPolyomino getCurrent()
+  {
+    return snapshot.getCurrent();
+  }
+
+  /**
+   * Returns a copy of the upcoming polyomino.
+   */
+  @Override
+  public IPolyomino getPreview(int n)
+  {
+    return snapshot.getPreview(n);
+  }
+
+  @Override
+  public int getPreviewDepth()
+  {
+    return snapshot.getPreviewDepth();
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return snapshot.getWidth();
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return snapshot.getHeight();
+  }
+
+  @Override
+  public Point[] getCellsToCollapse()
+  {
+    return snapshot.getCellsToCollapse();
+  }
+
+  @Override
+  public int getScore()
+  {
+    return snapshot.getScore();
+  }
+
+  @Override
+  public boolean gameOver()
+  {
+    return snapshot.gameOver();
+  }
+
+  /**
+   * Adds a listener to the wrapped game.  Its methods are invoked by 
+   * the writer thread, before the snapshot showing the change is 
+   * published; they must not call the methods of this object that 
+   * modify the game.
+   */
+  @Override
+  public void addGameListener(IGameListener listener)
+  {
+    game.addGameListener(listener);
+  }
+
+  @Override
+  public void removeGameListener(IGameListener listener)
+  {
+    game.removeGameListener(listener);
+  }
+
+  /**
+   * Queues a call for the writer thread and waits until it has been
+   * carried out and its effect published.
+   * @param op operation code of the call
+   * @return the completed command
+   */
+  private Command call(int op)
+  {
+    if (!running)
+    {
+      throw closed();
+    }
+    Command command = new Command(op);
+    commands.add(command);
+    if (!running && commands.remove(command))
+    {
+      // closed before the writer thread took the command
+      throw closed();
+    }
+    LockSupport.unpark(writer);
+    while (!command.done)
+    {
+      LockSupport.park(this);
+    }
+    if (command.failure != null)
+    {
+      throw command.failure;
+    }
+    return command;
+  }
+
+  /**
+   * Body of the writer thread.  Carries out the queued commands a
+   * batch at a time, publishing one snapshot for each batch.
+   */
+  private void write()
+  {
+    ArrayList<Command> batch = new ArrayList<Command>();
+    try
+    {
+      while (running)
+      {
+        Command command;
+        while ((command = commands.poll()) != null)
+        {
+          execute(command);
+          batch.add(command);
+        }
+        if (batch.isEmpty())
+        {
+          LockSupport.park(this);
+          continue;
+        }
+        snapshot = new GameSnapshot(game, snapshot, snapshot.getVersion() + 1);
+        for (int i = 0; i < batch.size(); ++i)
+        {
+          complete(batch.get(i));
+        }
+        batch.clear();
+      }
+    }
+    catch (Throwable e)
+    {
+      // the effect of the batch cannot be published, so its calls fail
+      // and nothing more is carried out
+      writerFailure = e;
+      running = false;
+      for (int i = 0; i < batch.size(); ++i)
+      {
+        Command command = batch.get(i);
+        if (!command.done)
+        {
+          command.failure = closed();
+          complete(command);
+        }
+      }
+      failPending();
+      if (e instanceof Error)
+      {
+        throw (Error) e;
+      }
+      return;
+    }
+    failPending();
+  }
+
+  /**
+   * Fails the calls that arrived while closing.
+   */
+  private void failPending()
+  {
+    Command command;
+    while ((command = commands.poll()) != null)
+    {
+      command.failure = closed();
+      complete(command);
+    }
+  }
+
+  /**
+   * Returns the exception thrown by calls once this object is closed,
+   * with the failure of the writer thread as its cause if it failed.
+   * @return the exception
+   */
+  private IllegalStateException closed()
+  {
+    Throwable cause = writerFailure;
+    return cause == null ? new IllegalStateException("closed")
+        : new IllegalStateException("writer thread failed", cause);
+  }
+
+  /**
+   * Carries out the call for the given command on the wrapped game.
+   * @param command the command
+   */
+  private void execute(Command command)
+  {
+    try
+    {
+      switch (command.op)
+      {
+        case STEP:
+          command.status = game.step();
+          break;
+        case TRANSFORM:
+          command.result = game.transform() ? 1 : 0;
+          break;
+        case CYCLE:
+          game.cycle();
+          break;
+        case SHIFT_LEFT:
+          command.result = game.shiftLeft() ? 1 : 0;
+          break;
+        case SHIFT_RIGHT:
+          command.result = game.shiftRight() ? 1 : 0;
+          break;
+        case HARD_DROP:
+          command.result = game.hardDrop();
+          break;
+        default:
+          break;
+      }
+    }
+    catch (RuntimeException e)
+    {
+      command.failure = e;
+    }
+  }
+
+  /**
+   * Marks the given command as carried out and wakes its caller.
+   * @param command the command
+   */
+  private static void complete(Command command)
+  {
+    command.done = true;
+    LockSupport.unpark(command.caller);
+  }
+}
@@ -0,0 +1,248 @@
+package impl;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Saves games to files and loads them back, using the state written
+ * by AbstractBlockGame.writeState().  A file holds a header followed by
+ * the state:
+ * <pre>
+ *   int    MAGIC
+ *   short  VERSION
+ *   int    length of the state in bytes
+ *   int    CRC-32 of the state
+ *   byte[] the state
+ * </pre>
+ * All values are big-endian.  A 12x24 game takes a few hundred bytes.
+ * Files of version 1, whose length is a short, can still be loaded.
+ * <p>
+ * A GameFile keeps one direct buffer that every save and load goes
+ * through, so saving allocates almost nothing and can be done as often
+ * as a checkpoint is wanted.  A save writes a temporary file, forces
+ * it to the disk and moves it over the old one, so a file is never
+ * left half written, even by a crash.  A GameFile is not thread-safe.
+ */
+public class GameFile
+{
+  /**
+   * First four bytes of every file.
+   */
+  public static final int MAGIC = 0x54333238;
+
+  /**
+   * Version of the layout of the state written by this class.
+   */
+  public static final short VERSION = 2;
+
+  /**
+   * Size of the header.
+   */
+  private static final int HEADER_SIZE = 14;
+
+  /**
+   * Size of the header of a file of version 1.
+   */
+  private static final int HEADER_SIZE_1 = 12;
+
+  /**
+   * Largest state that can be saved.
+   */
+  private static final int MAX_STATE = Integer.MAX_VALUE - HEADER_SIZE;
+
+  /**
+   * Buffer every file is written from and read into.
+   */
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+  /**
+   * Computes the checksums.
+   */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Saves the given game to the given file, replacing it if it exists.
+   * @param game the game to save
+   * @param path the file to write
+   * @throws IOException if the file cannot be written
+   * @throws IllegalArgumentException if the state of the game cannot
+   *   be saved, or is too large
+   * @throws UnsupportedOperationException if the state of the
+   *   generator cannot be saved
+   */
+  public void save(AbstractBlockGame game, Path path) throws IOException
+  {
+    encode(game);
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    try
+    {
+      while (buffer.hasRemaining())
+      {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    finally
+    {
+      channel.close();
+    }
+    try
+    {
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e)
+    {
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Puts the given game in the state saved in the given file.  The
+   * game must be of the same kind as the one saved, with a grid of the
+   * same size and a generator of the same kind.  If the file is
+   * damaged or does not match the game, the game is left as it was.
+   * @param game the game to restore
+   * @param path the file to read
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if the file is not a saved game,
+   *   is damaged, has an unknown version, or does not match the game
+   * @throws UnsupportedOperationException if the state of the 
+   *   generator cannot be restored, in which case the game is also
+   *   left as it was
+   */
+  public void load(AbstractBlockGame game, Path path) throws IOException
+  {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try
+    {
+      long size = channel.size();
+      if (size < HEADER_SIZE_1 || size > HEADER_SIZE + (long) MAX_STATE)
+      {
+        throw new IllegalArgumentException("Not a saved game: " + path);
+      }
+      if (buffer.capacity() < size)
+      {
+        buffer = ByteBuffer.allocateDirect((int) size);
+      }
+      buffer.clear();
+      buffer.limit((int) size);
+      while (buffer.hasRemaining())
+      {
+        if (channel.read(buffer) < 0)
+        {
+          throw new IllegalArgumentException("Truncated file: " + path);
+        }
+      }
+    }
+    finally
+    {
+      channel.close();
+    }
+    buffer.flip();
+    decode(game);
+  }
+
+  /**
+   * Fills the buffer with the header and state of the given game,
+   * ready to be written.
+   * @param game the game
+   */
+  private void encode(AbstractBlockGame game)
+  {
+    while (true)
+    {
+      try
+      {
+        buffer.clear();
+        buffer.position(HEADER_SIZE);
+        game.writeState(buffer);
+        break;
+      }
+      catch (BufferOverflowException e)
+      {
+        if (buffer.capacity() >= HEADER_SIZE + MAX_STATE)
+        {
+          throw new IllegalArgumentException("State too large");
+        }
+        buffer = ByteBuffer.allocateDirect((int) Math.min(buffer.capacity() * 2L, HEADER_SIZE + MAX_STATE));
+      }
+    }
+    int length = buffer.position() - HEADER_SIZE;
+    buffer.flip();
+    buffer.position(HEADER_SIZE);
+    crc.reset();
+    crc.update(buffer);
+    buffer.putInt(0, MAGIC);
+    buffer.putShort(4, VERSION);
+    buffer.putInt(6, length);
+    buffer.putInt(10, (int) crc.getValue());
+    buffer.position(0);
+  }
+
+  /**
+   * Checks the header in the buffer and puts the given game in the
+   * state that follows it.
+   * @param game the game
+   */
+  private void decode(AbstractBlockGame game)
+  {
+    if (buffer.getInt(0) != MAGIC)
+    {
+      throw new IllegalArgumentException("Not a saved game");
+    }
+    int version = buffer.getShort(4);
+    int headerSize;
+    long length;
+    int checksum;
+    if (version == VERSION && buffer.limit() >= HEADER_SIZE)
+    {
+      headerSize = HEADER_SIZE;
+      length = buffer.getInt(6) & 0xffffffffL;
+      checksum = buffer.getInt(10);
+    }
+    else if (version == 1)
+    {
+      headerSize = HEADER_SIZE_1;
+      length = buffer.getShort(6) & 0xffff;
+      checksum = buffer.getInt(8);
+    }
+    else
+    {
+      throw new IllegalArgumentException("Unknown version " + version);
+    }
+    if (length != buffer.limit() - headerSize)
+    {
+      throw new IllegalArgumentException("Truncated file");
+    }
+    buffer.position(headerSize);
+    crc.reset();
+    crc.update(buffer);
+    if ((int) crc.getValue() != checksum)
+    {
+      throw new IllegalArgumentException("Checksum does not match");
+    }
+
+    // the checksum only shows the file is intact, not that it matches
+    // this game; readState() puts the game back if it does not
+    buffer.position(headerSize);
+    try
+    {
+      game.readState(buffer, true);
+    }
+    catch (BufferUnderflowException e)
+    {
+      throw new IllegalArgumentException("Truncated state");
+    }
+  }
+}
@@ -0,0 +1,686 @@
+package impl;
+
+import java.awt.Point;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import api.GameStatus;
+import api.IGame;
+import api.IGameIcon;
+import api.IGameListener;
+import api.IPolyomino;
+
+/**
+ * Immutable picture of the state of a game at one moment.  A snapshot
+ * can be read through the IGame interface from any number of threads
+ * without synchronization, but the methods that would modify the game
+ * throw UnsupportedOperationException.
+ * <p>
+ * Snapshots are taken one after another from the same game, and each
+ * one shares with the one before it the grid rows that have not changed
+ * in between, so that taking a snapshot only copies what is new.  The
+ * rows are kept in a tree with 32 rows to a leaf, which a snapshot
+ * copies only along the paths to the rows that changed, and empty rows
+ * are not stored at all, so even a snapshot of a very tall grid is
+ * cheap.  The row versions of a snapshot are exact:
+ * getFirstRowChangedSince() and getLastRowChangedSince() report only
+ * rows that really changed.
+ */
+public final class GameSnapshot implements IGame
+{
+  /**
+   * Number of bits of a row's y-coordinate used at each level of the
+   * tree of rows.
+   */
+  private static final int SHIFT = 5;
+
+  /**
+   * Number of children of each node of the tree of rows.
+   */
+  private static final int BRANCH = 1 << SHIFT;
+
+  /**
+   * Mask for the index of a child within its node.
+   */
+  private static final int MASK = BRANCH - 1;
+
+  /**
+   * Sequence number of this snapshot.
+   */
+  private final long version;
+
+  /**
+   * Width of the grid.
+   */
+  private final int width;
+
+  /**
+   * Height of the grid.
+   */
+  private final int height;
+
+  /**
+   * Root of the tree of rows, or null if the grid is empty; nodes are
+   * shared between snapshots and must never be modified once the
+   * snapshot that made them is constructed.
+   */
+  private final Node root;
+
+  /**
+   * Number of bits a row's y-coordinate is shifted right by to find
+   * its child of the root, 0 if the root is a leaf.
+   */
+  private final int rootShift;
+
+  /**
+   * Version of the grid in this snapshot.
+   */
+  private final long gridVersion;
+
+  /**
+   * Copy of the current polyomino, or null if the game is collapsing
+   * cells or over.
+   */
+  private final IPolyomino current;
+
+  /**
+   * Distance the current polyomino can fall, or -1 if there is no
+   * current polyomino.
+   */
+  private final int dropDistance;
+
+  /**
+   * Copies of the upcoming polyominoes.
+   */
+  private final IPolyomino[] previews;
+
+  /**
+   * The cells about to be collapsed, or null if there are none.
+   */
+  private final Point[] cellsToCollapse;
+
+  /**
+   * The score.
+   */
+  private final int score;
+
+  /**
+   * True if the game is over.
+   */
+  private final boolean gameOver;
+
+  /**
+   * Takes a snapshot of the given game.
+   * @param game the game
+   * @param previous the previous snapshot of the same game, or null
+   *   if this is the first
+   * @param version sequence number of the new snapshot
+   */
+  GameSnapshot(IGame game, GameSnapshot previous, long version)
+  {
+    this.version = version;
+    width = game.getWidth();
+    height = game.getHeight();
+    gridVersion = game.getGridVersion();
+    int shift = 0;
+    while (shift + SHIFT < 31 && (height - 1) >>> (shift + SHIFT) != 0)
+    {
+      shift += SHIFT;
+    }
+    rootShift = shift;
+
+    // nodes made by this constructor can be modified in place until it
+    // returns
+    Object edit = new Object();
+    Node tree = null;
+    int first = 0;
+    int last = height - 1;
+    if (previous != null)
+    {
+      tree = previous.root;
+      first = game.getFirstRowChangedSince(previous.gridVersion);
+      last = game.getLastRowChangedSince(previous.gridVersion);
+    }
+    for (int row = first; row <= last; ++row)
+    {
+      // the game only reports a range that may have changed, so 
+      // compare the cells to find the rows that really did
+      IGameIcon[] old = previous == null ? null : previous.getRow(row);
+      IGameIcon[] r = null;
+      boolean empty = true;
+      for (int col = 0; col < width; ++col)
+      {
+        IGameIcon icon = game.getCell(row, col);
+        if (r == null && (old == null ? icon != null : old[col] != icon))
+        {
+          r = new IGameIcon[width];
+          if (old != null)
+          {
+            System.arraycopy(old, 0, r, 0, col);
+          }
+        }
+        if (r != null)
+        {
+          r[col] = icon;
+        }
+        empty = empty && icon == null;
+      }
+      if (r != null)
+      {
+        // modifications made after previous.gridVersion was read
+        // belong to that version and any later ones up to this one;
+        // a row found in the first snapshot has not been modified since
+        long rowVersion = previous == null ? -1 : gridVersion - 1;
+        tree = set(tree, rootShift, row, empty ? null : r, rowVersion, edit);
+      }
+    }
+    root = tree;
+
+    score = game.getScore();
+    gameOver = game.gameOver();
+    Point[] collapsing = null;
+    IPolyomino piece = null;
+    int distance = -1;
+    if (!gameOver)
+    {
+      try
+      {
+        piece = game.getCurrent();
+        distance = game.dropDistance();
+      }
+      catch (IllegalStateException e)
+      {
+        // there is no current polyomino while cells are collapsing
+        piece = null;
+        collapsing = game.getCellsToCollapse();
+      }
+    }
+    cellsToCollapse = collapsing;
+    dropDistance = distance;
+    current = piece == null ? null : reuse(previous == null ? null : previous.current, piece);
+
+    previews = new IPolyomino[game.getPreviewDepth()];
+    for (int i = 0; i < previews.length; ++i)
+    {
+      IPolyomino old = previous != null && i < previous.previews.length ? previous.previews[i] : null;
+      previews[i] = reuse(old, game.getPreview(i));
+    }
+  }
+
+  /**
+   * Returns a tree with one row replaced, copying the nodes on the path
+   * to it unless they were made by the same constructor.
+   * @param node root of the subtree holding the row, or null if all
+   *   its rows are empty
+   * @param shift shift of the row's y-coordinate for the node's children
+   * @param row y-coordinate of the row
+   * @param cells the new icons of the row, or null if it is empty
+   * @param rowVersion the new version of the row
+   * @param edit token of the constructor
+   * @return the new root of the subtree
+   */
+  private static Node set(Node node, int shift, int row, IGameIcon[] cells,
+      long rowVersion, Object edit)
+  {
+    Node n = node == null ? new Node(edit, shift == 0)
+        : node.edit == edit ? node : new Node(edit, node);
+    int i = (row >>> shift) & MASK;
+    if (shift == 0)
+    {
+      n.rows[i] = cells;
+      n.rowVersions[i] = rowVersion;
+    }
+    else
+    {
+      n.children[i] = set(n.children[i], shift - SHIFT, row, cells, rowVersion, edit);
+    }
+    n.maxVersion = Math.max(n.maxVersion, rowVersion);
+    return n;
+  }
+
+  /**
+   * Returns the icons of a row.
+   * @param row y-coordinate of the row
+   * @return the icons, or null if the row is empty
+   */
+  private IGameIcon[] getRow(int row)
+  {
+    Node n = root;
+    for (int shift = rootShift; n != null && shift > 0; shift -= SHIFT)
+    {
+      n = n.children[(row >>> shift) & MASK];
+    }
+    return n == null ? null : n.rows[row & MASK];
+  }
+
+  /**
+   * Returns the first row of a subtree modified in or after the given
+   * version.
+   * @param n root of the subtree, or null
+   * @param shift shift of a row's y-coordinate for the node's children
+   * @param base y-coordinate of the subtree's first row
+   * @param since the version, at least 0
+   * @return the y-coordinate of the row, or -1 if there is none
+   */
+  private static int firstSince(Node n, int shift, int base, long since)
+  {
+    if (n == null || n.maxVersion < since)
+    {
+      return -1;
+    }
+    for (int i = 0; i < BRANCH; ++i)
+    {
+      int row = shift == 0 ? (n.rowVersions[i] >= since ? base + i : -1)
+          : firstSince(n.children[i], shift - SHIFT, base + (i << shift), since);
+      if (row >= 0)
+      {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the last row of a subtree modified in or after the given
+   * version.
+   * @param n root of the subtree, or null
+   * @param shift shift of a row's y-coordinate for the node's children
+   * @param base y-coordinate of the subtree's first row
+   * @param since the version, at least 0
+   * @return the y-coordinate of the row, or -1 if there is none
+   */
+  private static int lastSince(Node n, int shift, int base, long since)
+  {
+    if (n == null || n.maxVersion < since)
+    {
+      return -1;
+    }
+    for (int i = BRANCH - 1; i >= 0; --i)
+    {
+      int row = shift == 0 ? (n.rowVersions[i] >= since ? base + i : -1)
+          : lastSince(n.children[i], shift - SHIFT, base + (i << shift), since);
+      if (row >= 0)
+      {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the given copy of a polyomino if it is equal to the given
+   * polyomino, and otherwise a new copy.
+   * @param copy a copy from an earlier snapshot, or null
+   * @param p the polyomino to copy
+   * @return a copy of p
+   */
+  private static IPolyomino reuse(IPolyomino copy, IPolyomino p)
+  {
+    if (copy != null && copy.equals(p))
+    {
+      return copy;
+    }
+    return (IPolyomino) p.clone();
+  }
+
+  /**
+   * Returns the sequence number of this snapshot.  Later snapshots of
+   * the same game have larger sequence numbers.
+   * @return the sequence number
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+
+  /**
+   * Determines whether the given row of the grid is shared with the
+   * given snapshot, which means it is the same in both.  Rows that are
+   * not shared may still happen to be equal.
+   * @param other another snapshot of the same game
+   * @param row y-coordinate of the row
+   * @return true if the row is shared
+   */
+  public boolean isSameRow(GameSnapshot other, int row)
+  {
+    return other != null && getRow(row) == other.getRow(row);
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  @Override
+  public GameStatus step()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  @Override
+  public boolean transform()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  @Override
+  public void cycle()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  @Override
+  public boolean shiftLeft()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  @Override
+  public boolean shiftRight()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int dropDistance()
+  {
+    if (current == null)
+    {
+      throw new IllegalStateException();
+    }
+    return dropDistance;
+  }
+
+  /**
+   * Throws UnsupportedOperationException.
+   */
+  @Override
+  public int hardDrop()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Throws UnsupportedOperationException, since a snapshot never 
+   * changes.
+   */
+  @Override
+  public void addGameListener(IGameListener listener)
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Does nothing, since no listener can have been added.
+   */
+  @Override
+  public void removeGameListener(IGameListener listener)
+  {
+  }
+
+  @Override
+  public IGameIcon getCell(int row, int col)
+  {
+    if (col < 0 || col >= width)
+    {
+      throw new ArrayIndexOutOfBoundsException(col);
+    }
+    if (row < 0 || row >= height)
+    {
+      throw new ArrayIndexOutOfBoundsException(row);
+    }
+    IGameIcon[] r = getRow(row);
+    return r == null ? null : r[col];
+  }
+
+  @Override
+  public long getGridVersion()
+  {
+    return gridVersion;
+  }
+
+  @Override
+  public int getFirstRowChangedSince(long since)
+  {
+    if (since < 0)
+    {
+      // every row counts as modified in version -1
+      return 0;
+    }
+    int row = firstSince(root, rootShift, 0, since);
+    return row < 0 ? height : row;
+  }
+
+  @Override
+  public int getLastRowChangedSince(long since)
+  {
+    if (since < 0)
+    {
+      return height - 1;
+    }
+    return lastSince(root, rootShift, 0, since);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, int[] buffer, int offset)
+  {
+    checkRows(firstRow, lastRow);
+    for (int row = firstRow; row <= lastRow; ++row)
+    {
+      IGameIcon[] r = getRow(row);
+      for (int col = 0; col < width; ++col)
+      {
+        buffer[offset + col] = r == null ? 0 : code(r[col]);
+      }
+      offset += width;
+    }
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, ByteBuffer buffer)
+  {
+    checkRows(firstRow, lastRow);
+    for (int row = firstRow; row <= lastRow; ++row)
+    {
+      IGameIcon[] r = getRow(row);
+      for (int col = 0; col < width; ++col)
+      {
+        buffer.putInt(r == null ? 0 : code(r[col]));
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the current polyomino.
+   */
+  @Override
+  public IPolyomino getCurrent()
+  {
+    if (current == null)
+    {
+      throw new IllegalStateException();
+    }
+    return (IPolyomino) current.clone();
+  }
+
+  /**
+   * Returns a copy of the upcoming polyomino.
+   */
+  @Override
+  public IPolyomino getPreview(int n)
+  {
+    if (previews.length == 0)
+    {
+      throw new UnsupportedOperationException("no preview");
+    }
+    if (n < 0 || n >= previews.length)
+    {
+      throw new IllegalArgumentException("n " + n);
+    }
+    return (IPolyomino) previews[n].clone();
+  }
+
+  @Override
+  public int getPreviewDepth()
+  {
+    return previews.length;
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return width;
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return height;
+  }
+
+  @Override
+  public Point[] getCellsToCollapse()
+  {
+    if (cellsToCollapse == null)
+    {
+      throw new IllegalStateException();
+    }
+    Point[] ret = new Point[cellsToCollapse.length];
+    for (int i = 0; i < ret.length; ++i)
+    {
+      ret[i] = new Point(cellsToCollapse[i]);
+    }
+    return ret;
+  }
+
+  @Override
+  public int getScore()
+  {
+    return score;
+  }
+
+  @Override
+  public boolean gameOver()
+  {
+    return gameOver;
+  }
+
+  /**
+   * Checks that the given rows are a valid range of rows of the grid.
+   * An empty range, with the last row above the first, is always valid.
+   * @param firstRow y-coordinate of the first row
+   * @param lastRow y-coordinate of the last row
+   * @throws ArrayIndexOutOfBoundsException if the range is not empty
+   *   and either row is invalid
+   */
+  private void checkRows(int firstRow, int lastRow)
+  {
+    if (lastRow < firstRow)
+    {
+      return;
+    }
+    if (firstRow < 0)
+    {
+      throw new ArrayIndexOutOfBoundsException(firstRow);
+    }
+    if (lastRow >= height)
+    {
+      throw new ArrayIndexOutOfBoundsException(lastRow);
+    }
+  }
+
+  /**
+   * Returns the export code for the given icon, as described for
+   * IGame.exportRows().
+   * @param icon an icon, possibly null
+   * @return the code for the icon
+   */
+  private static int code(IGameIcon icon)
+  {
+    if (icon == null)
+    {
+      return 0;
+    }
+    int code = IGame.CELL_OCCUPIED | (icon.getColorHint().getRGB() & 0xffffff);
+    return icon.isMagic() ? code | IGame.CELL_MAGIC : code;
+  }
+
+  /**
+   * Node of the tree of rows.  A leaf holds up to BRANCH consecutive
+   * rows, and any other node holds up to BRANCH subtrees of
+   * consecutive rows; a missing subtree has only empty rows that have
+   * not been modified since the first snapshot.
+   */
+  private static final class Node
+  {
+    /**
+     * Token of the constructor that made this node, which may modify
+     * it until it returns.
+     */
+    private final Object edit;
+
+    /**
+     * Subtrees, or null if this is a leaf.
+     */
+    private final Node[] children;
+
+    /**
+     * Icons of the rows, each null if the row is empty, or null if
+     * this is not a leaf.
+     */
+    private final IGameIcon[][] rows;
+
+    /**
+     * For each row, the last version of the grid in which it was
+     * modified, or -1 if it has not been modified since the first
+     * snapshot; null if this is not a leaf.
+     */
+    private final long[] rowVersions;
+
+    /**
+     * Largest row version in this subtree.
+     */
+    private long maxVersion = -1;
+
+    /**
+     * Constructs an empty node.
+     * @param edit token of the constructor making the node
+     * @param leaf true for a leaf
+     */
+    private Node(Object edit, boolean leaf)
+    {
+      this.edit = edit;
+      children = leaf ? null : new Node[BRANCH];
+      rows = leaf ? new IGameIcon[BRANCH][] : null;
+      rowVersions = leaf ? new long[BRANCH] : null;
+      if (leaf)
+      {
+        Arrays.fill(rowVersions, -1);
+      }
+    }
+
+    /**
+     * Constructs a copy of a node.
+     * @param edit token of the constructor making the node
+     * @param other the node to copy
+     */
+    private Node(Object edit, Node other)
+    {
+      this.edit = edit;
+      children = other.children == null ? null : other.children.clone();
+      rows = other.rows == null ? null : other.rows.clone();
+      rowVersions = other.rowVersions == null ? null : other.rowVersions.clone();
+      maxVersion = other.maxVersion;
+    }
+  }
+}
@@ -0,0 +1,308 @@
+package impl;
+
+/**
+ * Bounded record of the changes made by the calls to a game, so that
+ * they can be undone, used by AbstractBlockGame.  Each call makes an
+ * entry, a sequence of records that each hold a few ints and at most
+ * one reference per int.  A record ends with a trailer giving its type
+ * and length, so that the records of an entry can be read backwards.
+ * <p>
+ * The records are kept in a ring.  When it is full, or when there are
+ * as many entries as the capacity given, the oldest entries are
+ * forgotten, so the memory used does not depend on how long the game
+ * runs.  An entry that grows past half the ring makes the ring grow,
+ * so the newest call can always be undone, and the ring is never more
+ * than about four times as large as the largest entry or the size it
+ * started at.
+ * <p>
+ * Calls that were undone are kept as a stack of operation codes so
+ * that they can be redone.
+ */
+final class History
+{
+  /**
+   * Type of the record that starts every entry.
+   */
+  static final int HEADER = 0;
+
+  /**
+   * Type of a record of a cell that was set.
+   */
+  static final int CELL = 1;
+
+  /**
+   * Type of a record of rows that were deleted.
+   */
+  static final int ROWS = 2;
+
+  /**
+   * Type of a record of the state of the subclass of the game.
+   */
+  static final int EXTRA = 3;
+
+  /**
+   * Type of a record of the state of the generator.
+   */
+  static final int GENERATOR = 4;
+
+  /**
+   * Number of ints in the ring for each entry allowed.
+   */
+  private static final int INTS_PER_ENTRY = 32;
+
+  /**
+   * Ints of the records.
+   */
+  private int[] data;
+
+  /**
+   * References of the records, parallel to data.
+   */
+  private Object[] refs;
+
+  /**
+   * Position in the ring of the start of each entry kept, indexed by
+   * entry number modulo the number of entries allowed.
+   */
+  private final long[] starts;
+
+  /**
+   * Position at which the next int is written.  Positions increase
+   * forever; index <code>pos % data.length</code> holds position pos.
+   */
+  private long head;
+
+  /**
+   * Number of the oldest entry kept.
+   */
+  private long first;
+
+  /**
+   * Number of the next entry.
+   */
+  private long next;
+
+  /**
+   * Position of the start of the record being written.
+   */
+  private long recordStart;
+
+  /**
+   * Operation codes of the calls that were undone, the most recent
+   * last.
+   */
+  private final int[] redo;
+
+  /**
+   * Number of calls that can be redone.
+   */
+  private int redoCount;
+
+  /**
+   * Constructs an empty history.
+   * @param capacity largest number of entries to keep
+   */
+  History(int capacity)
+  {
+    int size = Math.max(capacity * INTS_PER_ENTRY, 1024);
+    data = new int[size];
+    refs = new Object[size];
+    starts = new long[capacity];
+    redo = new int[capacity];
+  }
+
+  /**
+   * Returns the number of entries that can be undone.
+   * @return the number of entries kept
+   */
+  int getSize()
+  {
+    return (int) (next - first);
+  }
+
+  /**
+   * Returns the number of calls that can be redone.
+   * @return the number of calls undone
+   */
+  int getRedoCount()
+  {
+    return redoCount;
+  }
+
+  /**
+   * Starts a new entry.  The header record should be written next.
+   */
+  void begin()
+  {
+    if (next - first == starts.length)
+    {
+      first += 1;
+    }
+    starts[(int) (next % starts.length)] = head;
+    next += 1;
+    recordStart = head;
+  }
+
+  /**
+   * Adds an int to the record being written.
+   * @param value the int
+   */
+  void add(int value)
+  {
+    add(value, null);
+  }
+
+  /**
+   * Adds an int and a reference to the record being written.
+   * @param value the int
+   * @param ref the reference, possibly null
+   */
+  void add(int value, Object ref)
+  {
+    makeRoom();
+    int i = (int) (head % data.length);
+    data[i] = value;
+    refs[i] = ref;
+    head += 1;
+  }
+
+  /**
+   * Ends the record being written.
+   * @param type the type of the record
+   */
+  void end(int type)
+  {
+    add(type | (int) (head - recordStart) << 4);
+    recordStart = head;
+  }
+
+  /**
+   * Returns the position just after the last record of the newest
+   * entry.
+   * @return the end position
+   */
+  long getEnd()
+  {
+    return head;
+  }
+
+  /**
+   * Returns the position of the start of the newest entry.
+   * @return the start position
+   */
+  long getStart()
+  {
+    return starts[(int) ((next - 1) % starts.length)];
+  }
+
+  /**
+   * Returns the int at the given position.
+   * @param pos a position of a kept entry
+   * @return the int
+   */
+  int get(long pos)
+  {
+    return data[(int) (pos % data.length)];
+  }
+
+  /**
+   * Returns the reference at the given position.
+   * @param pos a position of a kept entry
+   * @return the reference
+   */
+  Object getRef(long pos)
+  {
+    return refs[(int) (pos % data.length)];
+  }
+
+  /**
+   * Forgets the newest entry after it has been undone, and remembers
+   * its call so that it can be redone.
+   * @param op operation code of the call
+   */
+  void undone(int op)
+  {
+    next -= 1;
+    long end = head;
+    head = starts[(int) (next % starts.length)];
+    clear(head, end);
+    redo[redoCount] = op;
+    redoCount += 1;
+  }
+
+  /**
+   * Removes the most recently undone call from the redo stack.
+   * @return its operation code
+   */
+  int popRedo()
+  {
+    redoCount -= 1;
+    return redo[redoCount];
+  }
+
+  /**
+   * Forgets the calls that can be redone.
+   */
+  void clearRedo()
+  {
+    redoCount = 0;
+  }
+
+  /**
+   * Forgets everything.
+   */
+  void clear()
+  {
+    first = next;
+    redoCount = 0;
+    clear(head - data.length, head);
+    recordStart = head;
+  }
+
+  /**
+   * Makes room in the ring for one more int, growing the ring if the
+   * entry being written takes up half of it and otherwise forgetting
+   * the oldest entries if needed.
+   */
+  private void makeRoom()
+  {
+    if ((head - getStart()) * 2 >= data.length)
+    {
+      grow();
+    }
+    while (next - first > 1 && head - starts[(int) (first % starts.length)] >= data.length)
+    {
+      first += 1;
+    }
+  }
+
+  /**
+   * Doubles the size of the ring, keeping every entry in it.
+   */
+  private void grow()
+  {
+    int[] oldData = data;
+    Object[] oldRefs = refs;
+    data = new int[oldData.length * 2];
+    refs = new Object[data.length];
+    for (long pos = starts[(int) (first % starts.length)]; pos < head; ++pos)
+    {
+      data[(int) (pos % data.length)] = oldData[(int) (pos % oldData.length)];
+      refs[(int) (pos % data.length)] = oldRefs[(int) (pos % oldData.length)];
+    }
+  }
+
+  /**
+   * Clears the references between two positions, at most the length
+   * of the ring apart, so that they can be garbage collected.
+   * @param from first position
+   * @param to position after the last
+   */
+  private void clear(long from, long to)
+  {
+    for (long pos = Math.max(from, 0); pos < to; ++pos)
+    {
+      refs[(int) (pos % data.length)] = null;
+    }
+  }
+}
@@ -16,7 +16,7 @@ public class JTetromino extends Tetromino implements IPolyomino
 	/**
 	 * The color of the Tetromino.
 	 */
-	private static Color COLOR = Color.BLUE;
+	private static final Color COLOR = Color.BLUE;
 	
 	/**
 	 * Original position of cell[0]
@@ -29,11 +29,32 @@ public class JTetromino extends Tetromino implements IPolyomino
 	private Cell[] cells;
 	
 	/**
-	 * The orientation of the Tetromino. Starting orientation is "origin".
-	 * Other orientations are "ccw1" for counter-clockwise 1, "ccw2" for
-	 * counter-clockwise 2, and so on.
+	 * The rotation of the Tetromino, from 0 to 3. Starting rotation is 0,
+	 * and each transform() turns it to the next one.
 	 */
-	private String orientation;
+	private int rotation;
+	
+	/**
+	 * The amount each cell is offset from position in the X direction,
+	 * indexed by rotation and then by cell.
+	 */
+	static final int[][] OFFSET_X = {
+		{-1, -1, 0, 1},
+		{0, 1, 1, 1},
+		{1, 1, 0, -1},
+		{0, -1, -1, -1}
+	};
+	
+	/**
+	 * The amount each cell is offset from position in the Y direction,
+	 * indexed by rotation and then by cell.
+	 */
+	static final int[][] OFFSET_Y = {
+		{0, 1, 1, 1},
+		{1, 1, 0, -1},
+		{0, -1, -1, -1},
+		{-1, -1, 0, 1}
+	};
 	
 	public JTetromino(Point p, boolean magicState)
 	{
@@ -45,13 +66,56 @@ public class JTetromino extends Tetromino implements IPolyomino
 		cells[2] = new Cell(new Block(COLOR, false), new Point(position.x, position.y+1));
 		cells[3] = new Cell(new Block(COLOR, false), new Point(position.x+1, position.y+1));
 		
-		orientation = "origin";
+		rotation = 0;
 	}	
 
 	@Override
 	public Cell[] getCells() {
 		return cells;
 	}
+	
+	/**
+	 * Constructs a deep copy of the given JTetromino.
+	 * @param the JTetromino to copy.
+	 */
+	private JTetromino(JTetromino existing)
+	{
+		position = new Point(existing.position);
+		
+		cells = super.copy(existing.cells);
+		
+		rotation = existing.rotation;
+	}
+
+	@Override
+	public int getCellCount()
+	{
+		return cells.length;
+	}
+	
+	@Override
+	public int getCellX(int index)
+	{
+		return cells[index].getX();
+	}
+	
+	@Override
+	public int getCellY(int index)
+	{
+		return cells[index].getY();
+	}
+	
+	@Override
+	public int getTransformDeltaX(int index)
+	{
+		return OFFSET_X[(rotation+1) % 4][index] - OFFSET_X[rotation][index];
+	}
+	
+	@Override
+	public int getTransformDeltaY(int index)
+	{
+		return OFFSET_Y[(rotation+1) % 4][index] - OFFSET_Y[rotation][index];
+	}
 
 	@Override
 	public void shiftDown() 
@@ -63,6 +127,16 @@ public class JTetromino extends Tetromino implements IPolyomino
 	    }
 	}
 
+	@Override
+	public void shiftDown(int distance) 
+	{
+	    position.y += distance;
+	    for (int i = 0; i < cells.length; ++i)
+	    {
+	      cells[i].setY(cells[i].getY() + distance);
+	    }
+	}
+
 	@Override
 	public void shiftLeft()
 	{
@@ -84,52 +158,10 @@ public class JTetromino extends Tetromino implements IPolyomino
 	@Override
 	public void transform()
 	{
-		String orientation2 = null;
-			
-		if(orientation.equals("origin"))
-		{		
-			super.transform(cells, 0, 1, 1);
-			super.transform(cells, 1, 2, 0);
-			super.transform(cells, 2, 1, -1);
-			super.transform(cells, 3, 0, -2);
-				
-			orientation2 = "ccw1";
-		}
-			
-		if(orientation.equals("ccw1"))
-		{	
-			super.transform(cells, 0, 1, -1);
-			super.transform(cells, 1, 0, -2);
-			super.transform(cells, 2, -1, -1);
-			super.transform(cells, 3, -2, 0);
-				
-				orientation2 = "ccw2";
-		}
-			
-		if(orientation.equals("ccw2"))
-		{
-			super.transform(cells, 0, -1, -1);
-			super.transform(cells, 1, -2, 0);
-			super.transform(cells, 2, -1, 1);
-			super.transform(cells, 3, 0, 2);
-				
-			orientation2 = "ccw3";
-		}
-			
-		if(orientation.equals("ccw3"))
-		{
-			super.transform(cells, 0, -1, 1);
-			super.transform(cells, 1, 0, 2);
-			super.transform(cells, 2, 1, 1);
-			super.transform(cells, 3, 2, 0);
-			
-			orientation2 = "origin";
-		}
-			
-		orientation = orientation2;
+		rotation = (rotation+1) % 4;
+		super.place(cells, position, OFFSET_X[rotation], OFFSET_Y[rotation]);
 	}
 
-		
 	@Override
 	public void cycle() 
 	{
@@ -139,30 +171,42 @@ public class JTetromino extends Tetromino implements IPolyomino
 	@Override
 	public IPolyomino clone() 
 	{
-		IPolyomino clone = new JTetromino(position, false);
-		
-		if(orientation.equals("ccw1"))
-		{
-			clone.transform();
-		}
-		if(orientation.equals("ccw2"))
-		{
-			clone.transform();
-			clone.transform();
-		}
-		if(orientation.equals("ccw3"))
+		return new JTetromino(this);
+	}
+	
+	/**
+	 * Returns the color of the Tetromino, so that PackedPolyomino can make
+	 * the same blocks.
+	 * @return the color of the Tetromino.
+	 */
+	static Color getColor()
+	{
+		return COLOR;
+	}
+	
+	/**
+	 * Returns this Tetromino packed into a long, as described in PackedPolyomino.
+	 * @return a long representing the Tetromino.
+	 */
+	public long pack()
+	{
+		return PackedPolyomino.pack(PackedPolyomino.J, rotation, position.x, position.y, PackedPolyomino.magicIndex(cells), false);
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(obj == null || obj.getClass() != this.getClass())
 		{
-			clone.transform();
-			clone.transform();
-			clone.transform();
+			return false;
 		}
 		
-		return clone;
+		return pack() == ((JTetromino) obj).pack();
 	}
 	
-	private boolean equals(IPolyomino other)
+	@Override
+	public int hashCode()
 	{
-		boolean b = super.equals(cells, other.getCells());
-		return b;
+		return PackedPolyomino.hash(pack());
 	}
 }
@@ -0,0 +1,490 @@
+package impl;
+
+import java.awt.Color;
+import java.awt.Point;
+
+import api.Cell;
+import api.IPolyomino;
+
+/**
+ * Immutable value type for a tetromino packed into a single long, so
+ * that search code can keep large numbers of pieces in primitive arrays
+ * and hash sets.  The bits of a packed value are
+ * <pre>
+ *   bits  0-2   shape (I, J, L, O, T or SZ)
+ *   bits  3-4   rotation, 0 to 3, as for the tetromino classes
+ *   bits  5-7   index of the magic cell plus one, or 0 if none
+ *   bit   8     set if the piece was created magic (only used by SZ,
+ *               whose transform() puts the magic block back on cell 0)
+ *   bits  9-31  x-coordinate of the piece position, signed
+ *   bits 32-63  y-coordinate of the piece position, signed
+ * </pre>
+ * Since the cell offsets and colours of each shape are fixed for each
+ * rotation, the packed value determines every cell and icon of the 
+ * piece.  The static methods work directly on packed values; instances
+ * wrap a packed value and can be used as keys in collections.  Where a
+ * live IPolyomino is needed, unpack() makes a tetromino of this
+ * package in the packed state, and pack() packs one back.
+ */
+public final class PackedPolyomino
+{
+  /**
+   * Shape of an ITetromino.
+   */
+  public static final int I = 0;
+
+  /**
+   * Shape of a JTetromino.
+   */
+  public static final int J = 1;
+
+  /**
+   * Shape of an LTetromino.
+   */
+  public static final int L = 2;
+
+  /**
+   * Shape of an OTetromino.
+   */
+  public static final int O = 3;
+
+  /**
+   * Shape of a TTetromino.
+   */
+  public static final int T = 4;
+
+  /**
+   * Shape of an SZTetromino.
+   */
+  public static final int SZ = 5;
+
+  /**
+   * Cell offsets in the x direction, indexed by shape, rotation and cell.
+   */
+  private static final int[][][] OFFSET_X = {
+    ITetromino.OFFSET_X, JTetromino.OFFSET_X, LTetromino.OFFSET_X,
+    OTetromino.OFFSET_X, TTetromino.OFFSET_X, SZTetromino.OFFSET_X
+  };
+
+  /**
+   * Cell offsets in the y direction, indexed by shape, rotation and cell.
+   */
+  private static final int[][][] OFFSET_Y = {
+    ITetromino.OFFSET_Y, JTetromino.OFFSET_Y, LTetromino.OFFSET_Y,
+    OTetromino.OFFSET_Y, TTetromino.OFFSET_Y, SZTetromino.OFFSET_Y
+  };
+
+  /**
+   * Colour of each shape; an SZTetromino in rotation 2 or 3 is red
+   * instead.
+   */
+  private static final Color[] COLORS = {
+    ITetromino.getColor(), JTetromino.getColor(), LTetromino.getColor(),
+    OTetromino.getColor(), TTetromino.getColor(), SZTetromino.getColor()
+  };
+
+  /**
+   * Bit set in a packed value for a piece created magic.
+   */
+  private static final long MAGIC_PIECE = 1L << 8;
+
+  /**
+   * The packed value.
+   */
+  private final long value;
+
+  /**
+   * Constructs an instance wrapping the given packed value.
+   * @param value a packed value
+   */
+  public PackedPolyomino(long value)
+  {
+    this.value = value;
+  }
+
+  /**
+   * Returns the packed value.
+   * @return the packed value
+   */
+  public long getValue()
+  {
+    return value;
+  }
+
+  /**
+   * Returns the cells of the piece, as the getCells() method of the
+   * corresponding tetromino would, for example so that it can be drawn.
+   * @return new array of cells
+   */
+  public Cell[] getCells()
+  {
+    return getCells(value);
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (obj == null || obj.getClass() != this.getClass())
+    {
+      return false;
+    }
+    return value == ((PackedPolyomino) obj).value;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash(value);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "PackedPolyomino[shape=" + getShape(value) + ",rotation="
+        + getRotation(value) + ",x=" + getX(value) + ",y=" + getY(value)
+        + ",magic=" + getMagicIndex(value) + "]";
+  }
+
+  /**
+   * Packs the given attributes of a piece into a long.
+   * @param shape one of I, J, L, O, T or SZ
+   * @param rotation rotation from 0 to 3
+   * @param x x-coordinate of the piece position
+   * @param y y-coordinate of the piece position
+   * @param magicIndex index of the magic cell, or -1 if none
+   * @param magicPiece true if the piece was created magic
+   * @return the packed value
+   * @throws IllegalArgumentException if x does not fit in 23 bits
+   */
+  public static long pack(int shape, int rotation, int x, int y,
+      int magicIndex, boolean magicPiece)
+  {
+    if (x < -(1 << 22) || x >= (1 << 22))
+    {
+      throw new IllegalArgumentException("x " + x);
+    }
+    return shape | (rotation << 3) | ((magicIndex + 1) << 5)
+        | (magicPiece ? MAGIC_PIECE : 0) | ((long) (x & 0x7fffff) << 9)
+        | ((long) y << 32);
+  }
+
+  /**
+   * Packs a tetromino of one of the classes of this package into a long.
+   * @param p a tetromino
+   * @return the packed value
+   * @throws IllegalArgumentException if p is not one of the tetromino
+   *   classes of this package
+   */
+  public static long pack(IPolyomino p)
+  {
+    if (p instanceof ITetromino)
+    {
+      return ((ITetromino) p).pack();
+    }
+    if (p instanceof JTetromino)
+    {
+      return ((JTetromino) p).pack();
+    }
+    if (p instanceof LTetromino)
+    {
+      return ((LTetromino) p).pack();
+    }
+    if (p instanceof OTetromino)
+    {
+      return ((OTetromino) p).pack();
+    }
+    if (p instanceof TTetromino)
+    {
+      return ((TTetromino) p).pack();
+    }
+    if (p instanceof SZTetromino)
+    {
+      return ((SZTetromino) p).pack();
+    }
+    throw new IllegalArgumentException("Cannot pack " + p.getClass().getName());
+  }
+
+  /**
+   * Determines whether pack() can pack the given polyomino.
+   * @param p a polyomino
+   * @return true if it is one of the tetrominoes of this package
+   */
+  static boolean canPack(IPolyomino p)
+  {
+    return p instanceof ITetromino || p instanceof JTetromino 
+        || p instanceof LTetromino || p instanceof OTetromino
+        || p instanceof TTetromino || p instanceof SZTetromino;
+  }
+
+  /**
+   * Returns a new tetromino in the state given by a packed value, so
+   * that its pack() method returns the same value.
+   * @param packed a packed value
+   * @return a new tetromino
+   * @throws IllegalArgumentException if the shape or the index of the
+   *   magic cell is out of range, as in a damaged saved state
+   */
+  public static IPolyomino unpack(long packed)
+  {
+    int shape = getShape(packed);
+    if (shape > SZ)
+    {
+      throw new IllegalArgumentException("shape " + shape);
+    }
+    int magicIndex = getMagicIndex(packed);
+    if (magicIndex >= getCellCount(packed))
+    {
+      // cycling could never move the magic block there
+      throw new IllegalArgumentException("magic index " + magicIndex);
+    }
+    Point position = new Point(getX(packed), getY(packed));
+    IPolyomino p;
+    switch (shape)
+    {
+      case I:
+        p = new ITetromino(position, magicIndex >= 0);
+        break;
+      case J:
+        p = new JTetromino(position, magicIndex >= 0);
+        break;
+      case L:
+        p = new LTetromino(position, magicIndex >= 0);
+        break;
+      case O:
+        p = new OTetromino(position, magicIndex >= 0);
+        break;
+      case T:
+        p = new TTetromino(position, magicIndex >= 0);
+        break;
+      default:
+        // SZ, the only shape left
+        p = new SZTetromino(position, (packed & MAGIC_PIECE) != 0);
+        break;
+    }
+
+    // the constructors put any magic block on cell 0; turn the piece
+    // first, since that may move the block back, and then cycle it
+    for (int i = getRotation(packed); i > 0; --i)
+    {
+      p.transform();
+    }
+    if (magicIndex >= 0)
+    {
+      while (magicIndex(p.getCells()) != magicIndex)
+      {
+        p.cycle();
+      }
+    }
+    return p;
+  }
+
+  /**
+   * Returns the shape of a packed piece.
+   * @param packed a packed value
+   * @return one of I, J, L, O, T or SZ
+   */
+  public static int getShape(long packed)
+  {
+    return (int) packed & 7;
+  }
+
+  /**
+   * Returns the rotation of a packed piece.
+   * @param packed a packed value
+   * @return rotation from 0 to 3
+   */
+  public static int getRotation(long packed)
+  {
+    return (int) (packed >>> 3) & 3;
+  }
+
+  /**
+   * Returns the index of the magic cell of a packed piece.
+   * @param packed a packed value
+   * @return index of the magic cell, or -1 if none
+   */
+  public static int getMagicIndex(long packed)
+  {
+    return ((int) (packed >>> 5) & 7) - 1;
+  }
+
+  /**
+   * Returns the x-coordinate of the position of a packed piece.
+   * @param packed a packed value
+   * @return the x-coordinate
+   */
+  public static int getX(long packed)
+  {
+    return (int) (packed << 32 >> 41);
+  }
+
+  /**
+   * Returns the y-coordinate of the position of a packed piece.
+   * @param packed a packed value
+   * @return the y-coordinate
+   */
+  public static int getY(long packed)
+  {
+    return (int) (packed >> 32);
+  }
+
+  /**
+   * Returns the number of cells of a packed piece.
+   * @param packed a packed value
+   * @return the number of cells
+   */
+  public static int getCellCount(long packed)
+  {
+    return OFFSET_X[getShape(packed)][0].length;
+  }
+
+  /**
+   * Returns the x-coordinate of a cell of a packed piece.
+   * @param packed a packed value
+   * @param index index of the cell
+   * @return the x-coordinate of the cell
+   */
+  public static int getCellX(long packed, int index)
+  {
+    return getX(packed) + OFFSET_X[getShape(packed)][getRotation(packed)][index];
+  }
+
+  /**
+   * Returns the y-coordinate of a cell of a packed piece.
+   * @param packed a packed value
+   * @param index index of the cell
+   * @return the y-coordinate of the cell
+   */
+  public static int getCellY(long packed, int index)
+  {
+    return getY(packed) + OFFSET_Y[getShape(packed)][getRotation(packed)][index];
+  }
+
+  /**
+   * Returns a packed piece moved by the given amounts.
+   * @param packed a packed value
+   * @param dx amount to add to the x-coordinate
+   * @param dy amount to add to the y-coordinate
+   * @return the moved packed value
+   */
+  public static long shift(long packed, int dx, int dy)
+  {
+    return pack(getShape(packed), getRotation(packed), getX(packed) + dx,
+        getY(packed) + dy, getMagicIndex(packed), (packed & MAGIC_PIECE) != 0);
+  }
+
+  /**
+   * Returns a packed piece after one transform(), as the transform()
+   * method of the corresponding tetromino would leave it.
+   * @param packed a packed value
+   * @return the transformed packed value
+   */
+  public static long transform(long packed)
+  {
+    int shape = getShape(packed);
+    int rotation = (getRotation(packed) + 1) % 4;
+    int magicIndex = getMagicIndex(packed);
+    boolean magicPiece = (packed & MAGIC_PIECE) != 0;
+    if (shape == SZ && (rotation == 2 || rotation == 0))
+    {
+      // the SZTetromino makes new blocks when it changes colour
+      magicIndex = magicPiece ? 0 : -1;
+    }
+    return pack(shape, rotation, getX(packed), getY(packed), magicIndex,
+        magicPiece);
+  }
+
+  /**
+   * Returns a packed piece after one cycle(), as the cycle() method
+   * of the corresponding tetromino would leave it: the magic block
+   * moves to the next cell, and a piece with no magic block gets one
+   * in cell 1.
+   * @param packed a packed value
+   * @return the cycled packed value
+   */
+  public static long cycle(long packed)
+  {
+    int magicIndex = Math.max(getMagicIndex(packed), 0);
+    return pack(getShape(packed), getRotation(packed), getX(packed),
+        getY(packed), (magicIndex + 1) % getCellCount(packed),
+        (packed & MAGIC_PIECE) != 0);
+  }
+
+  /**
+   * Returns new cells for a packed piece.
+   * @param packed a packed value
+   * @return new array of cells
+   */
+  public static Cell[] getCells(long packed)
+  {
+    int shape = getShape(packed);
+    int rotation = getRotation(packed);
+    Color color = COLORS[shape];
+    if (shape == SZ && rotation >= 2)
+    {
+      color = Color.RED;
+    }
+    int magicIndex = getMagicIndex(packed);
+    Cell[] cells = new Cell[getCellCount(packed)];
+    for (int i = 0; i < cells.length; ++i)
+    {
+      cells[i] = new Cell(new Block(color, i == magicIndex),
+          new Point(getCellX(packed, i), getCellY(packed, i)));
+    }
+    return cells;
+  }
+
+  /**
+   * Returns the colour used by the pieces of this package that has the
+   * given RGB value, so that blocks made from saved state match the
+   * blocks of new pieces, or a new colour if no piece uses it.
+   * @param rgb an RGB value
+   * @return a colour with that value
+   */
+  static Color color(int rgb)
+  {
+    for (int i = 0; i < COLORS.length; ++i)
+    {
+      if ((COLORS[i].getRGB() & 0xffffff) == rgb)
+      {
+        return COLORS[i];
+      }
+    }
+    if ((Color.RED.getRGB() & 0xffffff) == rgb)
+    {
+      return Color.RED;
+    }
+    return new Color(rgb);
+  }
+
+  /**
+   * Returns a well-mixed hash code for a packed value, suitable for
+   * open-addressing hash tables.
+   * @param packed a packed value
+   * @return hash code
+   */
+  public static int hash(long packed)
+  {
+    long h = packed * 0x9e3779b97f4a7c15L;
+    h ^= h >>> 32;
+    h *= 0xbf58476d1ce4e5b9L;
+    return (int) (h ^ (h >>> 29));
+  }
+
+  /**
+   * Returns the index of the magic cell among the given cells.
+   * @param cells cells of a piece
+   * @return index of the magic cell, or -1 if none
+   */
+  static int magicIndex(Cell[] cells)
+  {
+    for (int i = 0; i < cells.length; ++i)
+    {
+      if (cells[i].getIcon().isMagic())
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
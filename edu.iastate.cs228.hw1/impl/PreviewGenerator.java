@@ -0,0 +1,375 @@
+package impl;
+
+import java.nio.ByteBuffer;
+
+import api.IPolyomino;
+import api.IPolyominoGenerator;
+import api.IPreviewGenerator;
+
+/**
+ * An IPreviewGenerator that keeps the upcoming pieces of another
+ * generator in a ring buffer.  The buffer holds at least the lookahead
+ * depth plus one pieces between refills, and is refilled a batch at a
+ * time, so most calls to getNext() just take a piece out of the buffer.
+ * The pieces are returned in exactly the order the other generator
+ * creates them.  Since they are created ahead of time, a generator
+ * with a lookahead depth of a few hundred is still cheap to use.
+ * <p>
+ * The buffer can optionally be refilled by a background thread, in 
+ * which case getNext() only waits if the thread has fallen a whole
+ * batch behind.  The other generator is then only used on that thread,
+ * so it does not need to be thread-safe, but the background thread
+ * should be stopped with close() when the generator is no longer
+ * needed.
+ */
+public class PreviewGenerator implements IPreviewGenerator
+{
+  /**
+   * Generator creating the pieces.
+   */
+  private final IPolyominoGenerator source;
+
+  /**
+   * Number of upcoming pieces that can be seen with peek().
+   */
+  private final int depth;
+
+  /**
+   * Number of pieces added at each refill.
+   */
+  private final int batch;
+
+  /**
+   * Upcoming pieces; the next piece is at index head.
+   */
+  private final IPolyomino[] buffer;
+
+  /**
+   * Index in buffer of the next piece.
+   */
+  private int head;
+
+  /**
+   * Number of pieces in buffer.
+   */
+  private int count;
+
+  /**
+   * Thread refilling the buffer, or null if it is refilled by 
+   * getNext() and peek() themselves.
+   */
+  private Thread filler;
+
+  /**
+   * Lock held while using the source generator.
+   */
+  private final Object sourceLock = new Object();
+
+  /**
+   * Pieces created by the background thread and not yet added to the
+   * buffer; guarded by sourceLock.
+   */
+  private IPolyomino[] created;
+
+  /**
+   * Number of pieces in created; guarded by sourceLock.
+   */
+  private int inFlight;
+
+  /**
+   * Value of epoch when the pieces in created were taken from the
+   * source; guarded by sourceLock.
+   */
+  private long inFlightEpoch;
+
+  /**
+   * Incremented by readState(), so that the background thread can tell
+   * that pieces it created before then must be discarded; guarded by
+   * sourceLock.
+   */
+  private long epoch;
+
+  /**
+   * Constructs a PreviewGenerator with the given depth that refills 
+   * its buffer without a background thread.
+   * @param source generator creating the pieces
+   * @param depth number of upcoming pieces that can be seen with peek()
+   * @throws IllegalArgumentException if depth is negative
+   */
+  public PreviewGenerator(IPolyominoGenerator source, int depth)
+  {
+    this(source, depth, false);
+  }
+
+  /**
+   * Constructs a PreviewGenerator with the given depth.
+   * @param source generator creating the pieces
+   * @param depth number of upcoming pieces that can be seen with peek()
+   * @param background true if the buffer should be refilled by a 
+   *   background thread
+   * @throws IllegalArgumentException if depth is negative
+   */
+  public PreviewGenerator(IPolyominoGenerator source, int depth, boolean background)
+  {
+    if (depth < 0)
+    {
+      throw new IllegalArgumentException("depth " + depth);
+    }
+    this.source = source;
+    this.depth = depth;
+    batch = Math.max(depth, 16);
+    buffer = new IPolyomino[depth + 1 + batch];
+    if (background)
+    {
+      created = new IPolyomino[buffer.length];
+      filler = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          fillInBackground();
+        }
+      }, "PreviewGenerator");
+      filler.setDaemon(true);
+      filler.start();
+    }
+  }
+
+  @Override
+  public synchronized IPolyomino getNext()
+  {
+    await(filler == null ? depth + 1 : 1);
+    IPolyomino next = buffer[head];
+    buffer[head] = null;
+    head = (head + 1) % buffer.length;
+    count -= 1;
+    if (filler != null && count <= depth)
+    {
+      notifyAll();
+    }
+    return next;
+  }
+
+  @Override
+  public synchronized IPolyomino peek(int n)
+  {
+    if (n < 0 || n >= depth)
+    {
+      throw new IllegalArgumentException("n " + n);
+    }
+    await(n + 1);
+    return buffer[(head + n) % buffer.length];
+  }
+
+  @Override
+  public int getDepth()
+  {
+    return depth;
+  }
+
+  /**
+   * Returns a PreviewGenerator of the same depth, refilled in the 
+   * same way, whose pieces come from a generator split from this 
+   * one's source generator.  The source generator is only split
+   * after the pieces already in the buffer have been created.
+   * @throws UnsupportedOperationException if the source generator
+   *   cannot be split
+   */
+  @Override
+  public IPolyominoGenerator split()
+  {
+    IPolyominoGenerator child;
+    synchronized (sourceLock)
+    {
+      child = source.split();
+    }
+    return new PreviewGenerator(child, depth, filler != null);
+  }
+
+  /**
+   * Writes the upcoming pieces, followed by the state of the source 
+   * generator.  The pieces must be tetrominoes of the classes in this
+   * package, which are written in the form given by PackedPolyomino.
+   * @throws UnsupportedOperationException if the state of the source
+   *   generator cannot be saved
+   */
+  @Override
+  public synchronized void writeState(ByteBuffer buffer)
+  {
+    synchronized (sourceLock)
+    {
+      // pieces the background thread is about to add come after the
+      // ones in the buffer, and have already been taken from the source,
+      // unless readState() has replaced the buffer since and they will
+      // be discarded
+      int added = inFlightEpoch == epoch ? inFlight : 0;
+      buffer.putInt(count + added);
+      for (int i = 0; i < count; ++i)
+      {
+        buffer.putLong(PackedPolyomino.pack(this.buffer[(head + i) % this.buffer.length]));
+      }
+      for (int i = 0; i < added; ++i)
+      {
+        buffer.putLong(PackedPolyomino.pack(created[i]));
+      }
+      source.writeState(buffer);
+    }
+  }
+
+  /**
+   * Puts the upcoming pieces and the source generator in the state 
+   * written by writeState().  If the pieces are not valid or the 
+   * source generator cannot be restored, the upcoming pieces are left
+   * as they were.
+   * @throws UnsupportedOperationException if the state of the source
+   *   generator cannot be restored
+   */
+  @Override
+  public synchronized void readState(ByteBuffer buffer)
+  {
+    synchronized (sourceLock)
+    {
+      int n = buffer.getInt();
+      if (n < 0 || n > this.buffer.length)
+      {
+        throw new IllegalArgumentException("count " + n);
+      }
+      IPolyomino[] pieces = new IPolyomino[n];
+      for (int i = 0; i < n; ++i)
+      {
+        pieces[i] = PackedPolyomino.unpack(buffer.getLong());
+      }
+      source.readState(buffer);
+      for (int i = 0; i < this.buffer.length; ++i)
+      {
+        this.buffer[i] = i < n ? pieces[i] : null;
+      }
+      head = 0;
+      count = n;
+      epoch += 1;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Stops the background thread, if any.  After this method is called,
+   * this generator must not be used.
+   */
+  public synchronized void close()
+  {
+    if (filler != null)
+    {
+      filler.interrupt();
+      filler = null;
+    }
+  }
+
+  /**
+   * Waits until the buffer holds at least the given number of pieces,
+   * refilling it directly if there is no background thread.
+   */
+  private void await(int needed)
+  {
+    if (count >= needed)
+    {
+      return;
+    }
+    if (filler == null)
+    {
+      synchronized (sourceLock)
+      {
+        int n = buffer.length - count;
+        for (int i = 0; i < n; ++i)
+        {
+          buffer[(head + count) % buffer.length] = source.getNext();
+          count += 1;
+        }
+      }
+      return;
+    }
+    boolean interrupted = false;
+    while (count < needed)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Body of the background thread: whenever the buffer has room for a 
+   * batch, creates the pieces outside the lock and then adds them.
+   */
+  private void fillInBackground()
+  {
+    try
+    {
+      while (true)
+      {
+        int n;
+        long createdEpoch;
+        synchronized (this)
+        {
+          while (count > depth)
+          {
+            wait();
+          }
+          // within an epoch only getNext() changes count, and only
+          // lowers it, so the n pieces still fit when they are added
+          synchronized (sourceLock)
+          {
+            n = buffer.length - count;
+            createdEpoch = epoch;
+          }
+        }
+        synchronized (sourceLock)
+        {
+          if (createdEpoch != epoch)
+          {
+            // readState() replaced the buffer and the source since n
+            // was computed
+            continue;
+          }
+          for (int i = 0; i < n; ++i)
+          {
+            created[i] = source.getNext();
+          }
+          inFlight = n;
+          inFlightEpoch = epoch;
+        }
+        synchronized (this)
+        {
+          synchronized (sourceLock)
+          {
+            // unless readState() has replaced the buffer meanwhile, 
+            // the created pieces come next
+            boolean current = createdEpoch == epoch;
+            for (int i = 0; i < n; ++i)
+            {
+              if (current)
+              {
+                buffer[(head + count) % buffer.length] = created[i];
+                count += 1;
+              }
+              created[i] = null;
+            }
+            inFlight = 0;
+          }
+          notifyAll();
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // closed
+    }
+  }
+}
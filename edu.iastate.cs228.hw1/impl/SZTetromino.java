@@ -16,7 +16,18 @@ public class SZTetromino extends Tetromino implements IPolyomino
 	/**
 	 * The color of the Tetromino. The color changes to red on special transforms.
 	 */
-	private static Color COLOR = Color.GREEN;
+	private static final Color COLOR = Color.GREEN;
+	
+	/**
+	 * The plain and magic blocks of the green STetromino, shared by every
+	 * SZTetromino so that transform() does not create new ones.
+	 */
+	private static final Block[] GREEN_BLOCKS = {new Block(Color.GREEN, false), new Block(Color.GREEN, true)};
+	
+	/**
+	 * The plain and magic blocks of the red ZTetromino.
+	 */
+	private static final Block[] RED_BLOCKS = {new Block(Color.RED, false), new Block(Color.RED, true)};
 	
 	/**
 	 * Original position of cell[0]
@@ -29,11 +40,32 @@ public class SZTetromino extends Tetromino implements IPolyomino
 	private Cell[] cells;
 	
 	/**
-	 * The orientation of the Tetromino. Starting orientation is "origin".
-	 * Other orientations are "ccw1" for counter-clockwise 1, "ccw2" for
-	 * counter-clockwise 2, and so on.
+	 * The rotation of the Tetromino, from 0 to 3. Starting rotation is 0,
+	 * and each transform() turns it to the next one.
+	 */
+	private int rotation;
+	
+	/**
+	 * The amount each cell is offset from position in the X direction,
+	 * indexed by rotation and then by cell.
+	 */
+	static final int[][] OFFSET_X = {
+		{0, 0, 1, 1},
+		{0, -1, -1, -2},
+		{1, 1, 0, 0},
+		{0, 1, 1, 2}
+	};
+	
+	/**
+	 * The amount each cell is offset from position in the Y direction,
+	 * indexed by rotation and then by cell.
 	 */
-	private String orientation;
+	static final int[][] OFFSET_Y = {
+		{0, 1, 1, 2},
+		{0, 0, 1, 1},
+		{0, 1, 1, 2},
+		{-1, -1, 0, 0}
+	};
 	
 	/**
 	 * A boolean representing the magic state of the Tetromino.
@@ -52,7 +84,22 @@ public class SZTetromino extends Tetromino implements IPolyomino
 		cells[2] = new Cell(new Block(COLOR, false), new Point(position.x+1, position.y+1));
 		cells[3] = new Cell(new Block(COLOR, false), new Point(position.x+1, position.y+2));
 		
-		orientation = "origin";
+		rotation = 0;
+	}
+	
+	/**
+	 * Constructs a deep copy of the given SZTetromino.
+	 * @param the SZTetromino to copy.
+	 */
+	private SZTetromino(SZTetromino existing)
+	{
+		position = new Point(existing.position);
+		
+		magic = existing.magic;
+		
+		cells = super.copy(existing.cells);
+		
+		rotation = existing.rotation;
 	}
 	
 	@Override
@@ -60,6 +107,36 @@ public class SZTetromino extends Tetromino implements IPolyomino
 		return cells;
 	}
 
+	@Override
+	public int getCellCount()
+	{
+		return cells.length;
+	}
+	
+	@Override
+	public int getCellX(int index)
+	{
+		return cells[index].getX();
+	}
+	
+	@Override
+	public int getCellY(int index)
+	{
+		return cells[index].getY();
+	}
+	
+	@Override
+	public int getTransformDeltaX(int index)
+	{
+		return OFFSET_X[(rotation+1) % 4][index] - OFFSET_X[rotation][index];
+	}
+	
+	@Override
+	public int getTransformDeltaY(int index)
+	{
+		return OFFSET_Y[(rotation+1) % 4][index] - OFFSET_Y[rotation][index];
+	}
+
 	@Override
 	public void shiftDown() 
 	{
@@ -70,6 +147,16 @@ public class SZTetromino extends Tetromino implements IPolyomino
 	    }
 	}
 
+	@Override
+	public void shiftDown(int distance) 
+	{
+	    position.y += distance;
+	    for (int i = 0; i < cells.length; ++i)
+	    {
+	      cells[i].setY(cells[i].getY() + distance);
+	    }
+	}
+
 	@Override
 	public void shiftLeft()
 	{
@@ -91,60 +178,19 @@ public class SZTetromino extends Tetromino implements IPolyomino
 	@Override
 	public void transform()
 	{
-		String orientation2 = null;
-		
-		if(orientation.equals("origin"))
-		{		
-			super.transform(cells, 1, -1, -1);
-			super.transform(cells, 2, -2, 0);
-			super.transform(cells, 3, -3, -1);
-			
-			orientation2 = "ccw1";
-		}
+		rotation = (rotation+1) % 4;
+		super.place(cells, position, OFFSET_X[rotation], OFFSET_Y[rotation]);
 		
-		// Changes the green STetromino into a red ZTetromino.
-		if(orientation.equals("ccw1"))
-		{	
-			Point p0 = new Point(cells[0].getX(), cells[0].getY());
-			Point p1 = new Point(cells[1].getX(), cells[1].getY());
-			Point p2 = new Point(cells[2].getX(), cells[2].getY());
-			Point p3 = new Point(cells[3].getX(), cells[3].getY());
-			
-			cells[0] = new Cell(new Block(Color.RED, magic), new Point(p0.x+1, p0.y));
-			cells[1] = new Cell(new Block(Color.RED, false), new Point(p1.x+2, p1.y+1));
-			cells[2] = new Cell(new Block(Color.RED, false), new Point(p2.x+1, p2.y));
-			cells[3] = new Cell(new Block(Color.RED, false), new Point(p3.x+2, p3.y+1));
-			
-			orientation2 = "ccw2";
-		}
-		
-		if(orientation.equals("ccw2"))
-		{
-			super.transform(cells, 0, -1, -1);
-			super.transform(cells, 1, 0, -2);
-			super.transform(cells, 2, 1, -1);
-			super.transform(cells, 3, 2, -2);
-			
-			orientation2 = "ccw3";
-		}
-		
-		// Changes the red ZTetromino into a green STetromino.
-		if(orientation.equals("ccw3"))
+		// Changes the green STetromino into a red ZTetromino and back again.
+		if(rotation == 2 || rotation == 0)
 		{
-			Point p0 = new Point(cells[0].getX(), cells[0].getY());
-			Point p1 = new Point(cells[1].getX(), cells[1].getY());
-			Point p2 = new Point(cells[2].getX(), cells[2].getY());
-			Point p3 = new Point(cells[3].getX(), cells[3].getY());
+			Block[] blocks = (rotation == 2) ? RED_BLOCKS : GREEN_BLOCKS;
 			
-			cells[0] = new Cell(new Block(Color.GREEN, magic), new Point(p0.x, p0.y+1));
-			cells[1] = new Cell(new Block(Color.GREEN, false), new Point(p1.x-1, p1.y+2));
-			cells[2] = new Cell(new Block(Color.GREEN, false), new Point(p2.x, p2.y+1));
-			cells[3] = new Cell(new Block(Color.GREEN, false), new Point(p3.x-1, p3.y+2));
-			
-			orientation2 = "origin";
+			for(int i = 0; i <= cells.length-1; i++)
+			{
+				cells[i].setIcon((i == 0 && magic) ? blocks[1] : blocks[0]);
+			}
 		}
-		
-		orientation = orientation2;
 	}
 
 	@Override
@@ -156,30 +202,42 @@ public class SZTetromino extends Tetromino implements IPolyomino
 	@Override
 	public IPolyomino clone() 
 	{
-		IPolyomino clone = new SZTetromino(position, false);
-		
-		if(orientation.equals("ccw1"))
-		{
-			clone.transform();
-		}
-		if(orientation.equals("ccw2"))
-		{
-			clone.transform();
-			clone.transform();
-		}
-		if(orientation.equals("ccw3"))
+		return new SZTetromino(this);
+	}
+	
+	/**
+	 * Returns the color of the Tetromino, so that PackedPolyomino can make
+	 * the same blocks.
+	 * @return the color of the Tetromino.
+	 */
+	static Color getColor()
+	{
+		return COLOR;
+	}
+	
+	/**
+	 * Returns this Tetromino packed into a long, as described in PackedPolyomino.
+	 * @return a long representing the Tetromino.
+	 */
+	public long pack()
+	{
+		return PackedPolyomino.pack(PackedPolyomino.SZ, rotation, position.x, position.y, PackedPolyomino.magicIndex(cells), magic);
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(obj == null || obj.getClass() != this.getClass())
 		{
-			clone.transform();
-			clone.transform();
-			clone.transform();
+			return false;
 		}
 		
-		return clone;
+		return pack() == ((SZTetromino) obj).pack();
 	}
 	
-	private boolean equals(IPolyomino other)
+	@Override
+	public int hashCode()
 	{
-		boolean b = super.equals(cells, other.getCells());
-		return b;
+		return PackedPolyomino.hash(pack());
 	}
 }
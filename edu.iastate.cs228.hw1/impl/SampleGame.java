@@ -1,6 +1,7 @@
 package impl;
 
 import java.awt.Point;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -81,6 +82,18 @@ public class SampleGame extends AbstractBlockGame
   		return scoreCount;
   	}
   
+  	@Override
+  	protected void writeExtraState(ByteBuffer buffer)
+  	{
+  		buffer.putInt(scoreCount);
+  	}
+  
+  	@Override
+  	protected void readExtraState(ByteBuffer buffer)
+  	{
+  		scoreCount = buffer.getInt();
+  	}
+  
   	private List<Point> determineCellsToCollapseGravity(int magicRow) 
 	{
 		List<Point> cellsToCollapse2 = new ArrayList<Point>();
@@ -2,7 +2,7 @@
 package impl;
 
 import java.awt.Point;
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 import api.IPolyomino;
 import api.IPolyominoGenerator;
@@ -12,6 +12,57 @@ import api.IPolyominoGenerator;
  */
 public class SampleGenerator implements IPolyominoGenerator
 {
+  /**
+   * Source of the random choices.
+   */
+  private SplitMix random;
+  
+  /**
+   * Constructs a SampleGenerator.
+   */
+  public SampleGenerator()
+  {
+    this(SplitMix.create());
+  }
+  
+  /**
+   * Constructs a SampleGenerator whose choices are determined by the 
+   * given seed.
+   * @param seed the seed
+   */
+  public SampleGenerator(long seed)
+  {
+    this(new SplitMix(seed));
+  }
+  
+  /**
+   * Constructs a SampleGenerator using the given source of random choices.
+   */
+  private SampleGenerator(SplitMix random)
+  {
+    this.random = random;
+  }
+  
+  @Override
+  public IPolyominoGenerator split()
+  {
+    return new SampleGenerator(random.split());
+  }
+  
+  @Override
+  public void writeState(ByteBuffer buffer)
+  {
+    buffer.putLong(random.getSeed());
+    buffer.putLong(random.getGamma());
+  }
+  
+  @Override
+  public void readState(ByteBuffer buffer)
+  {
+    long seed = buffer.getLong();
+    random.setState(seed, buffer.getLong());
+  }
+  
   @Override
   public IPolyomino getNext()
   {
@@ -21,8 +72,7 @@ public class SampleGenerator implements IPolyominoGenerator
   public boolean magicChance()
   {
 	  boolean chance;
-	  Random r = new Random();
-	  int value = r.nextInt(9);
+	  int value = random.nextInt(9);
 	  
 	  if(value == 0)
 		  chance = true;
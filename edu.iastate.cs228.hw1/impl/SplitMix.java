@@ -0,0 +1,157 @@
+package impl;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of random numbers for the generators, using the same SplitMix
+ * algorithm as java.util.SplittableRandom and giving exactly the same
+ * numbers for the same seed, but with a state of two longs that can be
+ * read and restored so that a generator can be saved and resumed.
+ */
+final class SplitMix
+{
+  /**
+   * Gamma of a generator constructed from a seed.
+   */
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  /**
+   * The seed, advanced by gamma for each number.
+   */
+  private long seed;
+
+  /**
+   * The amount added to the seed for each number; always odd.
+   */
+  private long gamma;
+
+  /**
+   * Constructs a SplitMix whose numbers are determined by the given
+   * seed, as for new SplittableRandom(seed).
+   * @param seed the seed
+   */
+  SplitMix(long seed)
+  {
+    this(seed, GOLDEN_GAMMA);
+  }
+
+  /**
+   * Constructs a SplitMix in the given state.
+   * @param seed the seed
+   * @param gamma the gamma, which must be odd
+   */
+  SplitMix(long seed, long gamma)
+  {
+    this.seed = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * Returns a SplitMix with an unpredictable seed.
+   * @return a new SplitMix
+   */
+  static SplitMix create()
+  {
+    return new SplitMix(new SplittableRandom().nextLong());
+  }
+
+  /**
+   * Returns the seed part of the state.
+   * @return the seed
+   */
+  long getSeed()
+  {
+    return seed;
+  }
+
+  /**
+   * Returns the gamma part of the state.
+   * @return the gamma
+   */
+  long getGamma()
+  {
+    return gamma;
+  }
+
+  /**
+   * Puts this SplitMix in the given state.
+   * @param seed the seed
+   * @param gamma the gamma, which must be odd
+   */
+  void setState(long seed, long gamma)
+  {
+    this.seed = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * Returns a number from 0 up to but not including the given bound,
+   * as SplittableRandom.nextInt(bound) would.
+   * @param bound the bound, which must be positive
+   * @return the number
+   */
+  int nextInt(int bound)
+  {
+    int r = mix32(nextSeed());
+    int m = bound - 1;
+    if ((bound & m) == 0)
+    {
+      return r & m;
+    }
+    for (int u = r >>> 1; u + m - (r = u % bound) < 0; u = mix32(nextSeed()) >>> 1)
+    {
+      // reject values that would make the result biased
+    }
+    return r;
+  }
+
+  /**
+   * Returns a new SplitMix whose numbers are independent of this one's,
+   * as SplittableRandom.split() would.
+   * @return the new SplitMix
+   */
+  SplitMix split()
+  {
+    return new SplitMix(mix64(nextSeed()), mixGamma(nextSeed()));
+  }
+
+  /**
+   * Advances the seed.
+   * @return the new seed
+   */
+  private long nextSeed()
+  {
+    return seed += gamma;
+  }
+
+  /**
+   * Mixes a seed into 64 well-distributed bits.
+   */
+  private static long mix64(long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Mixes a seed into 32 well-distributed bits.
+   */
+  private static int mix32(long z)
+  {
+    z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+    return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+  }
+
+  /**
+   * Mixes a seed into an odd gamma with enough bit transitions.
+   */
+  private static long mixGamma(long z)
+  {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    int n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+}
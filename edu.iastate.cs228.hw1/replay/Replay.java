@@ -0,0 +1,517 @@
+package replay;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable recording of a game, made by a ReplayRecorder and played
+ * back by a ReplayPlayer.  A replay holds the seed of the generator
+ * the game was created with and every call that changed the game.
+ * <p>
+ * The calls are encoded as a sequence of actions.  Calls to step() are
+ * not stored one by one; instead each other call is stored as a single
+ * varint holding the number of steps since the previous call, shifted
+ * left by three bits, and the operation code in the low three bits.
+ * Since most moves are made within a few steps of each other, nearly
+ * every action takes one byte.  The sequence ends with an END action
+ * whose count covers the steps after the last call.
+ * <p>
+ * A replay may also hold keyframes: the complete state of the game,
+ * as written by AbstractBlockGame.writeState(), after every so many
+ * steps, together with the position in the actions at that point.  A
+ * ReplayPlayer can then seek to any step by restoring the keyframe
+ * before it and playing only the actions after the keyframe.
+ * <p>
+ * The serialized form returned by toByteArray() starts with a format
+ * byte, the width and height of the grid as varints and the seed as
+ * eight bytes.  Then come the length of the actions as a varint and
+ * the actions, the number of keyframes, an index entry for each
+ * keyframe (the steps, moves and action bytes since the previous
+ * keyframe, the steps since the last move and the length of the
+ * state, all varints), and finally the states of the keyframes.  The
+ * first format, without keyframes, only had the actions after the
+ * seed, and can still be read.
+ */
+public final class Replay
+{
+  /**
+   * Operation code for shiftLeft().
+   */
+  public static final int SHIFT_LEFT = 0;
+
+  /**
+   * Operation code for shiftRight().
+   */
+  public static final int SHIFT_RIGHT = 1;
+
+  /**
+   * Operation code for transform().
+   */
+  public static final int TRANSFORM = 2;
+
+  /**
+   * Operation code for cycle().
+   */
+  public static final int CYCLE = 3;
+
+  /**
+   * Operation code for hardDrop().
+   */
+  public static final int HARD_DROP = 4;
+
+  /**
+   * Operation code of the last action, which only counts steps.
+   */
+  public static final int END = 7;
+
+  /**
+   * Number of bits of an action holding the operation code.
+   */
+  static final int OP_BITS = 3;
+
+  /**
+   * Mask for the operation code of an action.
+   */
+  static final int OP_MASK = (1 << OP_BITS) - 1;
+
+  /**
+   * First byte of the serialized form without keyframes.
+   */
+  private static final int FORMAT_ACTIONS = 1;
+
+  /**
+   * First byte of the serialized form with keyframes.
+   */
+  private static final int FORMAT = 2;
+
+  /**
+   * Seed of the generator the game was created with.
+   */
+  private final long seed;
+
+  /**
+   * Width of the grid.
+   */
+  private final int width;
+
+  /**
+   * Height of the grid.
+   */
+  private final int height;
+
+  /**
+   * The encoded actions, ending with END.
+   */
+  private final byte[] actions;
+
+  /**
+   * Total number of calls to step().
+   */
+  private final long steps;
+
+  /**
+   * Total number of calls other than step().
+   */
+  private final long moves;
+
+  /**
+   * Number of steps made before each keyframe.
+   */
+  private final long[] keyframeSteps;
+
+  /**
+   * Number of moves made before each keyframe.
+   */
+  private final long[] keyframeMoves;
+
+  /**
+   * Index in the actions of the first action after each keyframe.
+   */
+  private final int[] keyframeActions;
+
+  /**
+   * Number of steps made between the last move and each keyframe.
+   */
+  private final long[] keyframeSince;
+
+  /**
+   * Index in states of the state of each keyframe, with an extra entry
+   * for the end of the last.
+   */
+  private final int[] keyframeStates;
+
+  /**
+   * The states of the keyframes, one after another.
+   */
+  private final byte[] states;
+
+  /**
+   * Constructs a replay from encoded actions and keyframes.  None of
+   * the arrays may be modified afterwards.
+   * @param seed seed of the generator
+   * @param width width of the grid
+   * @param height height of the grid
+   * @param actions the encoded actions, ending with END
+   * @param steps total number of calls to step()
+   * @param moves total number of other calls
+   * @param keyframeSteps steps before each keyframe, in increasing 
+   *   order
+   * @param keyframeMoves moves before each keyframe
+   * @param keyframeActions index in the actions of the first action
+   *   after each keyframe
+   * @param keyframeSince steps between the last move and each keyframe
+   * @param keyframeStates index in states of the state of each 
+   *   keyframe, with an extra entry for the end of the last
+   * @param states the states of the keyframes
+   */
+  Replay(long seed, int width, int height, byte[] actions, long steps, 
+      long moves, long[] keyframeSteps, long[] keyframeMoves, 
+      int[] keyframeActions, long[] keyframeSince, int[] keyframeStates,
+      byte[] states)
+  {
+    this.seed = seed;
+    this.width = width;
+    this.height = height;
+    this.actions = actions;
+    this.steps = steps;
+    this.moves = moves;
+    this.keyframeSteps = keyframeSteps;
+    this.keyframeMoves = keyframeMoves;
+    this.keyframeActions = keyframeActions;
+    this.keyframeSince = keyframeSince;
+    this.keyframeStates = keyframeStates;
+    this.states = states;
+  }
+
+  /**
+   * Returns the seed of the generator the game was created with.
+   * @return the seed
+   */
+  public long getSeed()
+  {
+    return seed;
+  }
+
+  /**
+   * Returns the width of the grid of the game.
+   * @return the width
+   */
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /**
+   * Returns the height of the grid of the game.
+   * @return the height
+   */
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /**
+   * Returns the number of calls to step() recorded.
+   * @return the number of steps
+   */
+  public long getStepCount()
+  {
+    return steps;
+  }
+
+  /**
+   * Returns the number of calls other than step() recorded.
+   * @return the number of moves
+   */
+  public long getMoveCount()
+  {
+    return moves;
+  }
+
+  /**
+   * Returns the number of bytes taken by the encoded actions.
+   * @return the size of the actions
+   */
+  public int getActionSize()
+  {
+    return actions.length;
+  }
+
+  /**
+   * Returns the number of keyframes.
+   * @return the number of keyframes
+   */
+  public int getKeyframeCount()
+  {
+    return keyframeSteps.length;
+  }
+
+  /**
+   * Returns the number of steps made before the given keyframe.
+   * @param keyframe index of a keyframe
+   * @return the number of steps
+   */
+  public long getKeyframeStep(int keyframe)
+  {
+    return keyframeSteps[keyframe];
+  }
+
+  /**
+   * Returns the number of bytes taken by the states of the keyframes.
+   * @return the size of the keyframes
+   */
+  public int getKeyframeSize()
+  {
+    return states.length;
+  }
+
+  /**
+   * Returns the index of the last keyframe made at or before the given
+   * step.
+   * @param step a number of steps
+   * @return index of the keyframe, or -1 if there is none
+   */
+  public int findKeyframe(long step)
+  {
+    int i = Arrays.binarySearch(keyframeSteps, step);
+    if (i < 0)
+    {
+      return -(i + 1) - 1;
+    }
+
+    // several keyframes can only share a step if no steps were made
+    // between them, so take the last
+    while (i + 1 < keyframeSteps.length && keyframeSteps[i + 1] == step)
+    {
+      ++i;
+    }
+    return i;
+  }
+
+  /**
+   * Returns the encoded actions, which must not be modified.
+   * @return the actions
+   */
+  byte[] actions()
+  {
+    return actions;
+  }
+
+  /**
+   * Returns the number of moves made before the given keyframe.
+   */
+  long keyframeMoves(int keyframe)
+  {
+    return keyframeMoves[keyframe];
+  }
+
+  /**
+   * Returns the index in the actions of the first action after the
+   * given keyframe.
+   */
+  int keyframeAction(int keyframe)
+  {
+    return keyframeActions[keyframe];
+  }
+
+  /**
+   * Returns the number of steps made between the last move and the
+   * given keyframe.
+   */
+  long keyframeSince(int keyframe)
+  {
+    return keyframeSince[keyframe];
+  }
+
+  /**
+   * Returns a buffer holding the state of the given keyframe.
+   */
+  ByteBuffer keyframeState(int keyframe)
+  {
+    int start = keyframeStates[keyframe];
+    return ByteBuffer.wrap(states, start, keyframeStates[keyframe + 1] - start);
+  }
+
+  /**
+   * Returns the serialized form of this replay.
+   * @return a new array holding this replay
+   */
+  public byte[] toByteArray()
+  {
+    int n = keyframeSteps.length;
+    byte[] header = new byte[1 + 5 + 5 + 8 + 5 + actions.length + 5 + n * 50];
+    int pos = 0;
+    header[pos++] = FORMAT;
+    pos = putVarint(header, pos, width);
+    pos = putVarint(header, pos, height);
+    for (int shift = 56; shift >= 0; shift -= 8)
+    {
+      header[pos++] = (byte) (seed >>> shift);
+    }
+    pos = putVarint(header, pos, actions.length);
+    System.arraycopy(actions, 0, header, pos, actions.length);
+    pos += actions.length;
+    pos = putVarint(header, pos, n);
+    for (int i = 0; i < n; ++i)
+    {
+      pos = putVarint(header, pos, keyframeSteps[i] - (i == 0 ? 0 : keyframeSteps[i - 1]));
+      pos = putVarint(header, pos, keyframeMoves[i] - (i == 0 ? 0 : keyframeMoves[i - 1]));
+      pos = putVarint(header, pos, keyframeActions[i] - (i == 0 ? 0 : keyframeActions[i - 1]));
+      pos = putVarint(header, pos, keyframeSince[i]);
+      pos = putVarint(header, pos, keyframeStates[i + 1] - keyframeStates[i]);
+    }
+    byte[] ret = Arrays.copyOf(header, pos + states.length);
+    System.arraycopy(states, 0, ret, pos, states.length);
+    return ret;
+  }
+
+  /**
+   * Reconstructs a replay from its serialized form.
+   * @param bytes the serialized form, as returned by toByteArray()
+   * @return the replay
+   * @throws IllegalArgumentException if the bytes are not a valid
+   *   replay
+   */
+  public static Replay fromByteArray(byte[] bytes)
+  {
+    if (bytes.length == 0 || (bytes[0] != FORMAT && bytes[0] != FORMAT_ACTIONS))
+    {
+      throw new IllegalArgumentException("Unknown replay format");
+    }
+    int[] pos = {1};
+    int width = (int) getVarint(bytes, pos);
+    int height = (int) getVarint(bytes, pos);
+    if (pos[0] + 8 > bytes.length)
+    {
+      throw new IllegalArgumentException("Truncated replay");
+    }
+    long seed = 0;
+    for (int i = 0; i < 8; ++i)
+    {
+      seed = (seed << 8) | (bytes[pos[0]++] & 0xff);
+    }
+    int end = bytes.length;
+    if (bytes[0] == FORMAT)
+    {
+      long length = getVarint(bytes, pos);
+      if (length < 0 || length > bytes.length - pos[0])
+      {
+        throw new IllegalArgumentException("Truncated replay");
+      }
+      end = pos[0] + (int) length;
+    }
+
+    // check the actions and count them
+    int start = pos[0];
+    long steps = 0;
+    long moves = 0;
+    while (true)
+    {
+      if (pos[0] >= end)
+      {
+        throw new IllegalArgumentException("Truncated replay");
+      }
+      long action = getVarint(bytes, pos);
+      steps += action >>> OP_BITS;
+      int op = (int) (action & OP_MASK);
+      if (op == END)
+      {
+        break;
+      }
+      if (op > HARD_DROP)
+      {
+        throw new IllegalArgumentException("Unknown operation " + op);
+      }
+      moves += 1;
+    }
+    if (pos[0] != end)
+    {
+      throw new IllegalArgumentException("Data after end of actions");
+    }
+    byte[] actions = Arrays.copyOfRange(bytes, start, end);
+
+    int n = bytes[0] == FORMAT ? (int) getVarint(bytes, pos) : 0;
+    if (n < 0 || n > bytes.length)
+    {
+      throw new IllegalArgumentException("Bad keyframe count");
+    }
+    long[] keyframeSteps = new long[n];
+    long[] keyframeMoves = new long[n];
+    int[] keyframeActions = new int[n];
+    long[] keyframeSince = new long[n];
+    int[] keyframeStates = new int[n + 1];
+    for (int i = 0; i < n; ++i)
+    {
+      keyframeSteps[i] = (i == 0 ? 0 : keyframeSteps[i - 1]) + getVarint(bytes, pos);
+      keyframeMoves[i] = (i == 0 ? 0 : keyframeMoves[i - 1]) + getVarint(bytes, pos);
+      keyframeActions[i] = (i == 0 ? 0 : keyframeActions[i - 1]) + (int) getVarint(bytes, pos);
+      keyframeSince[i] = getVarint(bytes, pos);
+      keyframeStates[i + 1] = keyframeStates[i] + (int) getVarint(bytes, pos);
+      if (keyframeSteps[i] > steps || keyframeMoves[i] > moves 
+          || keyframeActions[i] < 0 || keyframeActions[i] >= actions.length
+          || keyframeSince[i] > keyframeSteps[i] 
+          || keyframeStates[i + 1] < keyframeStates[i])
+      {
+        throw new IllegalArgumentException("Bad keyframe " + i);
+      }
+    }
+    if (bytes.length - pos[0] != keyframeStates[n])
+    {
+      throw new IllegalArgumentException("Bad keyframe states");
+    }
+    byte[] states = Arrays.copyOfRange(bytes, pos[0], bytes.length);
+    return new Replay(seed, width, height, actions, steps, moves, 
+        keyframeSteps, keyframeMoves, keyframeActions, keyframeSince,
+        keyframeStates, states);
+  }
+
+  /**
+   * Writes a value as an unsigned varint: seven bits per byte, least
+   * significant first, with the high bit set on every byte but the
+   * last.
+   * @param buffer the array to write to, which must have room
+   * @param pos index at which to write
+   * @param value the value, treated as unsigned
+   * @return the index after the last byte written
+   */
+  static int putVarint(byte[] buffer, int pos, long value)
+  {
+    while ((value & ~0x7fL) != 0)
+    {
+      buffer[pos++] = (byte) (value | 0x80);
+      value >>>= 7;
+    }
+    buffer[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * Reads an unsigned varint written by putVarint().
+   * @param buffer the array to read from
+   * @param pos one-element array holding the index at which to read,
+   *   which is advanced past the varint
+   * @return the value
+   * @throws IllegalArgumentException if the varint is truncated or too
+   *   long
+   */
+  static long getVarint(byte[] buffer, int[] pos)
+  {
+    long value = 0;
+    int p = pos[0];
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      if (p >= buffer.length)
+      {
+        throw new IllegalArgumentException("Truncated replay");
+      }
+      byte b = buffer[p++];
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0)
+      {
+        pos[0] = p;
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+}
@@ -0,0 +1,248 @@
+package replay;
+
+import api.IGame;
+import impl.AbstractBlockGame;
+
+/**
+ * Plays a Replay back on a game, reproducing the recorded game
+ * exactly.  The game must be created the same way as the recorded
+ * one, with a grid of the same size and a generator of the same kind
+ * seeded with the replay's seed, and must be in its initial state.
+ * <p>
+ * If the replay has keyframes and the game is an AbstractBlockGame, 
+ * seek() can go to any step, forwards or backwards, by restoring the
+ * nearest keyframe before it and playing on from there, so that it
+ * takes no longer than playing the steps between two keyframes.
+ */
+public class ReplayPlayer
+{
+  /**
+   * The replay being played.
+   */
+  private final Replay replay;
+
+  /**
+   * The game the replay is played on.
+   */
+  private final IGame game;
+
+  /**
+   * Index in the encoded actions of the action after the current one,
+   * as a one-element array for Replay.getVarint().
+   */
+  private final int[] pos = {0};
+
+  /**
+   * Number of steps still to be made before the current action's move.
+   */
+  private long pendingSteps;
+
+  /**
+   * Operation code of the current action.
+   */
+  private int op;
+
+  /**
+   * Number of steps made so far.
+   */
+  private long steps;
+
+  /**
+   * Number of moves made so far.
+   */
+  private long moves;
+
+  /**
+   * True if a move has been made since the last step.
+   */
+  private boolean moved;
+
+  /**
+   * Constructs a player for the given replay and game.
+   * @param replay the replay to play
+   * @param game the game to play it on, in its initial state
+   * @throws IllegalArgumentException if the grid of the game is not
+   *   the size of the recorded one
+   */
+  public ReplayPlayer(Replay replay, IGame game)
+  {
+    if (game.getWidth() != replay.getWidth() || game.getHeight() != replay.getHeight())
+    {
+      throw new IllegalArgumentException("Grid size does not match replay");
+    }
+    this.replay = replay;
+    this.game = game;
+    readAction();
+  }
+
+  /**
+   * Returns the game the replay is played on.
+   * @return the game
+   */
+  public IGame getGame()
+  {
+    return game;
+  }
+
+  /**
+   * Returns the number of calls to step() made so far.
+   * @return the number of steps
+   */
+  public long getStepCount()
+  {
+    return steps;
+  }
+
+  /**
+   * Returns the number of calls other than step() made so far.
+   * @return the number of moves
+   */
+  public long getMoveCount()
+  {
+    return moves;
+  }
+
+  /**
+   * Determines whether every recorded call has been made.
+   * @return true if the replay is over
+   */
+  public boolean isFinished()
+  {
+    return op == Replay.END && pendingSteps == 0;
+  }
+
+  /**
+   * Makes the next recorded call on the game.
+   * @return false if the replay was already over, true otherwise
+   */
+  public boolean advance()
+  {
+    if (pendingSteps > 0)
+    {
+      game.step();
+      pendingSteps -= 1;
+      steps += 1;
+      moved = false;
+      return true;
+    }
+    switch (op)
+    {
+      case Replay.SHIFT_LEFT:
+        game.shiftLeft();
+        break;
+      case Replay.SHIFT_RIGHT:
+        game.shiftRight();
+        break;
+      case Replay.TRANSFORM:
+        game.transform();
+        break;
+      case Replay.CYCLE:
+        game.cycle();
+        break;
+      case Replay.HARD_DROP:
+        game.hardDrop();
+        break;
+      default:
+        return false;
+    }
+    moves += 1;
+    moved = true;
+    readAction();
+    return true;
+  }
+
+  /**
+   * Makes the recorded calls up to the given number of steps.  The
+   * moves recorded after that step are not made.
+   * @param step the number of steps to reach
+   * @return true if the given number of steps was reached, false if
+   *   the replay ended first
+   */
+  public boolean advanceTo(long step)
+  {
+    while (steps < step)
+    {
+      if (!advance())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Puts the game in its state after the given number of steps, 
+   * before any moves recorded after that step.  Unless the step is 
+   * just ahead of the current one, the game is first restored from the
+   * last keyframe at or before the step.
+   * @param step the number of steps to reach
+   * @return true if the given number of steps was reached, false if
+   *   the replay ended first
+   * @throws UnsupportedOperationException if the step is behind the
+   *   current one and the game cannot be restored from a keyframe,
+   *   for example because its generator cannot be restored
+   */
+  public boolean seek(long step)
+  {
+    int keyframe = replay.findKeyframe(step);
+    boolean canRestore = keyframe >= 0 && game instanceof AbstractBlockGame;
+    if (step < steps || (step == steps && moved))
+    {
+      if (!canRestore)
+      {
+        throw new UnsupportedOperationException("No keyframe before step " + step);
+      }
+      restore(keyframe);
+    }
+    else if (canRestore && replay.getKeyframeStep(keyframe) > steps)
+    {
+      try
+      {
+        restore(keyframe);
+      }
+      catch (UnsupportedOperationException e)
+      {
+        // the generator cannot be restored, which leaves the game as
+        // it was, so play on to the step instead
+      }
+    }
+    return advanceTo(step);
+  }
+
+  /**
+   * Puts the game and the position in the actions in the state of the
+   * given keyframe.
+   * @param keyframe index of the keyframe
+   */
+  private void restore(int keyframe)
+  {
+    ((AbstractBlockGame) game).readState(replay.keyframeState(keyframe));
+    steps = replay.getKeyframeStep(keyframe);
+    moves = replay.keyframeMoves(keyframe);
+    pos[0] = replay.keyframeAction(keyframe);
+    readAction();
+    pendingSteps -= replay.keyframeSince(keyframe);
+    moved = false;
+  }
+
+  /**
+   * Makes all the remaining recorded calls.
+   */
+  public void finish()
+  {
+    while (advance())
+    {
+      // keep going
+    }
+  }
+
+  /**
+   * Decodes the next action.
+   */
+  private void readAction()
+  {
+    long action = Replay.getVarint(replay.actions(), pos);
+    pendingSteps = action >>> Replay.OP_BITS;
+    op = (int) (action & Replay.OP_MASK);
+  }
+}
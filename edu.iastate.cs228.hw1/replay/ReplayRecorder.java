@@ -0,0 +1,381 @@
+package replay;
+
+import java.awt.Point;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import api.GameStatus;
+import api.IGame;
+import api.IGameIcon;
+import api.IGameListener;
+import api.IPolyomino;
+import impl.AbstractBlockGame;
+
+/**
+ * IGame that passes every call on to another game and records the
+ * calls that change it, so that the game can later be reproduced
+ * exactly with a ReplayPlayer.  The other game must have been created
+ * with a generator seeded with the seed given to the recorder, and
+ * must not be changed except through the recorder.
+ * <p>
+ * Recording costs a counter increment per step and a few byte writes
+ * per move; see Replay for the format.  Calls that throw an exception
+ * leave the game unchanged and are not recorded.
+ * <p>
+ * If the game is an AbstractBlockGame whose state can be saved, a 
+ * keyframe holding its state is also recorded at the start and after
+ * every so many steps, so that a player can seek quickly.
+ */
+public class ReplayRecorder implements IGame
+{
+  /**
+   * Default number of steps between keyframes.
+   */
+  public static final int DEFAULT_KEYFRAME_INTERVAL = 1000;
+
+  /**
+   * The game being recorded.
+   */
+  private final IGame game;
+
+  /**
+   * Seed of the generator the game was created with.
+   */
+  private final long seed;
+
+  /**
+   * Encoded actions so far.
+   */
+  private byte[] buffer = new byte[256];
+
+  /**
+   * Number of bytes of buffer in use.
+   */
+  private int size;
+
+  /**
+   * Number of calls to step() so far.
+   */
+  private long steps;
+
+  /**
+   * Value of steps at the last recorded move.
+   */
+  private long lastMoveStep;
+
+  /**
+   * Number of moves recorded so far.
+   */
+  private long moves;
+
+  /**
+   * Number of steps between keyframes, or 0 if no keyframes are
+   * recorded.
+   */
+  private int keyframeInterval;
+
+  /**
+   * Number of keyframes recorded so far.
+   */
+  private int keyframes;
+
+  /**
+   * Steps, moves, action index and steps since the last move for each
+   * keyframe, four entries per keyframe.
+   */
+  private long[] keyframeIndex = new long[0];
+
+  /**
+   * Index in states of the state of each keyframe, with an extra entry
+   * for the end of the last.
+   */
+  private int[] keyframeStates = {0};
+
+  /**
+   * States of the keyframes so far.
+   */
+  private byte[] states = new byte[0];
+
+  /**
+   * Buffer the state of the game is written to.
+   */
+  private ByteBuffer state;
+
+  /**
+   * Constructs a recorder for the given game, which must be in its
+   * initial state, with keyframes every DEFAULT_KEYFRAME_INTERVAL steps.
+   * @param game the game to record
+   * @param seed seed of the generator the game was created with
+   */
+  public ReplayRecorder(IGame game, long seed)
+  {
+    this(game, seed, DEFAULT_KEYFRAME_INTERVAL);
+  }
+
+  /**
+   * Constructs a recorder for the given game, which must be in its
+   * initial state.
+   * @param game the game to record
+   * @param seed seed of the generator the game was created with
+   * @param keyframeInterval number of steps between keyframes, or 0 
+   *   to record no keyframes
+   */
+  public ReplayRecorder(IGame game, long seed, int keyframeInterval)
+  {
+    this.game = game;
+    this.seed = seed;
+    if (keyframeInterval > 0 && game instanceof AbstractBlockGame)
+    {
+      this.keyframeInterval = keyframeInterval;
+      state = ByteBuffer.allocate(1024);
+      try
+      {
+        recordKeyframe();
+      }
+      catch (UnsupportedOperationException e)
+      {
+        // the generator cannot be saved
+        this.keyframeInterval = 0;
+      }
+      catch (IllegalArgumentException e)
+      {
+        // the pieces cannot be saved
+        this.keyframeInterval = 0;
+      }
+    }
+  }
+
+  /**
+   * Returns a replay of the calls recorded so far.  Recording may
+   * continue afterwards.
+   * @return the replay
+   */
+  public Replay getReplay()
+  {
+    byte[] actions = Arrays.copyOf(buffer, size + 10);
+    int end = Replay.putVarint(actions, size, ((steps - lastMoveStep) << Replay.OP_BITS) | Replay.END);
+    long[] keyframeSteps = new long[keyframes];
+    long[] keyframeMoves = new long[keyframes];
+    int[] keyframeActions = new int[keyframes];
+    long[] keyframeSince = new long[keyframes];
+    for (int i = 0; i < keyframes; ++i)
+    {
+      keyframeSteps[i] = keyframeIndex[4 * i];
+      keyframeMoves[i] = keyframeIndex[4 * i + 1];
+      keyframeActions[i] = (int) keyframeIndex[4 * i + 2];
+      keyframeSince[i] = keyframeIndex[4 * i + 3];
+    }
+    return new Replay(seed, game.getWidth(), game.getHeight(), 
+        Arrays.copyOf(actions, end), steps, moves, keyframeSteps, 
+        keyframeMoves, keyframeActions, keyframeSince, 
+        Arrays.copyOf(keyframeStates, keyframes + 1),
+        Arrays.copyOf(states, keyframeStates[keyframes]));
+  }
+
+  /**
+   * Records a keyframe holding the current state of the game.
+   */
+  private void recordKeyframe()
+  {
+    while (true)
+    {
+      try
+      {
+        state.clear();
+        ((AbstractBlockGame) game).writeState(state);
+        break;
+      }
+      catch (BufferOverflowException e)
+      {
+        state = ByteBuffer.allocate(state.capacity() * 2);
+      }
+    }
+    if (4 * keyframes + 4 > keyframeIndex.length)
+    {
+      keyframeIndex = Arrays.copyOf(keyframeIndex, Math.max(4 * keyframes * 2, 16));
+      keyframeStates = Arrays.copyOf(keyframeStates, keyframeIndex.length / 4 + 1);
+    }
+    keyframeIndex[4 * keyframes] = steps;
+    keyframeIndex[4 * keyframes + 1] = moves;
+    keyframeIndex[4 * keyframes + 2] = size;
+    keyframeIndex[4 * keyframes + 3] = steps - lastMoveStep;
+    int start = keyframeStates[keyframes];
+    int length = state.position();
+    if (start + length > states.length)
+    {
+      states = Arrays.copyOf(states, Math.max(states.length * 2, start + length));
+    }
+    System.arraycopy(state.array(), 0, states, start, length);
+    keyframes += 1;
+    keyframeStates[keyframes] = start + length;
+  }
+
+  /**
+   * Records a move made after the steps so far.
+   * @param op operation code of the move
+   */
+  private void record(int op)
+  {
+    if (size + 10 > buffer.length)
+    {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    size = Replay.putVarint(buffer, size, ((steps - lastMoveStep) << Replay.OP_BITS) | op);
+    lastMoveStep = steps;
+    moves += 1;
+  }
+
+  @Override
+  public GameStatus step()
+  {
+    GameStatus ret = game.step();
+    steps += 1;
+    if (keyframeInterval > 0 && steps % keyframeInterval == 0)
+    {
+      recordKeyframe();
+    }
+    return ret;
+  }
+
+  @Override
+  public boolean transform()
+  {
+    boolean ret = game.transform();
+    record(Replay.TRANSFORM);
+    return ret;
+  }
+
+  @Override
+  public void cycle()
+  {
+    game.cycle();
+    record(Replay.CYCLE);
+  }
+
+  @Override
+  public boolean shiftLeft()
+  {
+    boolean ret = game.shiftLeft();
+    record(Replay.SHIFT_LEFT);
+    return ret;
+  }
+
+  @Override
+  public boolean shiftRight()
+  {
+    boolean ret = game.shiftRight();
+    record(Replay.SHIFT_RIGHT);
+    return ret;
+  }
+
+  @Override
+  public int dropDistance()
+  {
+    return game.dropDistance();
+  }
+
+  @Override
+  public int hardDrop()
+  {
+    int ret = game.hardDrop();
+    record(Replay.HARD_DROP);
+    return ret;
+  }
+
+  @Override
+  public IGameIcon getCell(int row, int col)
+  {
+    return game.getCell(row, col);
+  }
+
+  @Override
+  public long getGridVersion()
+  {
+    return game.getGridVersion();
+  }
+
+  @Override
+  public int getFirstRowChangedSince(long version)
+  {
+    return game.getFirstRowChangedSince(version);
+  }
+
+  @Override
+  public int getLastRowChangedSince(long version)
+  {
+    return game.getLastRowChangedSince(version);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, int[] buffer, int offset)
+  {
+    game.exportRows(firstRow, lastRow, buffer, offset);
+  }
+
+  @Override
+  public void exportRows(int firstRow, int lastRow, ByteBuffer buffer)
+  {
+    game.exportRows(firstRow, lastRow, buffer);
+  }
+
+  @Override
+  public IPolyomino getCurrent()
+  {
+    return game.getCurrent();
+  }
+
+  @Override
+  public IPolyomino getPreview(int n)
+  {
+    return game.getPreview(n);
+  }
+
+  @Override
+  public int getPreviewDepth()
+  {
+    return game.getPreviewDepth();
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return game.getWidth();
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return game.getHeight();
+  }
+
+  @Override
+  public Point[] getCellsToCollapse()
+  {
+    return game.getCellsToCollapse();
+  }
+
+  @Override
+  public int getScore()
+  {
+    return game.getScore();
+  }
+
+  @Override
+  public boolean gameOver()
+  {
+    return game.gameOver();
+  }
+
+  @Override
+  public void addGameListener(IGameListener listener)
+  {
+    game.addGameListener(listener);
+  }
+
+  @Override
+  public void removeGameListener(IGameListener listener)
+  {
+    game.removeGameListener(listener);
+  }
+}
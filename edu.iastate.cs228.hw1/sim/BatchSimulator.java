@@ -0,0 +1,235 @@
+package sim;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import api.GameStatus;
+import api.IGame;
+import api.IGameFactory;
+import api.IInputPolicy;
+import api.IPolyominoGenerator;
+
+/**
+ * Plays batches of games without a user interface, driving each game 
+ * with step() and an IInputPolicy.  The games of a batch are divided
+ * among the threads of a fork/join pool.  Each game is created, played
+ * and scored entirely by one thread, and each task totals its own games
+ * in its own SimulationResult, so the threads share nothing but the
+ * factory and the policy while the games are running.
+ * <p>
+ * Each game gets its own polyomino generator, split from the generator
+ * of the task playing it, and a task splits its generator again for 
+ * each task it forks.  Since the tasks are always divided the same way,
+ * the sequence of polyominoes in every game depends only on the state 
+ * of the simulator's generator and the number of games, not on the 
+ * number of threads or the order in which the tasks are run.
+ * <p>
+ * A generator that cannot be split is used directly instead, by
+ * playing every game of the batch one after another on one thread.
+ */
+public class BatchSimulator
+{
+  /**
+   * A task plays its games itself rather than splitting them when it
+   * has at most this many.
+   */
+  private static final long GRAIN = 8;
+
+  /**
+   * Factory for the games to be played.
+   */
+  private final IGameFactory factory;
+
+  /**
+   * Generator from which the generators of the games are split.
+   */
+  private final IPolyominoGenerator generator;
+
+  /**
+   * Policy supplying the moves for every game.
+   */
+  private final IInputPolicy policy;
+
+  /**
+   * Number of pieces after which a game is stopped even if it is not
+   * over, or 0 for no limit.
+   */
+  private final long maxPieces;
+
+  /**
+   * Pool in which the games are played.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Constructs a simulator using one thread per available processor
+   * and playing every game until it is over.
+   * @param factory factory for the games to be played
+   * @param generator generator from which the games' generators are split
+   * @param policy policy supplying the moves for every game
+   */
+  public BatchSimulator(IGameFactory factory, IPolyominoGenerator generator,
+      IInputPolicy policy)
+  {
+    this(factory, generator, policy, 0,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructs a simulator.
+   * @param factory factory for the games to be played
+   * @param generator generator from which the games' generators are split
+   * @param policy policy supplying the moves for every game
+   * @param maxPieces number of pieces after which a game is stopped
+   *   even if it is not over, or 0 for no limit
+   * @param parallelism number of threads to use
+   */
+  public BatchSimulator(IGameFactory factory, IPolyominoGenerator generator,
+      IInputPolicy policy, long maxPieces, int parallelism)
+  {
+    this.factory = factory;
+    this.generator = generator;
+    this.policy = policy;
+    this.maxPieces = maxPieces;
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Plays the given number of games, numbered from 0, and returns their
+   * totals.  The simulator's generator is split once for the batch, so 
+   * each batch played by a simulator gets different polyominoes.  If
+   * it cannot be split, the games are played one after another on the
+   * calling thread, each taking the next polyominoes of the generator.
+   * @param games number of games to play
+   * @return the totals for the games
+   */
+  public SimulationResult run(long games)
+  {
+    long start = System.nanoTime();
+    IPolyominoGenerator batchGenerator;
+    try
+    {
+      batchGenerator = generator.split();
+    }
+    catch (UnsupportedOperationException e)
+    {
+      batchGenerator = null;
+    }
+    SimulationResult result;
+    if (batchGenerator != null)
+    {
+      result = pool.invoke(new Batch(0, games, batchGenerator));
+    }
+    else
+    {
+      result = new SimulationResult();
+      for (long i = 0; i < games; ++i)
+      {
+        play(i, generator, result);
+      }
+    }
+    result.setElapsedNanos(System.nanoTime() - start);
+    return result;
+  }
+
+  /**
+   * Plays one game to the end (or to the piece limit) and records it
+   * in the given result.
+   * @param index number of the game within its batch
+   * @param gameGenerator generator for the game's polyominoes
+   * @param result the result in which to record the game
+   */
+  public void play(long index, IPolyominoGenerator gameGenerator,
+      SimulationResult result)
+  {
+    IGame game = factory.createGame(index, gameGenerator);
+    GameStatus status = GameStatus.NEW_POLYOMINO;
+    long pieces = 1;
+    long steps = 0;
+    while (status != GameStatus.GAME_OVER)
+    {
+      if (status != GameStatus.COLLAPSING)
+      {
+        policy.move(game, status);
+      }
+      status = game.step();
+      steps += 1;
+      if (status == GameStatus.NEW_POLYOMINO)
+      {
+        if (pieces == maxPieces)
+        {
+          break;
+        }
+        pieces += 1;
+      }
+    }
+    result.record(game.getScore(), pieces, steps);
+  }
+
+  /**
+   * Shuts down the threads of this simulator once any running batch 
+   * is finished.
+   */
+  public void shutdown()
+  {
+    pool.shutdown();
+  }
+
+  /**
+   * Task playing the games numbered from start up to, but not 
+   * including, end.
+   */
+  private class Batch extends RecursiveTask<SimulationResult>
+  {
+    /**
+     * Version of the serialized form, which is never used.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of the first game.
+     */
+    private final long start;
+
+    /**
+     * One more than the number of the last game.
+     */
+    private final long end;
+
+    /**
+     * Generator from which the generators of this task's games and 
+     * subtasks are split.
+     */
+    private final IPolyominoGenerator generator;
+
+    /**
+     * Constructs a task for the given range of games.
+     */
+    private Batch(long start, long end, IPolyominoGenerator generator)
+    {
+      this.start = start;
+      this.end = end;
+      this.generator = generator;
+    }
+
+    @Override
+    protected SimulationResult compute()
+    {
+      if (end - start <= GRAIN)
+      {
+        SimulationResult result = new SimulationResult();
+        for (long i = start; i < end; ++i)
+        {
+          play(i, generator.split(), result);
+        }
+        return result;
+      }
+      long mid = (start + end) >>> 1;
+      Batch left = new Batch(start, mid, generator.split());
+      left.fork();
+      SimulationResult result = new Batch(mid, end, generator).compute();
+      result.add(left.join());
+      return result;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package sim;
+
+import api.GameStatus;
+import api.IGame;
+import api.IInputPolicy;
+import api.IPolyomino;
+
+/**
+ * Input policy that gives each new polyomino a random number of 
+ * transforms and a random sideways shift and then drops it.  The random
+ * numbers are mixed from the policy's seed and the state of the game
+ * (its grid version, score and current polyomino), so the policy keeps
+ * no state, can be shared by games on any number of threads, and plays
+ * a game with seeded polyominoes the same way on every run.
+ */
+public class RandomDropPolicy implements IInputPolicy
+{
+  /**
+   * Seed mixed into every random number.
+   */
+  private final long seed;
+
+  /**
+   * Constructs a policy with seed 0.
+   */
+  public RandomDropPolicy()
+  {
+    this(0);
+  }
+
+  /**
+   * Constructs a policy whose moves also depend on the given seed.
+   * @param seed the seed
+   */
+  public RandomDropPolicy(long seed)
+  {
+    this.seed = seed;
+  }
+
+  @Override
+  public void move(IGame game, GameStatus status)
+  {
+    if (status != GameStatus.NEW_POLYOMINO)
+    {
+      return;
+    }
+    long random = random(game);
+    int turns = (int) (random & 3);
+    for (int i = 0; i < turns; ++i)
+    {
+      game.transform();
+    }
+    int shift = (int) ((random >>> 32) % game.getWidth()) - game.getWidth() / 2;
+    while (shift > 0 && game.shiftRight())
+    {
+      shift -= 1;
+    }
+    while (shift < 0 && game.shiftLeft())
+    {
+      shift += 1;
+    }
+    game.hardDrop();
+  }
+
+  /**
+   * Returns 64 random bits for the current polyomino of the given game.
+   * @param game the game
+   * @return the bits
+   */
+  private long random(IGame game)
+  {
+    long z = seed;
+    z = mix(z + game.getGridVersion());
+    z = mix(z + game.getScore());
+    IPolyomino p = game.getCurrent();
+    for (int i = 0; i < p.getCellCount(); ++i)
+    {
+      z = mix(z + ((long) p.getCellX(i) << 32 | p.getCellY(i) & 0xffffffffL));
+    }
+    return z;
+  }
+
+  /**
+   * Mixes a value into 64 well-distributed bits, as the SplitMix
+   * generator does.
+   * @param z the value
+   * @return the mixed bits
+   */
+  private static long mix(long z)
+  {
+    z += 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
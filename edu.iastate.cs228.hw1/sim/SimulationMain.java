@@ -0,0 +1,94 @@
+package sim;
+
+import api.IGame;
+import api.IGameFactory;
+import api.IInputPolicy;
+import api.IPolyominoGenerator;
+import bot.HeuristicPolicy;
+import bot.Weights;
+import impl.BasicGenerator;
+import impl.CS228Tetris;
+import impl.PreviewGenerator;
+
+/**
+ * Plays a batch of CS228Tetris games without a user interface and
+ * prints the throughput and score distribution.
+ */
+public class SimulationMain
+{
+  /**
+   * Number of pieces after which a game played by a HeuristicPolicy is
+   * stopped by default, since a good policy may never lose.
+   */
+  public static final long DEFAULT_HEURISTIC_MAX_PIECES = 10000;
+
+  /**
+   * Entry point.  The arguments, all optional, are the number of games
+   * (default 10000), the width and height of the grid (default 12 by 24),
+   * the number of threads (default one per processor), the number of
+   * pieces after which a game is stopped (0 for no limit, default 0 for
+   * a RandomDropPolicy and DEFAULT_HEURISTIC_MAX_PIECES otherwise), the
+   * seed from which the pieces of every game are generated (default
+   * none, for different pieces on every run), the weights with which a
+   * HeuristicPolicy plays the games, as numbers separated by commas or
+   * "default" (default none, for a RandomDropPolicy), and the number of
+   * upcoming pieces the HeuristicPolicy looks ahead to (default
+   * HeuristicPolicy.DEFAULT_LOOKAHEAD).  A HeuristicPolicy can only see
+   * upcoming pieces through a PreviewGenerator, so each of its games
+   * previews one piece more than it looks ahead to, the last being
+   * checked only for whether it could start.  An argument given as "-"
+   * takes its default.
+   * @param args command-line arguments as described above
+   */
+  public static void main(String[] args)
+  {
+    long games = isGiven(args, 0) ? Long.parseLong(args[0]) : 10000;
+    final int width = isGiven(args, 1) ? Integer.parseInt(args[1]) : 12;
+    final int height = isGiven(args, 2) ? Integer.parseInt(args[2]) : 24;
+    int threads = isGiven(args, 3) ? Integer.parseInt(args[3])
+        : Runtime.getRuntime().availableProcessors();
+    final boolean heuristic = isGiven(args, 6);
+    long maxPieces = isGiven(args, 4) ? Long.parseLong(args[4])
+        : heuristic ? DEFAULT_HEURISTIC_MAX_PIECES : 0;
+    IPolyominoGenerator generator = isGiven(args, 5)
+        ? new BasicGenerator(width, Long.parseLong(args[5]))
+        : new BasicGenerator(width);
+    final int lookahead = isGiven(args, 7) ? Integer.parseInt(args[7])
+        : HeuristicPolicy.DEFAULT_LOOKAHEAD;
+    IInputPolicy policy = new RandomDropPolicy();
+    if (heuristic)
+    {
+      Weights weights = args[6].equals("default") ? Weights.DEFAULT : Weights.parse(args[6]);
+      policy = new HeuristicPolicy(weights, lookahead, true);
+    }
+
+    IGameFactory factory = new IGameFactory()
+    {
+      public IGame createGame(long index, IPolyominoGenerator gameGenerator)
+      {
+        if (!heuristic)
+        {
+          return new CS228Tetris(gameGenerator, width, height);
+        }
+        return new CS228Tetris(new PreviewGenerator(gameGenerator, lookahead + 1),
+            width, height);
+      }
+    };
+    BatchSimulator simulator = new BatchSimulator(factory, generator,
+        policy, maxPieces, threads);
+    System.out.println(simulator.run(games));
+    simulator.shutdown();
+  }
+
+  /**
+   * Determines whether an argument is given, that is, present and not
+   * "-".
+   * @param args command-line arguments
+   * @param i index of the argument
+   * @return true if the argument is given
+   */
+  private static boolean isGiven(String[] args, int i)
+  {
+    return i < args.length && !args[i].equals("-");
+  }
+}
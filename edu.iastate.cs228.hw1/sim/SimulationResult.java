@@ -0,0 +1,241 @@
+package sim;
+
+import java.util.Arrays;
+
+/**
+ * Totals for a batch of simulated games: the number of games, pieces,
+ * and steps played, and the distribution of final scores.  A result 
+ * is only ever updated by the thread that created it; results from 
+ * different threads are combined with add().
+ */
+public class SimulationResult
+{
+  /**
+   * Number of games played.
+   */
+  private long games;
+
+  /**
+   * Total number of pieces played in all games.
+   */
+  private long pieces;
+
+  /**
+   * Total number of steps in all games.
+   */
+  private long steps;
+
+  /**
+   * Sum of the final scores of all games.
+   */
+  private long totalScore;
+
+  /**
+   * Number of games ending with each score, indexed by score.
+   */
+  private long[] scoreCounts;
+
+  /**
+   * Time taken to play the games, in nanoseconds.
+   */
+  private long elapsedNanos;
+
+  /**
+   * Constructs an empty result.
+   */
+  public SimulationResult()
+  {
+    scoreCounts = new long[64];
+  }
+
+  /**
+   * Records one finished game.
+   * @param score final score of the game
+   * @param piecesPlayed number of pieces played in the game
+   * @param stepsPlayed number of steps in the game
+   */
+  public void record(int score, long piecesPlayed, long stepsPlayed)
+  {
+    games += 1;
+    pieces += piecesPlayed;
+    steps += stepsPlayed;
+    totalScore += score;
+    ensureScore(score);
+    scoreCounts[score] += 1;
+  }
+
+  /**
+   * Adds the totals of another result to this one.
+   * @param other the result to add
+   */
+  public void add(SimulationResult other)
+  {
+    games += other.games;
+    pieces += other.pieces;
+    steps += other.steps;
+    totalScore += other.totalScore;
+    ensureScore(other.scoreCounts.length - 1);
+    for (int i = 0; i < other.scoreCounts.length; ++i)
+    {
+      scoreCounts[i] += other.scoreCounts[i];
+    }
+  }
+
+  /**
+   * Sets the time taken to play the games.
+   * @param nanos elapsed time in nanoseconds
+   */
+  public void setElapsedNanos(long nanos)
+  {
+    elapsedNanos = nanos;
+  }
+
+  /**
+   * Returns the time taken to play the games.
+   * @return elapsed time in nanoseconds
+   */
+  public long getElapsedNanos()
+  {
+    return elapsedNanos;
+  }
+
+  /**
+   * Returns the number of games played.
+   * @return number of games
+   */
+  public long getGames()
+  {
+    return games;
+  }
+
+  /**
+   * Returns the total number of pieces played.
+   * @return number of pieces
+   */
+  public long getPieces()
+  {
+    return pieces;
+  }
+
+  /**
+   * Returns the total number of steps played.
+   * @return number of steps
+   */
+  public long getSteps()
+  {
+    return steps;
+  }
+
+  /**
+   * Returns the number of games played per second of elapsed time.
+   * @return games per second, or 0 if no time has been recorded
+   */
+  public double getGamesPerSecond()
+  {
+    return perSecond(games);
+  }
+
+  /**
+   * Returns the number of pieces played per second of elapsed time.
+   * @return pieces per second, or 0 if no time has been recorded
+   */
+  public double getPiecesPerSecond()
+  {
+    return perSecond(pieces);
+  }
+
+  /**
+   * Returns the mean final score.
+   * @return mean score, or 0 if no games have been played
+   */
+  public double getMeanScore()
+  {
+    return games == 0 ? 0 : (double) totalScore / games;
+  }
+
+  /**
+   * Returns the lowest final score.
+   * @return lowest score, or 0 if no games have been played
+   */
+  public int getMinScore()
+  {
+    return percentile(0);
+  }
+
+  /**
+   * Returns the highest final score.
+   * @return highest score, or 0 if no games have been played
+   */
+  public int getMaxScore()
+  {
+    return percentile(100);
+  }
+
+  /**
+   * Returns the smallest score such that at least the given percentage 
+   * of games ended with that score or lower.
+   * @param percent percentage between 0 and 100
+   * @return the score at the given percentile, or 0 if no games have 
+   *   been played
+   */
+  public int percentile(double percent)
+  {
+    if (games == 0)
+    {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * games));
+    long seen = 0;
+    for (int score = 0; score < scoreCounts.length; ++score)
+    {
+      seen += scoreCounts[score];
+      if (seen >= rank)
+      {
+        return score;
+      }
+    }
+    return scoreCounts.length - 1;
+  }
+
+  /**
+   * Returns the number of games that ended with the given score.
+   * @param score the score
+   * @return number of games
+   */
+  public long getScoreCount(int score)
+  {
+    return score < scoreCounts.length ? scoreCounts[score] : 0;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%d games, %d pieces, %d steps in %.3f s%n"
+        + "%.1f games/s, %.1f pieces/s%n"
+        + "score mean %.2f min %d p50 %d p90 %d p99 %d max %d",
+        games, pieces, steps, elapsedNanos / 1e9,
+        getGamesPerSecond(), getPiecesPerSecond(),
+        getMeanScore(), getMinScore(), percentile(50), percentile(90),
+        percentile(99), getMaxScore());
+  }
+
+  /**
+   * Returns the given count divided by the elapsed time in seconds.
+   */
+  private double perSecond(long count)
+  {
+    return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * Makes sure the score histogram has an entry for the given score.
+   */
+  private void ensureScore(int score)
+  {
+    if (score >= scoreCounts.length)
+    {
+      scoreCounts = Arrays.copyOf(scoreCounts,
+          Math.max(score + 1, scoreCounts.length * 2));
+    }
+  }
+}
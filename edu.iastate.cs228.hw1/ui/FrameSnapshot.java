@@ -0,0 +1,242 @@
+package ui;
+
+/**
+ * Immutable snapshot of everything needed to draw one frame of a game:
+ * the export codes of the grid cells (see IGame.exportRows()), the 
+ * cells of the current polyomino, and the cells being collapsed.
+ * Snapshots are created by a GameLoop on its simulation thread and
+ * can be read from any thread.
+ * <p>
+ * Consecutive snapshots share the arrays holding the rows of the grid
+ * that did not change between them, so a renderer can tell which rows
+ * to draw again by comparing two snapshots with isSameRow().
+ */
+public final class FrameSnapshot
+{
+  /**
+   * Width of the grid.
+   */
+  private final int width;
+
+  /**
+   * Export codes of the grid cells, indexed [row][col].  The row arrays
+   * are never modified once the snapshot is created.
+   */
+  private final int[][] rows;
+
+  /**
+   * x-coordinates of the cells of the current polyomino, or an empty
+   * array if it is not shown.
+   */
+  private final int[] pieceX;
+
+  /**
+   * y-coordinates of the cells of the current polyomino.
+   */
+  private final int[] pieceY;
+
+  /**
+   * Export codes of the cells of the current polyomino.
+   */
+  private final int[] pieceCodes;
+
+  /**
+   * x-coordinates of the cells being collapsed, or an empty array if
+   * none are.
+   */
+  private final int[] collapsingX;
+
+  /**
+   * y-coordinates of the cells being collapsed.
+   */
+  private final int[] collapsingY;
+
+  /**
+   * True if the cells being collapsed are currently highlighted.
+   */
+  private final boolean flashing;
+
+  /**
+   * Score of the game.
+   */
+  private final int score;
+
+  /**
+   * True if the game is over.
+   */
+  private final boolean gameOver;
+
+  /**
+   * Number of simulation ticks before the snapshot was taken.
+   */
+  private final long tick;
+
+  /**
+   * Constructs a snapshot.  The arrays are used directly and must not be 
+   * modified afterwards.
+   */
+  FrameSnapshot(int width, int[][] rows, int[] pieceX, int[] pieceY, 
+      int[] pieceCodes, int[] collapsingX, int[] collapsingY, 
+      boolean flashing, int score, boolean gameOver, long tick)
+  {
+    this.width = width;
+    this.rows = rows;
+    this.pieceX = pieceX;
+    this.pieceY = pieceY;
+    this.pieceCodes = pieceCodes;
+    this.collapsingX = collapsingX;
+    this.collapsingY = collapsingY;
+    this.flashing = flashing;
+    this.score = score;
+    this.gameOver = gameOver;
+    this.tick = tick;
+  }
+
+  /**
+   * Returns the width of the grid.
+   * @return the width of the grid
+   */
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /**
+   * Returns the height of the grid.
+   * @return the height of the grid
+   */
+  public int getHeight()
+  {
+    return rows.length;
+  }
+
+  /**
+   * Returns the export code of a cell of the grid.
+   * @param row the y-coordinate of the cell
+   * @param col the x-coordinate of the cell
+   * @return the export code of the cell, 0 if it is unoccupied
+   */
+  public int getCode(int row, int col)
+  {
+    return rows[row][col];
+  }
+
+  /**
+   * Determines whether this snapshot and the given one certainly have
+   * the same contents in the given row, because they share it.
+   * @param other another snapshot of the same game
+   * @param row the y-coordinate of the row
+   * @return true if the row is shared, false if it may differ
+   */
+  public boolean isSameRow(FrameSnapshot other, int row)
+  {
+    return rows[row] == other.rows[row];
+  }
+
+  /**
+   * Returns the number of cells of the current polyomino, or 0 if it
+   * is not shown because cells are collapsing or the game is over.
+   * @return the number of cells of the current polyomino
+   */
+  public int getPieceCellCount()
+  {
+    return pieceX.length;
+  }
+
+  /**
+   * Returns the x-coordinate of a cell of the current polyomino.
+   * @param index index of the cell
+   * @return the x-coordinate of the cell
+   */
+  public int getPieceX(int index)
+  {
+    return pieceX[index];
+  }
+
+  /**
+   * Returns the y-coordinate of a cell of the current polyomino.
+   * @param index index of the cell
+   * @return the y-coordinate of the cell
+   */
+  public int getPieceY(int index)
+  {
+    return pieceY[index];
+  }
+
+  /**
+   * Returns the export code of a cell of the current polyomino.
+   * @param index index of the cell
+   * @return the export code of the cell
+   */
+  public int getPieceCode(int index)
+  {
+    return pieceCodes[index];
+  }
+
+  /**
+   * Returns the number of cells being collapsed.
+   * @return the number of cells being collapsed
+   */
+  public int getCollapsingCount()
+  {
+    return collapsingX.length;
+  }
+
+  /**
+   * Returns the x-coordinate of a cell being collapsed.
+   * @param index index of the cell
+   * @return the x-coordinate of the cell
+   */
+  public int getCollapsingX(int index)
+  {
+    return collapsingX[index];
+  }
+
+  /**
+   * Returns the y-coordinate of a cell being collapsed.
+   * @param index index of the cell
+   * @return the y-coordinate of the cell
+   */
+  public int getCollapsingY(int index)
+  {
+    return collapsingY[index];
+  }
+
+  /**
+   * Determines whether the cells being collapsed are highlighted in 
+   * this frame of their animation.
+   * @return true if the cells being collapsed are highlighted
+   */
+  public boolean isFlashing()
+  {
+    return flashing;
+  }
+
+  /**
+   * Returns the score of the game.
+   * @return the score
+   */
+  public int getScore()
+  {
+    return score;
+  }
+
+  /**
+   * Determines whether the game is over.
+   * @return true if the game is over
+   */
+  public boolean isGameOver()
+  {
+    return gameOver;
+  }
+
+  /**
+   * Returns the number of simulation ticks before this snapshot was 
+   * taken.
+   * @return the number of ticks
+   */
+  public long getTick()
+  {
+    return tick;
+  }
+}
@@ -0,0 +1,698 @@
+package ui;
+
+import java.awt.Point;
+import java.util.concurrent.locks.LockSupport;
+
+import api.Cell;
+import api.GameStatus;
+import api.IGame;
+import api.IGameIcon;
+import api.IPlayLevel;
+
+/**
+ * Runs a game on its own simulation thread with a fixed time step.
+ * The length of a step is given by the play level: speed() normally, 
+ * and fastDropSpeed() during a fast drop or while collapsing cells are
+ * animated.  Elapsed time is added to an accumulator and one step is 
+ * taken for each full period in it, so the steps keep exact time no 
+ * matter how long other threads take.  When the speed changes, the
+ * fraction of the current step that has already elapsed is kept.
+ * <p>
+ * The game is only touched by the simulation thread.  Another thread 
+ * requests moves with post(), which timestamps them and adds them to a
+ * lock-free queue drained at the start of every iteration of the loop,
+ * and all threads see the game through the immutable FrameSnapshot 
+ * published after every change.
+ * <p>
+ * While a shift key is held, the polyomino is shifted again after the
+ * auto-shift delay and then once per auto-repeat interval, timed from
+ * the moment the key was pressed; the platform's key repeat is
+ * ignored.  The time from each input to the publication of the 
+ * snapshot showing its effect is recorded.
+ */
+public class GameLoop implements Runnable
+{
+  /**
+   * Command to shift the current polyomino left, sent when the key is
+   * pressed.  The polyomino keeps shifting until SHIFT_LEFT_RELEASED.
+   */
+  public static final int SHIFT_LEFT = 0;
+
+  /**
+   * Command to shift the current polyomino right, sent when the key is
+   * pressed.  The polyomino keeps shifting until SHIFT_RIGHT_RELEASED.
+   */
+  public static final int SHIFT_RIGHT = 1;
+
+  /**
+   * Command to transform the current polyomino.
+   */
+  public static final int TRANSFORM = 2;
+
+  /**
+   * Command to cycle the current polyomino.
+   */
+  public static final int CYCLE = 3;
+
+  /**
+   * Command to drop the current polyomino to the bottom and stop it.
+   */
+  public static final int HARD_DROP = 4;
+
+  /**
+   * Command to start dropping the current polyomino at the fast rate.
+   */
+  public static final int FAST_DROP_ON = 5;
+
+  /**
+   * Command to stop dropping the current polyomino at the fast rate.
+   */
+  public static final int FAST_DROP_OFF = 6;
+
+  /**
+   * Command sent when the key for SHIFT_LEFT is released.
+   */
+  public static final int SHIFT_LEFT_RELEASED = 7;
+
+  /**
+   * Command sent when the key for SHIFT_RIGHT is released.
+   */
+  public static final int SHIFT_RIGHT_RELEASED = 8;
+
+  /**
+   * Default time in milliseconds a shift key must be held before the 
+   * polyomino starts shifting repeatedly.
+   */
+  public static final int DEFAULT_AUTO_SHIFT_DELAY = 170;
+
+  /**
+   * Default time in milliseconds between repeated shifts while a shift
+   * key is held.
+   */
+  public static final int DEFAULT_AUTO_REPEAT_RATE = 50;
+
+  /**
+   * Number of posted commands that can wait to be carried out; any
+   * further commands are dropped.
+   */
+  private static final int INPUT_CAPACITY = 256;
+
+  /**
+   * Most steps taken at once to catch up after the simulation thread 
+   * has been held up; any further backlog is dropped.
+   */
+  private static final int MAX_CATCH_UP = 8;
+
+  /**
+   * The game being run.
+   */
+  private final IGame game;
+
+  /**
+   * The difficulty level of the game, which determines the length
+   * of a step.
+   */
+  private final IPlayLevel level;
+
+  /**
+   * Invoked on the simulation thread each time a snapshot is published,
+   * or null.
+   */
+  private final Runnable listener;
+
+  /**
+   * Commands posted and not yet carried out, with the times at which
+   * they were posted.
+   */
+  private final InputQueue input = new InputQueue(INPUT_CAPACITY);
+
+  /**
+   * Auto-shift delay in nanoseconds.
+   */
+  private volatile long autoShiftDelay = DEFAULT_AUTO_SHIFT_DELAY * 1000000L;
+
+  /**
+   * Auto-repeat interval in nanoseconds; zero shifts the polyomino as
+   * far as it will go as soon as the auto-shift delay has passed.
+   */
+  private volatile long autoRepeatRate = DEFAULT_AUTO_REPEAT_RATE * 1000000L;
+
+  /**
+   * Number of commands whose effect has been published.
+   */
+  private volatile long inputCount;
+
+  /**
+   * Sum of the times from posting each command to publishing its 
+   * effect, in nanoseconds.
+   */
+  private volatile long totalInputLatency;
+
+  /**
+   * Longest time from posting a command to publishing its effect, in 
+   * nanoseconds.
+   */
+  private volatile long maxInputLatency;
+
+  /**
+   * The most recently published snapshot.
+   */
+  private volatile FrameSnapshot snapshot;
+
+  /**
+   * False once stop() has been called.
+   */
+  private volatile boolean running;
+
+  /**
+   * The simulation thread, or null if it has not been started.
+   */
+  private volatile Thread thread;
+
+  /**
+   * True while the current polyomino is dropped at the fast rate.
+   */
+  private boolean fastDrop;
+
+  /**
+   * True while the key for SHIFT_LEFT is held.
+   */
+  private boolean leftHeld;
+
+  /**
+   * True while the key for SHIFT_RIGHT is held.
+   */
+  private boolean rightHeld;
+
+  /**
+   * The direction in which the polyomino is auto-shifted, SHIFT_LEFT
+   * or SHIFT_RIGHT, or -1 if neither key is held.  If both are held,
+   * the one pressed last wins.
+   */
+  private int autoShift = -1;
+
+  /**
+   * Time of the next auto-shift, from System.nanoTime().
+   */
+  private long nextAutoShift;
+
+  /**
+   * Number of commands carried out since the last snapshot.
+   */
+  private int pendingInputs;
+
+  /**
+   * Sum of the times at which the commands carried out since the last
+   * snapshot were posted.
+   */
+  private long pendingInputTimes;
+
+  /**
+   * Earliest time at which a command carried out since the last
+   * snapshot was posted.
+   */
+  private long earliestInputTime;
+
+  /**
+   * Counts down to zero while animating the cells to be collapsed.
+   */
+  private int animationState;
+
+  /**
+   * The cells to be collapsed in the next step while the game is in
+   * the COLLAPSING state, null otherwise.
+   */
+  private Point[] blocksToCollapse;
+
+  /**
+   * Export codes of the grid rows in the last snapshot.
+   */
+  private int[][] rows;
+
+  /**
+   * Version of the grid in the last snapshot.
+   */
+  private long gridVersion;
+
+  /**
+   * Number of steps taken.
+   */
+  private long ticks;
+
+  /**
+   * Constructs a loop for the given game and publishes the first
+   * snapshot.  The loop does not run until start() is called.
+   * @param game the game to run
+   * @param level the difficulty level, which determines the step length
+   * @param listener invoked on the simulation thread each time a 
+   *   snapshot is published, or null
+   */
+  public GameLoop(IGame game, IPlayLevel level, Runnable listener)
+  {
+    this.game = game;
+    this.level = level;
+    this.listener = listener;
+    rows = new int[game.getHeight()][];
+    for (int row = 0; row < rows.length; ++row)
+    {
+      rows[row] = new int[game.getWidth()];
+      game.exportRows(row, row, rows[row], 0);
+    }
+    gridVersion = game.getGridVersion();
+    publish();
+  }
+
+  /**
+   * Starts the simulation thread.
+   */
+  public void start()
+  {
+    running = true;
+    Thread t = new Thread(this, "GameLoop");
+    t.setDaemon(true);
+    thread = t;
+    t.start();
+  }
+
+  /**
+   * Stops the simulation thread after its current step.
+   */
+  public void stop()
+  {
+    running = false;
+    wake();
+  }
+
+  /**
+   * Returns the most recently published snapshot.
+   * @return the latest snapshot
+   */
+  public FrameSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+  /**
+   * Requests that the given command be carried out on the simulation 
+   * thread as soon as possible.  Commands must all be posted from the
+   * same thread, normally the event dispatch thread.
+   * @param command one of the command constants of this class
+   * @return true if the command was posted, false if it was dropped
+   *   because too many commands are waiting
+   */
+  public boolean post(int command)
+  {
+    boolean posted = input.offer(command, System.nanoTime());
+    wake();
+    return posted;
+  }
+
+  /**
+   * Sets the timing of the repeated shifts while a shift key is held.
+   * @param delay time in milliseconds the key must be held before the 
+   *   polyomino starts shifting repeatedly
+   * @param rate time in milliseconds between repeated shifts, or zero
+   *   to shift as far as possible at once
+   */
+  public void setAutoShift(int delay, int rate)
+  {
+    autoShiftDelay = Math.max(delay, 0) * 1000000L;
+    autoRepeatRate = Math.max(rate, 0) * 1000000L;
+  }
+
+  /**
+   * Returns the number of commands whose effect has been published.
+   * @return the number of commands carried out
+   */
+  public long getInputCount()
+  {
+    return inputCount;
+  }
+
+  /**
+   * Returns the sum of the times from posting each command to 
+   * publishing the snapshot showing its effect.
+   * @return the total latency in nanoseconds
+   */
+  public long getTotalInputLatency()
+  {
+    return totalInputLatency;
+  }
+
+  /**
+   * Returns the longest time from posting a command to publishing the
+   * snapshot showing its effect.
+   * @return the maximum latency in nanoseconds
+   */
+  public long getMaxInputLatency()
+  {
+    return maxInputLatency;
+  }
+
+  /**
+   * Body of the simulation thread.
+   */
+  @Override
+  public void run()
+  {
+    long previous = System.nanoTime();
+    long accumulator = 0;
+    long period = period();
+    while (running)
+    {
+      boolean changed = runCommands();
+      long now = System.nanoTime();
+      changed |= autoShift(now);
+      accumulator += now - previous;
+      previous = now;
+      long next = period();
+      accumulator = rescale(accumulator, period, next);
+      period = next;
+      accumulator = Math.min(accumulator, period * MAX_CATCH_UP);
+      while (accumulator >= period && !game.gameOver())
+      {
+        tick();
+        changed = true;
+        accumulator -= period;
+        next = period();
+        accumulator = rescale(accumulator, period, next);
+        period = next;
+      }
+      if (changed)
+      {
+        publish();
+      }
+      if (game.gameOver())
+      {
+        accumulator = 0;
+        LockSupport.park(this);
+      }
+      else
+      {
+        long wait = period - accumulator;
+        if (autoShift >= 0)
+        {
+          wait = Math.min(wait, nextAutoShift - System.nanoTime());
+        }
+        LockSupport.parkNanos(this, wait);
+      }
+    }
+  }
+
+  /**
+   * Converts time accumulated towards a step of one length into the 
+   * time that has elapsed of the same fraction of a step of another
+   * length, so that a change of speed takes effect without making
+   * the steps jump ahead or fall behind.
+   * @param accumulator accumulated time in nanoseconds
+   * @param from length of a step at the old speed
+   * @param to length of a step at the new speed
+   * @return the converted accumulated time
+   */
+  private static long rescale(long accumulator, long from, long to)
+  {
+    if (from == to)
+    {
+      return accumulator;
+    }
+    return (long) ((double) accumulator * to / from);
+  }
+
+  /**
+   * Returns the length of the next step in nanoseconds.
+   * @return the length of a step
+   */
+  private long period()
+  {
+    int millis;
+    if (fastDrop || blocksToCollapse != null)
+    {
+      millis = level.fastDropSpeed(game.getScore());
+    }
+    else
+    {
+      millis = level.speed(game.getScore());
+    }
+    return Math.max(millis, 1) * 1000000L;
+  }
+
+  /**
+   * Carries out the posted commands.
+   * @return true if any commands were carried out
+   */
+  private boolean runCommands()
+  {
+    boolean any = false;
+    while (!input.isEmpty())
+    {
+      int command = input.event();
+      long time = input.time();
+      input.remove();
+      any = true;
+      if (pendingInputs == 0 || time - earliestInputTime < 0)
+      {
+        earliestInputTime = time;
+      }
+      pendingInputs += 1;
+      pendingInputTimes += time;
+      switch (command)
+      {
+        case SHIFT_LEFT:
+          // ignore the platform's key repeat
+          if (!leftHeld)
+          {
+            leftHeld = true;
+            game.shiftLeft();
+            startAutoShift(SHIFT_LEFT, time);
+          }
+          break;
+        case SHIFT_RIGHT:
+          if (!rightHeld)
+          {
+            rightHeld = true;
+            game.shiftRight();
+            startAutoShift(SHIFT_RIGHT, time);
+          }
+          break;
+        case SHIFT_LEFT_RELEASED:
+          leftHeld = false;
+          if (autoShift == SHIFT_LEFT)
+          {
+            // go back to the other direction if its key is still held
+            autoShift = -1;
+            if (rightHeld)
+            {
+              startAutoShift(SHIFT_RIGHT, time);
+            }
+          }
+          break;
+        case SHIFT_RIGHT_RELEASED:
+          rightHeld = false;
+          if (autoShift == SHIFT_RIGHT)
+          {
+            autoShift = -1;
+            if (leftHeld)
+            {
+              startAutoShift(SHIFT_LEFT, time);
+            }
+          }
+          break;
+        case TRANSFORM:
+          game.transform();
+          break;
+        case CYCLE:
+          game.cycle();
+          break;
+        case HARD_DROP:
+          // drop the current polyomino straight to the bottom and
+          // stop it, unless cells are collapsing
+          if (blocksToCollapse == null && !game.gameOver())
+          {
+            game.hardDrop();
+            doOneStep();
+          }
+          break;
+        case FAST_DROP_ON:
+          fastDrop = true;
+          break;
+        case FAST_DROP_OFF:
+          fastDrop = false;
+          break;
+        default:
+          break;
+      }
+    }
+    return any;
+  }
+
+  /**
+   * Starts auto-shifting in the given direction after the auto-shift
+   * delay.
+   * @param direction SHIFT_LEFT or SHIFT_RIGHT
+   * @param time the time at which the key was pressed or the other
+   *   key released
+   */
+  private void startAutoShift(int direction, long time)
+  {
+    autoShift = direction;
+    nextAutoShift = time + autoShiftDelay;
+  }
+
+  /**
+   * Carries out the auto-shifts that are due.  Shifts that fell due
+   * while the simulation thread was held up are all made, so a held 
+   * key moves the polyomino as far as its timing says.
+   * @param now the current time, from System.nanoTime()
+   * @return true if the polyomino was shifted
+   */
+  private boolean autoShift(long now)
+  {
+    boolean any = false;
+    long rate = autoRepeatRate;
+    while (autoShift >= 0 && nextAutoShift - now <= 0)
+    {
+      boolean moved = autoShift == SHIFT_LEFT ? game.shiftLeft() : game.shiftRight();
+      if (!moved)
+      {
+        // blocked; try again after the next interval, or the next
+        // step if shifting as far as possible at once
+        nextAutoShift = now + (rate > 0 ? rate : period());
+        break;
+      }
+      any = true;
+      nextAutoShift += rate;
+    }
+    return any;
+  }
+
+  /**
+   * Takes one step of the simulation, either advancing the animation
+   * of the cells to be collapsed or stepping the game.
+   */
+  private void tick()
+  {
+    ticks += 1;
+    if (animationState == 0)
+    {
+      doOneStep();
+    }
+    else
+    {
+      animationState--;
+    }
+  }
+
+  /**
+   * Transitions the game through one step and interprets the status.
+   */
+  private void doOneStep()
+  {
+    GameStatus state = game.step();
+    if (state == GameStatus.NEW_POLYOMINO)
+    {
+      // if we were in the collapsing state, we're done
+      blocksToCollapse = null;
+    }
+    if (state == GameStatus.COLLAPSING || state == GameStatus.STOPPED)
+    {
+      // current polygon has reached the bottom, so if we were doing
+      // a fast drop, go back to the normal rate
+      fastDrop = false;
+      if (state == GameStatus.COLLAPSING)
+      {
+        // indicates that next call to step() will collapse cells,
+        // so animate them (at the fast drop rate) first
+        blocksToCollapse = game.getCellsToCollapse();
+        animationState = 5;
+      }
+    }
+  }
+
+  /**
+   * Creates and publishes a snapshot of the game.  Only the grid rows 
+   * that have changed since the last snapshot are copied; the rest are
+   * shared with it.
+   */
+  private void publish()
+  {
+    int width = game.getWidth();
+    long version = game.getGridVersion();
+    int first = game.getFirstRowChangedSince(gridVersion);
+    int last = game.getLastRowChangedSince(gridVersion);
+    gridVersion = version;
+    for (int row = first; row <= last; ++row)
+    {
+      rows[row] = new int[width];
+      game.exportRows(row, row, rows[row], 0);
+    }
+
+    int[] pieceX = new int[0];
+    int[] pieceY = pieceX;
+    int[] pieceCodes = pieceX;
+    if (blocksToCollapse == null && !game.gameOver())
+    {
+      Cell[] cells = game.getCurrent().getCells();
+      pieceX = new int[cells.length];
+      pieceY = new int[cells.length];
+      pieceCodes = new int[cells.length];
+      for (int i = 0; i < cells.length; ++i)
+      {
+        pieceX[i] = cells[i].getX();
+        pieceY[i] = cells[i].getY();
+        pieceCodes[i] = code(cells[i].getIcon());
+      }
+    }
+
+    int n = blocksToCollapse == null ? 0 : blocksToCollapse.length;
+    int[] collapsingX = new int[n];
+    int[] collapsingY = new int[n];
+    for (int i = 0; i < n; ++i)
+    {
+      collapsingX[i] = blocksToCollapse[i].x;
+      collapsingY[i] = blocksToCollapse[i].y;
+    }
+
+    if (pendingInputs > 0)
+    {
+      // record the time from each command to this snapshot
+      long now = System.nanoTime();
+      inputCount += pendingInputs;
+      totalInputLatency += pendingInputs * now - pendingInputTimes;
+      maxInputLatency = Math.max(maxInputLatency, now - earliestInputTime);
+      pendingInputs = 0;
+      pendingInputTimes = 0;
+    }
+
+    snapshot = new FrameSnapshot(width, rows.clone(), pieceX, pieceY, 
+        pieceCodes, collapsingX, collapsingY, animationState % 2 != 0,
+        game.getScore(), game.gameOver(), ticks);
+    if (listener != null)
+    {
+      listener.run();
+    }
+  }
+
+  /**
+   * Returns the export code for the given icon, as described for 
+   * IGame.exportRows().
+   * @param icon an icon
+   * @return the code for the icon
+   */
+  private static int code(IGameIcon icon)
+  {
+    int code = IGame.CELL_OCCUPIED | (icon.getColorHint().getRGB() & 0xffffff);
+    return icon.isMagic() ? code | IGame.CELL_MAGIC : code;
+  }
+
+  /**
+   * Wakes the simulation thread if it is waiting for the next step.
+   */
+  private void wake()
+  {
+    Thread t = thread;
+    if (t != null)
+    {
+      LockSupport.unpark(t);
+    }
+  }
+}
@@ -20,15 +20,15 @@ public class GameMain {
 	/**
 	 * Entry point. Main thread passed control immediately
 	 * to the Swing event thread.
-	 * @param args not used
+	 * @param args optional width and height of the grid
 	 */
-	public static void main(String[] args) 
+	public static void main(final String[] args) 
 	{
 		Runnable r = new Runnable()
 		{
 			public void run()
 			{
-				create();
+				create(args);
 			}
 		};
 		SwingUtilities.invokeLater(r);
@@ -38,10 +38,19 @@ public class GameMain {
 	 * Helper method for instantiating the components. This
 	 * method should be executed in the context of the Swing
 	 * event and thread only.
+	 * @param args optional width and height of the grid
 	 */
-	private static void create()
+	private static void create(String[] args)
 	{
-		IGame game = new CS228Tetris();
+		IGame game;
+		if (args.length >= 2)
+		{
+			game = new CS228Tetris(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+		}
+		else
+		{
+			game = new CS228Tetris();
+		}
 		IPlayLevel level = new BasicPlayLevel();
 		GamePanel panel = new GamePanel(game, level);
 		JFrame frame = new JFrame();
@@ -2,245 +2,268 @@ package ui;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.Point;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.awt.Rectangle;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JPanel;
-import javax.swing.Timer;
+import javax.swing.SwingUtilities;
 
-import api.Cell;
-import api.GameStatus;
 import api.IGame;
-import api.IGameIcon;
 import api.IPlayLevel;
-import api.IPolyomino;
 
 /**
- * User interface for the main grid of a Tetris-like game.
+ * User interface for the main grid of a Tetris-like game.  The game
+ * itself runs on the simulation thread of a GameLoop; this panel only
+ * draws the snapshots the loop publishes and posts the user's moves
+ * to it.
  */
 public class GamePanel extends JPanel
 {
   /**
-   * The javax.swing.Timer instance used to animate the UI.
+   * The loop running the game for which this is the UI.
    */
-  private Timer timer;
-  
+  private GameLoop loop;
+
   /**
-   * The IGame instance for which this is the UI.
+   * The snapshot to be drawn.  Each time a new one is taken from the
+   * loop, the parts of the panel that differ from this one are
+   * repainted.
    */
-  private IGame game;
-  
+  private FrameSnapshot shown;
+
   /**
-   * State variable indicating when the timer frequency is increased
-   * for dropping a polyomino to the bottom of the grid.
+   * The snapshot whose grid is rendered in the back buffer.
    */
-  private boolean fastDrop;
-  
+  private FrameSnapshot rendered;
+
   /**
-   * State variable counts down to zero while animating 
-   * the cells to be collapsed.
+   * Back buffer holding the rendered grid, without the current
+   * polyomino or any animation.  Only the rows of the grid that have
+   * changed are rendered again when the panel is painted.
    */
-  private int animationState = 0;
-  
+  private BufferedImage board;
+
   /**
-   * The difficulty level of the game, which determines the
-   * speed of the animation.
+   * Pre-rendered images of the cells.
    */
-  private IPlayLevel level;
-  
+  private SpriteCache sprites = new SpriteCache();
+
   /**
-   * When the IGame object is in the COLLAPSING state, this 
-   * field stores the the cells to be collapsed in the 
-   * next step.  This value can be used to apply special rendering
-   * or animation to the collapsing cells.  An invariant is maintained
-   * that this variable is non-null if and only if the IGame state
-   * is COLLAPSING.
+   * True while a call to repaintChanged() is waiting to run on the
+   * event dispatch thread, so that a burst of snapshots only causes
+   * one.
    */
-  private Point[] blocksToCollapse = null;
-  
-  
+  private final AtomicBoolean repaintPending = new AtomicBoolean();
+
+
   /**
-   * Constructs a GamePanel with the given game and play level.
+   * Constructs a GamePanel with the given game and play level, and
+   * starts running the game.
    * @param pGame the IGame instance for which this is the UI
-   * @param pLevel the IPlayLevel that will determine the 
+   * @param pLevel the IPlayLevel that will determine the
    *   animation speed for this UI
    */
   public GamePanel(IGame pGame, IPlayLevel pLevel)
   {
-    game = pGame;
-    level = pLevel;
+    loop = new GameLoop(pGame, pLevel, new Runnable()
+    {
+      public void run()
+      {
+        snapshotPublished();
+      }
+    });
+    shown = loop.getSnapshot();
     addKeyListener(new MyKeyListener());
-    timer = new Timer(level.speed(0) , new TimerCallback());
-    timer.start();
+    loop.start();
   }
-  
+
   // The paintComponent is invoked by the Swing framework whenever
   // the panel needs to be rendered on the screen.  In this application,
-  // repainting is normally triggered by the calls to the repaint() 
-  // method in the timer callback and the keyboard event handler (see below).
-  
+  // repainting is normally triggered by repaintChanged(), which runs
+  // each time the game loop publishes a new snapshot.
+
   @Override
   public void paintComponent(Graphics g)
   {
-    // clear background
+    FrameSnapshot frame = shown;
+    updateBoard(frame);
+
+    // clear whatever lies outside the grid and copy the grid from
+    // the back buffer; Swing clips both to the area being repainted
     g.clearRect(0, 0, getWidth(), getHeight());
-    
-    // paint occupied cells of the grid
-    for (int row = 0; row < game.getHeight(); ++row)
+    g.drawImage(board, 0, 0, null);
+
+    if (frame.isFlashing())
     {
-      for (int col = 0; col < game.getWidth(); ++col)
+      // if cells are collapsing, flash them
+      g.setColor(Color.DARK_GRAY);
+      for (int i = 0; i < frame.getCollapsingCount(); ++i)
       {
-        IGameIcon t = game.getCell(row, col);
-        if (t != null)
-        { 
-          paintOneCell(g, row, col, t);
-        }
+        g.fillRect(frame.getCollapsingX(i) * GameMain.SIZE, frame.getCollapsingY(i) * GameMain.SIZE,
+            GameMain.SIZE, GameMain.SIZE);
       }
     }
-    
-    if (blocksToCollapse != null)
+
+    // paint the current polyomino, if it is shown
+    for (int i = 0; i < frame.getPieceCellCount(); ++i)
     {
-      // if cells are collapsing, flash them
-      if (animationState % 2 != 0)
-      {
-        g.setColor(Color.DARK_GRAY);
+      int code = frame.getPieceCode(i);
+      paintOneCell(g, frame.getPieceY(i), frame.getPieceX(i), code, (code & IGame.CELL_MAGIC) != 0);
+    }
+  }
 
-        for (int i = 0; i < blocksToCollapse.length; ++i)
-        {
-          Point p = blocksToCollapse[i];
-          g.fillRect(p.x * GameMain.SIZE, p.y * GameMain.SIZE, GameMain.SIZE, GameMain.SIZE);
-        }
-      }
+  /**
+   * Renders the rows of the grid of the given snapshot that differ from
+   * those already in the back buffer, creating the back buffer the first
+   * time.
+   * @param frame the snapshot to render
+   */
+  private void updateBoard(FrameSnapshot frame)
+  {
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    if (board == null)
+    {
+      board = new BufferedImage(width * GameMain.SIZE, height * GameMain.SIZE,
+          BufferedImage.TYPE_INT_RGB);
     }
-    else if (!game.gameOver())
+    Graphics bg = board.getGraphics();
+    for (int row = 0; row < height; ++row)
     {
-      // otherwise, paint the current polyomino
-      IPolyomino t = game.getCurrent();
-      for (Cell c : t.getCells())
+      if (rendered != null && frame.isSameRow(rendered, row))
       {
-        IGameIcon b = c.getIcon();
-        g.setColor(b.getColorHint());
-        paintOneCell(g, c.getY(), c.getX(), b);
+        continue;
+      }
+      bg.setColor(getBackground());
+      bg.fillRect(0, row * GameMain.SIZE, width * GameMain.SIZE, GameMain.SIZE);
+      for (int col = 0; col < width; ++col)
+      {
+        int code = frame.getCode(row, col);
+        if (code != 0)
+        {
+          paintOneCell(bg, row, col, code, (code & IGame.CELL_MAGIC) != 0);
+        }
       }
     }
+    bg.dispose();
+    rendered = frame;
   }
-  
+
   /**
-   * Renders a single cell of the grid.
-   * 
-   * @param g the Swing graphics context
-   * @param row y-coordinate of the cell to render
-   * @param col x-coordinate of the cell to render
-   * @param t the IPolyomino associated with the cell, normally used
-   *   to determine the color with which to render the cell
+   * Invoked on the simulation thread each time the game loop publishes
+   * a snapshot; arranges for repaintChanged() to run on the event
+   * dispatch thread.
    */
-  private void paintOneCell(Graphics g, int row, int col, IGameIcon t)
+  private void snapshotPublished()
   {
-    // scale everything up by the SIZE
-    int x = GameMain.SIZE * col;
-    int y = GameMain.SIZE * row;
-    g.setColor(t.getColorHint());
-    g.fillRect(x, y, GameMain.SIZE, GameMain.SIZE);
-    g.setColor(Color.GRAY);
-    g.drawRect(x, y, GameMain.SIZE - 1, GameMain.SIZE - 1);
-    if (t.isMagic())
+    if (repaintPending.compareAndSet(false, true))
     {
-      int offset = GameMain.SIZE / 5;
-      g.setColor(Color.WHITE);
-      g.fillOval(x + offset, y + offset, offset * 3, offset * 3);
+      SwingUtilities.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          repaintPending.set(false);
+          repaintChanged();
+        }
+      });
     }
   }
-  
+
   /**
-   * Method invoked each time the timer fires.  
+   * Takes the latest snapshot from the game loop and requests a repaint
+   * of only the parts of the panel that differ from the snapshot shown
+   * before: the rows of the grid that have changed, the current
+   * polyomino in both snapshots, and any cells being collapsed.
    */
-  private void doOneStep()
+  private void repaintChanged()
   {
-    // transition the game through one step, and interpret the status
-    GameStatus state = game.step();
-    if (state == GameStatus.GAME_OVER)
+    FrameSnapshot previous = shown;
+    shown = loop.getSnapshot();
+    if (board == null)
     {
-      timer.stop();
+      repaint();
+      return;
     }
-    else
+    Rectangle dirty = union(bounds(previous), bounds(shown));
+    for (int row = 0; row < shown.getHeight(); ++row)
     {
-      if (state == GameStatus.NEW_POLYOMINO)
-      {
-        // if we were in the collapsing state, we're done
-        blocksToCollapse = null;
-        
-        // TODO only do this if we were animating
-        int speed = level.speed(game.getScore());
-        timer.setDelay(speed);
-        timer.setInitialDelay(speed);
-        timer.restart();
-      }
-      if (state == GameStatus.COLLAPSING || state == GameStatus.STOPPED)
+      if (!shown.isSameRow(previous, row))
       {
-        // current polygon has reached the bottom, so if we were doing
-        // a fast drop, reset the timer to normal
-        if (fastDrop)
-        {
-          normalSpeed();
-          fastDrop = false;
-        }
-        if (state == GameStatus.COLLAPSING)
-        {
-          // indicates that next call to step() will collapse cells,
-          // so we want to animate them before invoking step() again.
-          // Use the fast drop rate for animation
-          blocksToCollapse = game.getCellsToCollapse();
-          animationState = 5;
-          fastSpeed();
-        }
+        dirty = union(dirty, new Rectangle(0, row * GameMain.SIZE,
+            shown.getWidth() * GameMain.SIZE, GameMain.SIZE));
       }
-      // else state is FALLING, nothing to do but repaint
-    }   
-  }
-  
-  private void normalSpeed()
-  {
-    int speed = level.speed(game.getScore());
-    timer.setDelay(speed);
-    timer.setInitialDelay(speed);
-    timer.restart();
+    }
+    if (dirty != null)
+    {
+      repaint(dirty);
+    }
   }
-  
-  private void fastSpeed()
+
+  /**
+   * Returns the area covered by the current polyomino and the cells
+   * being collapsed in the given snapshot.
+   * @param frame a snapshot
+   * @return the area covered, or null if there is none
+   */
+  private static Rectangle bounds(FrameSnapshot frame)
   {
-    int speed = level.fastDropSpeed(game.getScore());
-    timer.setDelay(speed);
-    timer.setInitialDelay(0);
-    timer.restart();
+    Rectangle r = null;
+    for (int i = 0; i < frame.getPieceCellCount(); ++i)
+    {
+      r = union(r, new Rectangle(frame.getPieceX(i) * GameMain.SIZE, frame.getPieceY(i) * GameMain.SIZE,
+          GameMain.SIZE, GameMain.SIZE));
+    }
+    for (int i = 0; i < frame.getCollapsingCount(); ++i)
+    {
+      r = union(r, new Rectangle(frame.getCollapsingX(i) * GameMain.SIZE, frame.getCollapsingY(i) * GameMain.SIZE,
+          GameMain.SIZE, GameMain.SIZE));
+    }
+    return r;
   }
-  
+
   /**
-   * Listener for timer events.  The actionPerformed method
-   * is invoked each time the timer fires.
+   * Returns the smallest rectangle containing both given rectangles,
+   * either of which may be null.
    */
-  private class TimerCallback implements ActionListener
+  private static Rectangle union(Rectangle a, Rectangle b)
   {
-    @Override
-    public void actionPerformed(ActionEvent arg0)
+    if (a == null)
     {
-      if (animationState == 0)
-      {
-        doOneStep();
-        repaint();
-      }
-      else
-      {
-        repaint();
-        animationState--;
-      }      
+      return b;
     }
+    if (b == null)
+    {
+      return a;
+    }
+    return a.union(b);
+  }
+
+  /**
+   * Renders a single cell of the grid with the given color, by copying
+   * its image from the sprite cache.
+   *
+   * @param g the Swing graphics context
+   * @param row y-coordinate of the cell to render
+   * @param col x-coordinate of the cell to render
+   * @param rgb the RGB value of the color with which to render the cell;
+   *   any bits above the low 24 are ignored
+   * @param magic true if the cell should be marked as magic
+   */
+  private void paintOneCell(Graphics g, int row, int col, int rgb, boolean magic)
+  {
+    // scale everything up by the SIZE
+    int x = GameMain.SIZE * col;
+    int y = GameMain.SIZE * row;
+    g.drawImage(sprites.get(rgb, magic, GameMain.SIZE, getGraphicsConfiguration()), x, y, null);
   }
-  
+
   /**
-   * Listener for keyboard events.
+   * Listener for keyboard events.  Each press and release is posted to
+   * the game loop, which carries out the moves on the simulation thread
+   * and repeats shifts itself while a shift key is held.
    */
   private class MyKeyListener implements KeyListener
   {
@@ -250,38 +273,27 @@ public class GamePanel extends JPanel
       int code = e.getKeyCode();
       if (code == KeyEvent.VK_RIGHT)
       {
-        if (game.shiftRight())
-        {
-          repaint();
-        }
+        loop.post(GameLoop.SHIFT_RIGHT);
       }
       else if (code == KeyEvent.VK_LEFT)
       {
-        if (game.shiftLeft())
-        {
-          repaint();
-        }
+        loop.post(GameLoop.SHIFT_LEFT);
       }
       else if (code == KeyEvent.VK_UP)
       {
-        if (game.transform())
-        {
-          repaint();
-        }
+        loop.post(GameLoop.TRANSFORM);
       }
       else if (code == KeyEvent.VK_SPACE)
       {
-        game.cycle();
-        repaint();
+        loop.post(GameLoop.CYCLE);
+      }
+      else if (code == KeyEvent.VK_ENTER)
+      {
+        loop.post(GameLoop.HARD_DROP);
       }
       else if (code == KeyEvent.VK_DOWN)
       {
-        if (!fastDrop)
-        {
-          // reset timer for the fast drop frame rate
-          fastSpeed();
-          fastDrop = true;
-        }
+        loop.post(GameLoop.FAST_DROP_ON);
       }
     }
 
@@ -291,16 +303,17 @@ public class GamePanel extends JPanel
       int code = e.getKeyCode();
       if (code == KeyEvent.VK_DOWN)
       {
-        // turn off fast drop mode when downarrow is released,
-        // but not if we're animating
-        if (fastDrop && animationState == 0)
-        {
-          normalSpeed();
-        }
-        if (fastDrop)
-        {
-          fastDrop = false;
-        }
+        // turn off fast drop mode when downarrow is released
+        loop.post(GameLoop.FAST_DROP_OFF);
+      }
+      else if (code == KeyEvent.VK_RIGHT)
+      {
+        // stop auto-shifting
+        loop.post(GameLoop.SHIFT_RIGHT_RELEASED);
+      }
+      else if (code == KeyEvent.VK_LEFT)
+      {
+        loop.post(GameLoop.SHIFT_LEFT_RELEASED);
       }
     }
 
@@ -309,6 +322,6 @@ public class GamePanel extends JPanel
     {
       // not used
     }
-    
+
   }
 }
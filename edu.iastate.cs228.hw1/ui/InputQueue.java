@@ -0,0 +1,142 @@
+package ui;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue of timestamped input events for exactly one
+ * producer thread and one consumer thread.  Events are stored in a
+ * ring of parallel arrays.  The producer only writes the tail index
+ * and the consumer only writes the head index, so neither ever waits
+ * for the other; each publishes its index with an ordered write after
+ * touching the slot, which is all the other side needs to see the
+ * slot's contents.
+ * <p>
+ * offer() may only be called from the producer thread, and
+ * isEmpty(), event(), time() and remove() only from the consumer
+ * thread.
+ */
+class InputQueue
+{
+  /**
+   * The events, indexed by sequence number modulo the capacity.
+   */
+  private final int[] events;
+
+  /**
+   * The times at which the events occurred, from System.nanoTime().
+   */
+  private final long[] times;
+
+  /**
+   * Capacity minus one, for reducing a sequence number to an index.
+   */
+  private final int mask;
+
+  /**
+   * Sequence number of the next event to be removed; written only by
+   * the consumer.
+   */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * Sequence number of the next event to be added; written only by
+   * the producer.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The producer's most recent reading of head, so that it need not
+   * read the shared index while the queue is known to have room.
+   */
+  private long headCache;
+
+  /**
+   * The consumer's most recent reading of tail, so that it need not
+   * read the shared index while the queue is known to be nonempty.
+   */
+  private long tailCache;
+
+  /**
+   * Constructs an empty queue that holds at least the given number of
+   * events.
+   * @param capacity the minimum capacity
+   */
+  public InputQueue(int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    events = new int[size];
+    times = new long[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Adds an event to the queue, unless the queue is full.  Called only
+   * from the producer thread.
+   * @param event the event
+   * @param time the time at which the event occurred, from
+   *   System.nanoTime()
+   * @return true if the event was added, false if the queue was full
+   */
+  public boolean offer(int event, long time)
+  {
+    long t = tail.get();
+    if (t - headCache > mask)
+    {
+      headCache = head.get();
+      if (t - headCache > mask)
+      {
+        return false;
+      }
+    }
+    int index = (int) t & mask;
+    events[index] = event;
+    times[index] = time;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Determines whether the queue is empty.  Called only from the
+   * consumer thread.
+   * @return true if there is no event to remove
+   */
+  public boolean isEmpty()
+  {
+    long h = head.get();
+    if (h < tailCache)
+    {
+      return false;
+    }
+    tailCache = tail.get();
+    return h >= tailCache;
+  }
+
+  /**
+   * Returns the oldest event in the queue, which must not be empty.
+   * Called only from the consumer thread.
+   * @return the oldest event
+   */
+  public int event()
+  {
+    return events[(int) head.get() & mask];
+  }
+
+  /**
+   * Returns the time at which the oldest event in the queue occurred.
+   * The queue must not be empty.  Called only from the consumer thread.
+   * @return the time of the oldest event, from System.nanoTime()
+   */
+  public long time()
+  {
+    return times[(int) head.get() & mask];
+  }
+
+  /**
+   * Removes the oldest event from the queue, which must not be empty.
+   * Called only from the consumer thread.
+   */
+  public void remove()
+  {
+    head.lazySet(head.get() + 1);
+  }
+}
@@ -0,0 +1,116 @@
+package ui;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Cache of pre-rendered images of grid cells, so that painting a cell
+ * is a single drawImage() call.  There is one image for each 
+ * combination of color and magic state, rendered the first time it is
+ * needed.  All of the images are for one cell size; asking for a 
+ * different size discards them.
+ */
+class SpriteCache
+{
+  /**
+   * Bit added to the RGB value of a color to form the key of a magic 
+   * cell's image.
+   */
+  private static final int MAGIC_KEY = 1 << 24;
+
+  /**
+   * Width and height in pixels of the cached images, or 0 if there are
+   * none.
+   */
+  private int size;
+
+  /**
+   * Keys of the cached images: the RGB value of the color, plus 
+   * MAGIC_KEY for a magic cell.
+   */
+  private int[] keys = new int[16];
+
+  /**
+   * Cached images, in the same order as their keys.
+   */
+  private BufferedImage[] sprites = new BufferedImage[16];
+
+  /**
+   * Number of cached images.
+   */
+  private int count;
+
+  /**
+   * Returns the image of a cell with the given color and magic state,
+   * rendering it if it is not already cached.
+   * @param rgb RGB value of the cell's color
+   * @param magic true if the cell is magic
+   * @param cellSize width and height of the cell in pixels
+   * @param gc configuration of the device the image will be drawn on, 
+   *   or null if unknown
+   * @return image of the cell
+   */
+  public BufferedImage get(int rgb, boolean magic, int cellSize, GraphicsConfiguration gc)
+  {
+    if (cellSize != size)
+    {
+      Arrays.fill(sprites, 0, count, null);
+      count = 0;
+      size = cellSize;
+    }
+    int key = (rgb & 0xffffff) | (magic ? MAGIC_KEY : 0);
+    for (int i = 0; i < count; ++i)
+    {
+      if (keys[i] == key)
+      {
+        return sprites[i];
+      }
+    }
+    if (count == keys.length)
+    {
+      keys = Arrays.copyOf(keys, count * 2);
+      sprites = Arrays.copyOf(sprites, count * 2);
+    }
+    keys[count] = key;
+    sprites[count] = render(new Color(rgb & 0xffffff), magic, gc);
+    ++count;
+    return sprites[count - 1];
+  }
+
+  /**
+   * Renders the image of a cell.
+   * @param color the cell's color
+   * @param magic true if the cell is magic
+   * @param gc configuration of the device the image will be drawn on, 
+   *   or null if unknown
+   * @return new image of the cell
+   */
+  private BufferedImage render(Color color, boolean magic, GraphicsConfiguration gc)
+  {
+    BufferedImage image;
+    if (gc != null)
+    {
+      image = gc.createCompatibleImage(size, size);
+    }
+    else
+    {
+      image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    }
+    Graphics g = image.getGraphics();
+    g.setColor(color);
+    g.fillRect(0, 0, size, size);
+    g.setColor(Color.GRAY);
+    g.drawRect(0, 0, size - 1, size - 1);
+    if (magic)
+    {
+      int offset = size / 5;
+      g.setColor(Color.WHITE);
+      g.fillOval(offset, offset, offset * 3, offset * 3);
+    }
+    g.dispose();
+    return image;
+  }
+}